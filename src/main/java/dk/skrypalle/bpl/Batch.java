@@ -0,0 +1,234 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl;
+
+import dk.skrypalle.bpl.util.*;
+import dk.skrypalle.bpl.vm.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+// Compiles many units at once. Every unit gets its own parse tree, type
+// universe and visitors, so units share no mutable state and the outputs
+// do not depend on the number of threads.
+public final class Batch {
+
+	public enum Target {
+		BC(BcFile.EXT),
+		C99(".c");
+
+		public final String ext;
+
+		Target(String ext) {
+			this.ext = ext;
+		}
+	}
+
+	public static final class Unit {
+		public final Path      src;
+		public final Path      out;
+		public final Throwable err;
+		public final long      nanos;
+
+		Unit(Path src, Path out, Throwable err, long nanos) {
+			this.src = src;
+			this.out = out;
+			this.err = err;
+			this.nanos = nanos;
+		}
+
+		public boolean ok() {
+			return err == null;
+		}
+	}
+
+	public static final class Report {
+		public final List<Unit> units;
+		public final int        threads;
+		public final long       nanos;
+
+		Report(List<Unit> units, int threads, long nanos) {
+			this.units = Collections.unmodifiableList(units);
+			this.threads = threads;
+			this.nanos = nanos;
+		}
+
+		public int nFailed() {
+			int res = 0;
+			for (Unit u : units) {
+				if (!u.ok())
+					res++;
+			}
+			return res;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder buf = new StringBuilder();
+			for (Unit u : units) {
+				if (!u.ok())
+					buf.append(String.format("%s: %s: %s\n", u.src, u.err.getClass().getSimpleName(), u.err.getMessage()));
+			}
+			buf.append(String.format("%d of %d units compiled, %d failed (%d threads, %.1f ms)\n",
+				units.size() - nFailed(), units.size(), nFailed(), threads, nanos/1e6));
+			return buf.toString();
+		}
+	}
+
+	private static final String USAGE = "usage: --batch [--c99] [-j threads] [-o outdir] (dir|file)...";
+
+	// Usage: --batch [--c99] [-j threads] [-o outdir] (dir|file)...
+	public static int run(String[] args) throws IOException, InterruptedException {
+		Target target = Target.BC;
+		int threads = Runtime.getRuntime().availableProcessors();
+		Path outDir = null;
+		List<Path> roots = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--c99":
+				target = Target.C99;
+				break;
+			case "-j":
+				if (i + 1 >= args.length)
+					return usage("-j needs a thread count");
+				try {
+					threads = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					return usage("bad thread count '" + args[i] + "'");
+				}
+				if (threads < 1)
+					return usage("bad thread count '" + args[i] + "'");
+				break;
+			case "-o":
+				if (i + 1 >= args.length)
+					return usage("-o needs an output dir");
+				outDir = Paths.get(args[++i]);
+				break;
+			default:
+				roots.add(Paths.get(args[i]));
+			}
+		}
+		if (roots.isEmpty())
+			return usage("no sources given");
+
+		Report report;
+		try {
+			report = compile(roots, outDir, target, threads);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return 1;
+		}
+		System.out.print(report);
+		return report.nFailed() == 0 ? 0 : 1;
+	}
+
+	private static int usage(String why) {
+		return Main.usage(why, USAGE);
+	}
+
+	public static Report compile(List<Path> roots, Path outDir, Target target, int threads)
+		throws IOException, InterruptedException {
+		Map<Path, Path> outs = new TreeMap<>();
+		for (Path root : roots)
+			collect(root, outDir, target, outs);
+
+		// two sources writing the same output would silently overwrite each other
+		Map<Path, Path> srcs = new HashMap<>();
+		for (Map.Entry<Path, Path> e : outs.entrySet()) {
+			Path other = srcs.put(e.getValue().toAbsolutePath().normalize(), e.getKey());
+			if (other != null)
+				throw new IllegalArgumentException(String.format("%s and %s both compile to %s", other, e.getKey(), e.getValue()));
+		}
+
+		List<Callable<Unit>> tasks = new ArrayList<>();
+		for (Map.Entry<Path, Path> e : outs.entrySet())
+			tasks.add(() -> compileUnit(e.getKey(), e.getValue(), target));
+
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<Unit> units = new ArrayList<>();
+			for (Future<Unit> f : pool.invokeAll(tasks))
+				units.add(f.get());
+			return new Report(units, threads, System.nanoTime() - start);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause()); // compileUnit catches everything
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static Unit compileUnit(Path src, Path out, Target target) {
+		long start = System.nanoTime();
+		try {
+			String bpl = IO.readAll(src);
+			if (out.getParent() != null)
+				Files.createDirectories(out.getParent());
+			switch (target) {
+			case BC:
+				Files.write(out, Main.compileBCFile(bpl));
+				break;
+			case C99:
+				IO.writeAll(out, Main.compileC99(bpl));
+				break;
+			}
+			return new Unit(src, out, null, System.nanoTime() - start);
+		} catch (Throwable t) {
+			return new Unit(src, out, t, System.nanoTime() - start);
+		}
+	}
+
+	private static void collect(Path root, Path outDir, Target target, Map<Path, Path> outs) throws IOException {
+		if (!Files.isDirectory(root)) {
+			Path dir = outDir != null ? outDir : root.toAbsolutePath().getParent();
+			outs.put(root, dir.resolve(swapExt(root.getFileName(), target)));
+			return;
+		}
+
+		try (Stream<Path> files = Files.walk(root)) {
+			for (Path p : files.filter(p -> p.toString().endsWith(".bpl")).collect(Collectors.toList())) {
+				Path rel = root.relativize(p);
+				Path dir = outDir != null ? outDir : root;
+				outs.put(p, dir.resolve(swapExt(rel, target)));
+			}
+		}
+	}
+
+	static String swapExt(Path p, Target target) {
+		String s = p.toString();
+		int dot = s.lastIndexOf('.');
+		int sep = s.lastIndexOf(File.separatorChar);
+		if (dot > sep)
+			s = s.substring(0, dot);
+		return s + target.ext;
+	}
+
+	private Batch() { /**/ }
+
+}
@@ -35,10 +35,18 @@ import org.antlr.v4.runtime.tree.*;
 
 import java.io.*;
 import java.nio.file.*;
+import java.util.*;
 
 public final class Main {
 
 	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length > 0 && "--batch".equals(args[0]))
+			System.exit(Batch.run(Arrays.copyOfRange(args, 1, args.length)));
+		if (args.length > 0 && "--emit-bc".equals(args[0]))
+			System.exit(emitBC(Arrays.copyOfRange(args, 1, args.length)));
+		if (args.length > 0 && "--run-bc".equals(args[0]))
+			System.exit(runBC(Arrays.copyOfRange(args, 1, args.length)));
+
 		Exec.trace = true;
 		int runWhich = 0x03;
 
@@ -115,6 +123,31 @@ public final class Main {
 		}
 	}
 
+	// Usage: --emit-bc src.bpl [out.bplbc]
+	static int emitBC(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2)
+			return usage(String.format("--emit-bc takes 1 or 2 args, got %d", args.length), "usage: --emit-bc src.bpl [out.bplbc]");
+		Path src = Paths.get(args[0]);
+		Path out = Paths.get(args.length > 1 ? args[1] : Batch.swapExt(src, Batch.Target.BC));
+		Files.write(out, compileBCFile(IO.readAll(src)));
+		return 0;
+	}
+
+	// Usage: --run-bc file.bplbc, exits with the exit code of the program
+	static int runBC(String[] args) throws IOException {
+		if (args.length != 1)
+			return usage(String.format("--run-bc takes 1 arg, got %d", args.length), "usage: --run-bc file.bplbc");
+		Program program = BcFile.load(Paths.get(args[0]));
+		return new VM(program, false, System.out, System.err, System.out, Engine.STACK, VM.DEFAULT_STACK_LIMIT).run();
+	}
+
+	// Reports bad usage of a mode on stderr and returns its exit code
+	static int usage(String why, String usage) {
+		System.err.println(why);
+		System.err.println(usage);
+		return 2;
+	}
+
 	private static String loadTestFile(String name) throws IOException {
 		Path p = Paths.get("./src/test/resources/compiler/" + name + ".test");
 		String[] res = new String(Files.readAllBytes(p), IO.UTF8).split("::exp");
@@ -123,14 +156,25 @@ public final class Main {
 
 	public static byte[] compileBC(String bpl) {
 		ParseTree t = parse(bpl);
-		FuncTbl funcTbl = new FuncResolvePass().visit(t);
-		return new BCVisitor(funcTbl).visit(t);
+		TypeUniverse types = new TypeUniverse();
+		FuncTbl funcTbl = new FuncResolvePass(types).visit(t);
+		return new BCVisitor(funcTbl, types).visit(t).toArray();
+	}
+
+	// Compiles to the contents of a .bplbc file, see BcFile
+	public static byte[] compileBCFile(String bpl) {
+		ParseTree t = parse(bpl);
+		TypeUniverse types = new TypeUniverse();
+		FuncTbl funcTbl = new FuncResolvePass(types).visit(t);
+		CodeBuf code = new BCVisitor(funcTbl, types).visit(t);
+		return BcWriter.write(code.toArray(), code.lines());
 	}
 
 	public static String compileC99(String bpl) {
 		ParseTree t = parse(bpl);
-		FuncTbl funcTbl = new FuncResolvePass().visit(t);
-		return new C99Visitor(funcTbl).visit(t);
+		TypeUniverse types = new TypeUniverse();
+		FuncTbl funcTbl = new FuncResolvePass(types).visit(t);
+		return new C99Visitor(funcTbl, types).visit(t);
 	}
 
 	private static ParseTree parse(String bpl) {
@@ -27,6 +27,7 @@ package dk.skrypalle.bpl.compiler;
 
 import dk.skrypalle.bpl.antlr.*;
 import dk.skrypalle.bpl.antlr.BPLParser.*;
+import dk.skrypalle.bpl.compiler.CodeBuf.*;
 import dk.skrypalle.bpl.compiler.err.*;
 import dk.skrypalle.bpl.compiler.type.*;
 import dk.skrypalle.bpl.util.*;
@@ -39,98 +40,104 @@ import static dk.skrypalle.bpl.util.Array.*;
 import static dk.skrypalle.bpl.util.Parse.*;
 import static dk.skrypalle.bpl.vm.Bytecode.*;
 
-public class BCVisitor extends BPLBaseVisitor<byte[]> {
-
-	private static final byte[] EMPTY = {};
+public class BCVisitor extends BPLBaseVisitor<CodeBuf> {
 
 	private final FuncTbl              funcTbl;
+	private final TypeUniverse         types;
 	private final Deque<Type>          tStack;
-	private final Deque<Deque<byte[]>> defers;
+	private final Deque<Deque<CodeBuf>> defers;
 
 	private Map<String, StaticStoreEntry> staticStore;
 	private Func                          curF;
-	private int                           staticLen;
+	private int                           dataLen;
 	private int                           fOff;
 	private boolean                       isDeferred;
 	private Type                          curT;
 	private boolean                       load;
+	private boolean                       tailCalls; // curF never takes an address, so its frame may be replaced
+	private FuncCallContext               tailCall;  // call to emit as TAILCALL
 
-	public BCVisitor(FuncTbl funcTbl) {
+	public BCVisitor(FuncTbl funcTbl, TypeUniverse types) {
 		this.funcTbl = funcTbl;
+		this.types = types;
 		this.tStack = new ArrayDeque<>();
 		this.defers = new ArrayDeque<>();
 		this.staticStore = new HashMap<>();
-		this.staticLen = 0;
-		this.fOff = PREABLE_LEN;
+		this.dataLen = 0;
+		this.fOff = 0;
 		this.isDeferred = false;
 		this.load = true;
+		this.tailCalls = false;
+		this.tailCall = null;
 	}
 
 	@Override
-	public byte[] visitCompilationUnit(CompilationUnitContext ctx) {
-		boolean calcStaticLen = false;
-		while (nUnresolved() > 0) {
-			fOff = PREABLE_LEN + staticLen;
-			visitChildren(ctx);
-			if (!calcStaticLen) {
-				for (StaticStoreEntry e : staticStore.values())
-					staticLen += e.val.length;
-				calcStaticLen = true;
-			}
-			for (Func f : funcTbl.flatten())
-				f.symTbl.clearLocals();
-			defers.clear();
+	public CodeBuf visitCompilationUnit(CompilationUnitContext ctx) {
+		// Function entries are recorded relative to the start of the code
+		// and rebased once the length of the data segment is known.
+		fOff = 0;
+		CodeBuf cld = visitChildren(ctx);
+
+		List<Func> funcs = new ArrayList<>();
+		for (Func f : funcTbl.flatten()) {
+			if (f.entry != Func.ENTRY_UNRESOLVED)
+				funcs.add(f);
 		}
+		funcs.sort(Comparator.comparingInt(f -> f.entry));
+		int tblLen = 4 + funcs.size()*FUNC_ENTRY_LEN;
+		for (Func f : funcs)
+			f.entry += PREABLE_LEN + dataLen + tblLen;
 
-		fOff = PREABLE_LEN + staticLen;
-		byte[] cld = visitChildren(ctx);
+		CodeBuf res = new CodeBuf();
+		res.s32(dataLen);                                    // data segment length
 
-		byte[] static_b = {};
 		// Sort data segment
 		TreeMap<Integer, byte[]> tmp = new TreeMap<>();
 		for (StaticStoreEntry e : staticStore.values())
 			tmp.put(e.off, e.val);
 		for (Map.Entry<Integer, byte[]> e : tmp.entrySet())
-			static_b = concat(static_b, e.getValue());
+			res.bytes(e.getValue());                         // data segment
+
+		res.s32(funcs.size());                               // function table
+		for (Func f : funcs)
+			res.s32(f.entry).s32(f.nLocals).s32(f.maxStack);
 
 		Func main = funcTbl.getFirst("main");
 
-		return concat(
-			Marshal.bytesS32BE(staticLen),                               // data segment length
-			static_b,                                                    // data segment
-			CALL, Marshal.bytesS32BE(main.entry), Marshal.bytesS32BE(0), // call main void
-			HALT,
-			cld
-		);
+		return res
+			.call(main, 0)                                   // call main void
+			.op(HALT)
+			.append(cld)
+			.link();
 	}
 
 	//region stmt
 
 	@Override
-	public byte[] visitSingularStmt(SingularStmtContext ctx) {
+	public CodeBuf visitSingularStmt(SingularStmtContext ctx) {
 		if (curF.returns)
 			throw new BPLCErrStatementUnreachable(ctx.start);
-		return visitChildren(ctx);
+		return new CodeBuf().line(ctx.start.getLine()).append(visitChildren(ctx));
 	}
 
 	@Override
-	public byte[] visitDeferrableStmt(DeferrableStmtContext ctx) {
+	public CodeBuf visitDeferrableStmt(DeferrableStmtContext ctx) {
 		if (curF.returns)
 			throw new BPLCErrStatementUnreachable(ctx.start);
-		return visitChildren(ctx);
+		return new CodeBuf().line(ctx.start.getLine()).append(visitChildren(ctx));
 	}
 
 	@Override
-	public byte[] visitStmt(StmtContext ctx) {
+	public CodeBuf visitStmt(StmtContext ctx) {
 		if (curF.returns)
 			throw new BPLCErrStatementUnreachable(ctx.start);
-		return visitChildren(ctx);
+		return new CodeBuf().line(ctx.start.getLine()).append(visitChildren(ctx));
 	}
 
 	@Override
-	public byte[] visitDefer(DeferContext ctx) {
+	public CodeBuf visitDefer(DeferContext ctx) {
 		isDeferred = true;
-		byte[] args = {};
+		CodeBuf args = new CodeBuf();
 
 		List<ArgContext> argContexts = null;
 		if (ctx.rhs.funcCall() != null && ctx.rhs.funcCall().args != null)
@@ -141,21 +148,29 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		if (argContexts != null) {
 			for (ArgContext actx : argContexts) {
 				isDeferred = false;
-				args = concat(args, visit(actx));
+				args.append(visit(actx));
 				isDeferred = true;
 			}
 		}
 
-		byte[] s = visitChildren(ctx);
+		CodeBuf s = visitChildren(ctx);
 		isDeferred = false;
 		defers.peek().push(s);
 		return args;
 	}
 
 	@Override
-	public byte[] visitRet(RetContext ctx) {
+	public CodeBuf visitRet(RetContext ctx) {
 		curF.returns = true;
-		byte[] cld = visitChildren(ctx);
+		boolean pendingDefers = false;
+		for (Deque<CodeBuf> scope : defers)
+			pendingDefers |= !scope.isEmpty();
+		FuncCallContext tail = null;
+		if (tailCalls && !pendingDefers && ctx.expr() instanceof FuncCallExprContext)
+			tail = ((FuncCallExprContext) ctx.expr()).funcCall();
+		tailCall = tail;
+		CodeBuf cld = visitChildren(ctx);
+		tailCall = null;
 		Type have;
 		Type want = curF.type;
 
@@ -167,18 +182,20 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 				throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.getParent()), have, want);
 		}
 
-		byte[] ll = {};
-		for (Deque<byte[]> scope : defers) {
-			for (byte[] defer : scope)
-				ll = concat(ll, defer);
+		CodeBuf res = new CodeBuf();
+		for (Deque<CodeBuf> scope : defers) {
+			for (CodeBuf defer : scope)
+				res.append(defer);
 		}
 
-		return concat(ll, cld, RET);
+		if (tail != null)
+			return res.append(cld); // ends in TAILCALL
+		return res.append(cld).op(RET);
 	}
 
 	@Override
-	public byte[] visitPrint(PrintContext ctx) {
-		byte[] cld = isDeferred ? new byte[]{} : visitChildren(ctx);
+	public CodeBuf visitPrint(PrintContext ctx) {
+		CodeBuf cld = isDeferred ? new CodeBuf() : visitChildren(ctx);
 
 		int n = 0;
 		if (ctx.args != null) {
@@ -188,68 +205,70 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 			}
 		}
 
-		return concat(cld, PRINT, Marshal.bytesS32BE(n));
+		return cld.print(n);
 	}
 
 	@Override
-	public byte[] visitBranch(BranchContext ctx) {
+	public CodeBuf visitBranch(BranchContext ctx) {
 		boolean trueRet;
 		boolean falseRet;
 
-		byte[] cond = visit(ctx.cond);
+		CodeBuf cond = visit(ctx.cond);
 		Type cond_t = popt();
 		if (cond_t == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.cond));
-		if (cond_t != Types.lookup("int"))
-			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.cond), cond_t, Types.lookup("int"));
+		if (cond_t != Types.INT)
+			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.cond), cond_t, Types.INT);
 
 		curF.returns = false;
-		byte[] onTrue = visit(ctx.onTrue);
+		CodeBuf onTrue = visit(ctx.onTrue);
 		trueRet = curF.returns;
 
 		curF.returns = false;
-		byte[] onFalse = visit(ctx.onFalse);
+		CodeBuf onFalse = visit(ctx.onFalse);
 		falseRet = curF.returns;
 
 		curF.returns = trueRet && falseRet;
 
-		return concat(
-			cond,
-			BRNE, Marshal.bytesS32BE(onFalse.length + 5),
-			onFalse,
-			JMP, Marshal.bytesS32BE(onTrue.length),
-			onTrue
-		);
+		Label lTrue = new Label();
+		Label lEnd = new Label();
+		return branch(ctx.cond, cond, true, lTrue)
+			.append(onFalse)
+			.jump(JMP, lEnd)
+			.bind(lTrue)
+			.append(onTrue)
+			.bind(lEnd);
 	}
 
 	@Override
-	public byte[] visitLoop(LoopContext ctx) {
-		byte[] cond = visit(ctx.cond);
+	public CodeBuf visitLoop(LoopContext ctx) {
+		CodeBuf cond = visit(ctx.cond);
 		Type cond_t = popt();
 		if (cond_t == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.cond));
-		if (cond_t != Types.lookup("int"))
-			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.cond), cond_t, Types.lookup("int"));
+		if (cond_t != Types.INT)
+			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.cond), cond_t, Types.INT);
 
-		byte[] body = visit(ctx.body);
-		return concat(
-			cond,
-			BREQ, Marshal.bytesS32BE(body.length + 5),
-			body,
-			JMP, Marshal.bytesS32BE(-(body.length + cond.length + 5 + 5))
-		);
+		CodeBuf body = visit(ctx.body);
+		Label lTop = new Label();
+		Label lEnd = new Label();
+		CodeBuf test = new CodeBuf().bind(lTop).append(cond);
+		return branch(ctx.cond, test, false, lEnd)
+			.append(body)
+			.jump(JMP, lTop)
+			.bind(lEnd);
 	}
 
 	@Override
-	public byte[] visitBlock(BlockContext ctx) {
+	public CodeBuf visitBlock(BlockContext ctx) {
 		defers.push(new ArrayDeque<>());
 		curF.symTbl.pushScope();
 
-		byte[] cld = visitChildren(ctx);
+		CodeBuf cld = visitChildren(ctx);
 
 		if (!curF.returns) {
-			for (byte[] defer : defers.peek())
-				cld = concat(cld, defer);
+			for (CodeBuf defer : defers.peek())
+				cld.append(defer);
 		}
 
 		curF.symTbl.popScope();
@@ -263,27 +282,27 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 	//region var
 
 	@Override
-	public byte[] visitVarDecl(VarDeclContext ctx) {
+	public CodeBuf visitVarDecl(VarDeclContext ctx) {
 		String id = ttos(ctx.id);
 		visit(ctx.typ);
 		if (curF.symTbl.isDecl(id))
 			throw new BPLCErrSymRedeclared(ctx.id);
 
 		curF.symTbl.declLocal(id, curT);
-		return EMPTY;
+		return new CodeBuf();
 	}
 
 	@Override
-	public byte[] visitVarAssign(VarAssignContext ctx) {
+	public CodeBuf visitVarAssign(VarAssignContext ctx) {
 		if (!(ctx.lhs instanceof IdExprContext) && !(ctx.lhs instanceof DerefExprContext))
 			throw new BPLCErrUnassignable(TokenAdapter.from(ctx.lhs));
 
 		load = true;
 
-		byte[] rhs = visit(ctx.rhs);
+		CodeBuf rhs = visit(ctx.rhs);
 		Type rhs_t = popt();
 		load = false;
-		byte[] lhs = visit(ctx.lhs);
+		CodeBuf lhs = visit(ctx.lhs);
 		load = true;
 		Type lhs_t = popt();
 		if (lhs_t == Types.VOID)
@@ -293,18 +312,25 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		if (lhs_t != rhs_t)
 			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.getParent()), rhs_t, lhs_t);
 
-		return concat(lhs, rhs, ISTORE);
+		if (ctx.lhs instanceof IdExprContext) {
+			Symbol sym = curF.symTbl.get(ttos(((IdExprContext) ctx.lhs).val));
+			CodeBuf inc = increment(sym, ctx.rhs);
+			if (inc != null)
+				return inc;
+			return rhs.op(LSTORE).s32(sym.off);
+		}
+		return lhs.append(rhs).op(ISTORE);
 	}
 
 	@Override
-	public byte[] visitVarDeclAssign(VarDeclAssignContext ctx) {
+	public CodeBuf visitVarDeclAssign(VarDeclAssignContext ctx) {
 		String id = ttos(ctx.lhs);
 		visit(ctx.typ);
 		if (curF.symTbl.isDecl(id))
 			throw new BPLCErrSymRedeclared(ctx.lhs);
 
 		Symbol sym = curF.symTbl.declLocal(id, curT);
-		byte[] rhs = visit(ctx.rhs);
+		CodeBuf rhs = visit(ctx.rhs);
 		Type have = popt();
 		Type want = sym.type;
 		if (have == Types.VOID)
@@ -312,23 +338,23 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		if (have != want)
 			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.getParent()), have, want);
 
-		return concat(IPUSH, Marshal.bytesS64BE(sym.off), rhs, ISTORE);
+		return rhs.op(LSTORE).s32(sym.off);
 	}
 
 	@Override
-	public byte[] visitVarDeclAssignTI(VarDeclAssignTIContext ctx) {
+	public CodeBuf visitVarDeclAssignTI(VarDeclAssignTIContext ctx) {
 		String id = ttos(ctx.lhs);
 		if (curF.symTbl.isDecl(id))
 			throw new BPLCErrSymRedeclared(ctx.lhs);
 
-		byte[] rhs = visit(ctx.rhs);
+		CodeBuf rhs = visit(ctx.rhs);
 		Type type = popt();
 		if (type == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.rhs));
 
 		Symbol sym = curF.symTbl.declLocal(id, type);
 
-		return concat(IPUSH, Marshal.bytesS64BE(sym.off), rhs, ISTORE);
+		return rhs.op(LSTORE).s32(sym.off);
 	}
 
 	//endregion
@@ -336,7 +362,7 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 	//region func
 
 	@Override
-	public byte[] visitFuncDecl(FuncDeclContext ctx) {
+	public CodeBuf visitFuncDecl(FuncDeclContext ctx) {
 		if (!tStack.isEmpty())
 			throw new IllegalStateException("typeStack not empty on func decl start");
 
@@ -344,38 +370,40 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		List<Type> params = new ArrayList<>();
 		if (ctx.params != null) {
 			for (ParamContext pctx : ctx.params.param())
-				params.add(Types.lookup((ttos(pctx.typ))));
+				params.add(types.lookup((ttos(pctx.typ))));
 		}
 
 		curF = funcTbl.get(id, params);
 		curF.entry = fOff;
 		curF.returns = false;
+		tailCalls = !takesAddr(ctx.body);
 
-		byte[] params_b = visit(ctx.params);
-		byte[] body_b = visit(ctx.body);
+		CodeBuf params_b = visit(ctx.params);
+		CodeBuf body_b = visit(ctx.body);
 
 		if (!curF.returns) {
 			if (curF.type != Types.VOID)
 				throw new BPLCErrReturnMissing(ctx.stop);
 
-			byte[] ll = {};
-			for (Deque<byte[]> scope : defers) {
-				for (byte[] defer : scope)
-					ll = concat(ll, defer);
+			for (Deque<CodeBuf> scope : defers) {
+				for (CodeBuf defer : scope)
+					body_b.append(defer);
 			}
 
 			// Pushing -1 as return value for VOID, which is non-assignable (void not defined as type)
 			// and thus it will get popped off after the call for now
-			body_b = concat(body_b, ll, IPUSH, Marshal.bytesS64BE(-1), RET); //FIXME: temp hack
+			body_b.ipush(-1).op(RET); //FIXME: temp hack
 		}
 
-		byte[] res = concat(params_b, body_b);
-
+		CodeBuf res = new CodeBuf().line(ctx.start.getLine());
 		int nLocals = curF.symTbl.nLocals();
 		if (nLocals > 0)
-			res = concat(LOCALS, Marshal.bytesS32BE(nLocals), res);
+			res.locals(nLocals);
+		res.append(params_b).append(body_b);
+		curF.nLocals = nLocals;
+		curF.maxStack = res.maxDepth() - nLocals;
 
-		fOff += res.length;
+		fOff += res.length();
 
 		if (!tStack.isEmpty())
 			throw new IllegalStateException("typeStack not empty on func decl end: " + tStack);
@@ -384,14 +412,14 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 	}
 
 	@Override
-	public byte[] visitFuncCall(FuncCallContext ctx) {
+	public CodeBuf visitFuncCall(FuncCallContext ctx) {
 		String id = ttos(ctx.id);
 
 		int nArgs = 0;
 		if (ctx.args != null)
 			nArgs = ctx.args.arg().size();
 
-		byte[] args = isDeferred ? new byte[]{} : visit(ctx.args);
+		CodeBuf args = isDeferred ? new CodeBuf() : visit(ctx.args);
 
 		List<Type> arg_types = new ArrayList<>();
 		for (int i = 0; i < nArgs; i++) {
@@ -453,30 +481,44 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 
 		// Don't push the return type if the call was a stand-alone statement
 		if (ctx.getParent() instanceof DeferrableStmtContext)
-			return concat(args, CALL, Marshal.bytesS32BE(f.entry), Marshal.bytesS32BE(nArgs), POP);
+			return args.call(f, nArgs).op(POP);
 
 		pusht(f.type);
-		return concat(args, CALL, Marshal.bytesS32BE(f.entry), Marshal.bytesS32BE(nArgs));
+		if (ctx == tailCall) {
+			tailCall = null;
+			return args.tailCall(f, nArgs);
+		}
+		return args.call(f, nArgs);
+	}
+
+	static boolean takesAddr(ParseTree t) {
+		if (t instanceof RefExprContext)
+			return true;
+		for (int i = 0; i < t.getChildCount(); i++) {
+			if (takesAddr(t.getChild(i)))
+				return true;
+		}
+		return false;
 	}
 
 	@Override
-	public byte[] visitParamList(ParamListContext ctx) {
+	public CodeBuf visitParamList(ParamListContext ctx) {
 		return visitChildren(ctx);
 	}
 
 	@Override
-	public byte[] visitParam(ParamContext ctx) {
-		return EMPTY;
+	public CodeBuf visitParam(ParamContext ctx) {
+		return new CodeBuf();
 	}
 
 	@Override
-	public byte[] visitArgList(ArgListContext ctx) {
+	public CodeBuf visitArgList(ArgListContext ctx) {
 		return visitChildren(ctx);
 	}
 
 	@Override
-	public byte[] visitArg(ArgContext ctx) {
-		byte[] arg = visit(ctx.expr());
+	public CodeBuf visitArg(ArgContext ctx) {
+		CodeBuf arg = visit(ctx.expr());
 		Type type = popt();
 		if (type == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.expr()));
@@ -489,22 +531,22 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 	//region expr
 
 	@Override
-	public byte[] visitRefExpr(RefExprContext ctx) {
+	public CodeBuf visitRefExpr(RefExprContext ctx) {
 		if (!(ctx.rhs instanceof IdExprContext))
 			throw new BPLCErrUnaddressable(TokenAdapter.from(ctx.rhs));
 
 		load = false;
-		byte[] cld = visitChildren(ctx);
+		CodeBuf cld = visitChildren(ctx);
 		load = true;
 		Type type = popt();
-		type = Types.ref(type);
+		type = types.ref(type);
 		pusht(type);
-		return concat(cld, ADDR_OF);
+		return cld.op(ADDR_OF);
 	}
 
 	@Override
-	public byte[] visitDerefExpr(DerefExprContext ctx) {
-		byte[] cld = visit(ctx.rhs);
+	public CodeBuf visitDerefExpr(DerefExprContext ctx) {
+		CodeBuf cld = visit(ctx.rhs);
 		Type type = popt();
 		if (!(ctx.rhs instanceof IdExprContext)
 			&& !(ctx.rhs instanceof FuncCallExprContext)
@@ -514,17 +556,17 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 
 		if (!(type instanceof PtrType))
 			throw new BPLCErrInvalidDereference(TokenAdapter.from(ctx.rhs), type);
-		type = Types.deref((PtrType) type);
+		type = types.deref((PtrType) type);
 		pusht(type);
 		if (!load)
-			return concat(cld, ILOAD, RESOLVE);
-		return concat(cld, VAL_OF);
+			return cld.op(ILOAD).op(RESOLVE);
+		return cld.op(VAL_OF);
 	}
 
 	@Override
-	public byte[] visitBinOpExpr(BinOpExprContext ctx) {
-		byte[] lhs = visit(ctx.lhs);
-		byte[] rhs = visit(ctx.rhs);
+	public CodeBuf visitBinOpExpr(BinOpExprContext ctx) {
+		CodeBuf lhs = visit(ctx.lhs);
+		CodeBuf rhs = visit(ctx.rhs);
 		String op_str = ttos(ctx.op);
 		Type rhs_t = popt();
 		Type lhs_t = popt();
@@ -533,8 +575,8 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		if (rhs_t == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.rhs));
 		if (rhs_t != lhs_t)
-			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.lookup("int"), Types.lookup("int")));
-		pusht(Types.lookup("int"));
+			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.INT, Types.INT));
+		pusht(Types.INT);
 		byte op;
 		//fmt:off
 		switch (op_str) {
@@ -545,13 +587,17 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		default  : throw new IllegalStateException("unreachable");
 		}
 		//fmt:on
-		return concat(lhs, rhs, op);
+		if ((op == IADD || op == ISUB) && ctx.rhs instanceof IntExprContext) {
+			long k = Long.parseUnsignedLong(ttos(((IntExprContext) ctx.rhs).val), 10);
+			return lhs.op(IADDI).s64(op == IADD ? k : -k);
+		}
+		return lhs.append(rhs).op(op);
 	}
 
 	@Override
-	public byte[] visitCmpOpExpr(CmpOpExprContext ctx) {
-		byte[] lhs = visit(ctx.lhs);
-		byte[] rhs = visit(ctx.rhs);
+	public CodeBuf visitCmpOpExpr(CmpOpExprContext ctx) {
+		CodeBuf lhs = visit(ctx.lhs);
+		CodeBuf rhs = visit(ctx.rhs);
 		String op_str = ttos(ctx.op);
 		Type rhs_t = popt();
 		Type lhs_t = popt();
@@ -560,8 +606,8 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		if (rhs_t == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.rhs));
 		if (rhs_t != lhs_t)
-			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.lookup("int"), Types.lookup("int")));
-		pusht(Types.lookup("int"));
+			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.INT, Types.INT));
+		pusht(Types.INT);
 		byte op;
 		//fmt:off
 		switch (op_str) {
@@ -574,13 +620,13 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		default  : throw new IllegalStateException("unreachable");
 		}
 		//fmt:on
-		return concat(lhs, rhs, op);
+		return lhs.append(rhs).op(op);
 	}
 
 	@Override
-	public byte[] visitBoolOpExpr(BoolOpExprContext ctx) {
-		byte[] lhs = visit(ctx.lhs);
-		byte[] rhs = visit(ctx.rhs);
+	public CodeBuf visitBoolOpExpr(BoolOpExprContext ctx) {
+		CodeBuf lhs = visit(ctx.lhs);
+		CodeBuf rhs = visit(ctx.rhs);
 		String op_str = ttos(ctx.op);
 		Type rhs_t = popt();
 		Type lhs_t = popt();
@@ -589,8 +635,8 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		if (rhs_t == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.rhs));
 		if (rhs_t != lhs_t)
-			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.lookup("int"), Types.lookup("int")));
-		Type type = Types.lookup("int");
+			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.INT, Types.INT));
+		Type type = Types.INT;
 		pusht(type);
 		byte op;
 		int v0;
@@ -603,32 +649,25 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		}
 		//fmt:on
 
-		int off1 = rhs.length + 5 + 9 + 5;
-		int off2 = 9 + 5;
-		int off3 = 9;
-
-		return concat(
-			/* ll=lhs.length;  */
-			/* rl=rhs.length;  */
-			/* rel. offsets    */
-			/*               0 */ lhs,
-			/*              ll */ op, Marshal.bytesS32BE(off1),   // op(BRNE/BREQ) :L1
-			/*               5 */ rhs,
-			/*              rl */ op, Marshal.bytesS32BE(off2),   // op(BRNE/BREQ) :L1
-			/*               5 */ IPUSH, Marshal.bytesS64BE(v0),
-			/*               9 */ JMP, Marshal.bytesS32BE(off3),  // JMP  :END
-			/* L:L1          5 */ IPUSH, Marshal.bytesS64BE(v1)
-			/* L:END         9 */
-		);
+		boolean onTrue = op == BRNE;
+		Label l1 = new Label();
+		Label lEnd = new Label();
+		branch(ctx.lhs, lhs, onTrue, l1).append(rhs); // op(BRNE/BREQ) :L1
+		return branch(ctx.rhs, lhs, onTrue, l1)       // op(BRNE/BREQ) :L1
+			.ipush(v0)
+			.jump(JMP, lEnd)                           // JMP :END
+			.bind(l1)
+			.ipush(v1)
+			.bind(lEnd);
 	}
 
 	@Override
-	public byte[] visitFuncCallExpr(FuncCallExprContext ctx) {
+	public CodeBuf visitFuncCallExpr(FuncCallExprContext ctx) {
 		return visit(ctx.funcCall());
 	}
 
 	@Override
-	public byte[] visitStrExpr(StrExprContext ctx) {
+	public CodeBuf visitStrExpr(StrExprContext ctx) {
 		String val = Parse.ttos(ctx.val);
 		val = val.substring(1, val.length() - 1);
 		val = StringEscapeUtils.unescapeJava(val);
@@ -639,45 +678,34 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 			entry = new StaticStoreEntry();
 			byte[] data = val.getBytes(IO.UTF8);
 			entry.val = concat(Marshal.bytesS32BE(data.length), data);
-			for (StaticStoreEntry e : staticStore.values()) {
-				entry.off += e.val.length;
-			}
+			entry.off = dataLen;
+			dataLen += entry.val.length;
 			staticStore.put(val, entry);
 		}
 
-		byte[] off = Marshal.bytesS32BE(4 + entry.off);
-		pusht(Types.lookup("string"));
-		return concat(SPUSH, Marshal.bytesS32BE(Types.lookup("string").vm_type), off);
+		pusht(Types.STRING);
+		return new CodeBuf().op(SPUSH).s32(Types.STRING.vm_type).s32(4 + entry.off);
 	}
 
 	@Override
-	public byte[] visitIntExpr(IntExprContext ctx) {
+	public CodeBuf visitIntExpr(IntExprContext ctx) {
 		String val = Parse.ttos(ctx.val);
-		byte[] res = Marshal.bytesS64BE(Long.parseUnsignedLong(val, 10));
-		Type type = Types.lookup("int");
+		Type type = Types.INT;
 		pusht(type);
-		return concat(IPUSH, res);
+		return new CodeBuf().ipush(Long.parseUnsignedLong(val, 10));
 	}
 
 	@Override
-	public byte[] visitIdExpr(IdExprContext ctx) {
+	public CodeBuf visitIdExpr(IdExprContext ctx) {
 		String id = ttos(ctx.val);
 		if (!curF.symTbl.isDecl(id))
 			throw new BPLCErrSymUndeclared(ctx.val);
 		Symbol sym = curF.symTbl.get(id);
 		pusht(sym.type);
-		byte[] res = concat(IPUSH, Marshal.bytesS64BE(sym.off));
 		if (!load)
-			return res;
-
-		//fmt:off
-		switch (sym.type.name) { // TODO
-		case "string": res = concat(res, SLOAD); break;
-		default      : res = concat(res, ILOAD); break;
-		}
-		//fmt:on
+			return new CodeBuf().ipush(sym.off);
 
-		return res;
+		return new CodeBuf().op(LLOAD).s32(sym.off);
 	}
 
 	//endregion
@@ -685,19 +713,19 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 	//region type
 
 	@Override
-	public byte[] visitIdType(IdTypeContext ctx) {
+	public CodeBuf visitIdType(IdTypeContext ctx) {
 		String type_str = ttos(ctx.id);
-		curT = Types.lookup(type_str);
+		curT = types.lookup(type_str);
 		if (curT == null)
 			throw new BPLCErrTypeUndeclared(ctx.id);
-		return EMPTY;
+		return new CodeBuf();
 	}
 
 	@Override
-	public byte[] visitPtrType(PtrTypeContext ctx) {
+	public CodeBuf visitPtrType(PtrTypeContext ctx) {
 		visitChildren(ctx);
-		curT = Types.ref(curT);
-		return EMPTY;
+		curT = types.ref(curT);
+		return new CodeBuf();
 	}
 
 	//endregion
@@ -705,31 +733,89 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 	//region aggregate, default, visit
 
 	@Override
-	protected byte[] aggregateResult(byte[] agg, byte[] nxt) {
+	protected CodeBuf aggregateResult(CodeBuf agg, CodeBuf nxt) {
 		if (agg == null) return nxt;
 		if (nxt == null) return agg;
-		return concat(agg, nxt);
+		return agg.append(nxt);
 	}
 
 	@Override
-	protected byte[] defaultResult() {
-		return EMPTY;
+	protected CodeBuf defaultResult() {
+		return new CodeBuf();
 	}
 
 	@Override
-	public byte[] visit(ParseTree t) {
+	public CodeBuf visit(ParseTree t) {
 		return t == null ? defaultResult() : t.accept(this);
 	}
 
 	//endregion
 
+	//region peephole
+
+	// Emits the conditional branch for the condition at the end of buf. A
+	// trailing int compare is fused into a single compare-and-branch instead
+	// of materializing 0/1 first.
+	private CodeBuf branch(ParseTree condCtx, CodeBuf buf, boolean onTrue, Label to) {
+		if (!(condCtx instanceof CmpOpExprContext))
+			return buf.jump(onTrue ? BRNE : BREQ, to);
+
+		byte cmp = buf.last();
+		byte br;
+		//fmt:off
+		switch (cmp) {
+		case ILT : br = onTrue ? BRLT  : BRGTE; break;
+		case IGT : br = onTrue ? BRGT  : BRLTE; break;
+		case ILTE: br = onTrue ? BRLTE : BRGT;  break;
+		case IGTE: br = onTrue ? BRGTE : BRLT;  break;
+		case IEQ : br = onTrue ? BRIEQ : BRINE; break;
+		case INEQ: br = onTrue ? BRINE : BRIEQ; break;
+		default  : throw new IllegalStateException("unreachable");
+		}
+		//fmt:on
+		buf.truncate(buf.length() - 1);
+		return buf.jump(br, to);
+	}
+
+	// Returns IINC for 'x = x + k', 'x = k + x' and 'x = x - k', null otherwise.
+	private CodeBuf increment(Symbol sym, ExprContext rhs) {
+		if (!(rhs instanceof BinOpExprContext))
+			return null;
+
+		BinOpExprContext bin = (BinOpExprContext) rhs;
+		String op_str = ttos(bin.op);
+		ExprContext var;
+		ExprContext lit;
+		if (bin.lhs instanceof IdExprContext && bin.rhs instanceof IntExprContext) {
+			var = bin.lhs;
+			lit = bin.rhs;
+		} else if ("+".equals(op_str) && bin.lhs instanceof IntExprContext && bin.rhs instanceof IdExprContext) {
+			var = bin.rhs;
+			lit = bin.lhs;
+		} else {
+			return null;
+		}
+
+		if (!"+".equals(op_str) && !"-".equals(op_str))
+			return null;
+		if (curF.symTbl.get(ttos(((IdExprContext) var).val)) != sym)
+			return null;
+
+		long k = Long.parseUnsignedLong(ttos(((IntExprContext) lit).val), 10);
+		if ("-".equals(op_str))
+			k = -k;
+		return new CodeBuf().op(IINC).s32(sym.off).s64(k);
+	}
+
+	//endregion
+
 	private void pusht(Type t) {
 		tStack.push(t);
 	}
 
 	private Type popt() {
-		StackTraceElement ste = Thread.currentThread().getStackTrace()[2];
 		if (tStack.isEmpty()) {
+			StackTraceElement ste = Thread.currentThread().getStackTrace()[2];
 			throw new IllegalStateException(String.format(
 				"%30s :: POP EMPTY STACK\n", ste.getMethodName()
 			));
@@ -737,15 +823,6 @@ public class BCVisitor extends BPLBaseVisitor<byte[]> {
 		return tStack.pop();
 	}
 
-	private int nUnresolved() {
-		int res = 0;
-		for (Func f : funcTbl.flatten()) {
-			if (f.entry == Func.ENTRY_UNRESOLVED)
-				res++;
-		}
-		return res;
-	}
-
 	//region StaticStoreEntry
 
 	private static class StaticStoreEntry {
@@ -0,0 +1,77 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.compiler;
+
+import dk.skrypalle.bpl.util.*;
+import dk.skrypalle.bpl.vm.*;
+
+import static dk.skrypalle.bpl.vm.BcFile.*;
+import static dk.skrypalle.bpl.vm.Bytecode.*;
+
+// Writes linked images as .bplbc files, see BcFile for the layout. The
+// sections are cut out of the image unchanged, so its addresses stay valid.
+public final class BcWriter {
+
+	public static byte[] write(byte[] image, int[] lines) {
+		int dataLen = Marshal.s32BE(image, 0);
+		int tbl = VM.HEADER + dataLen;
+		int funcLen = Marshal.s32BE(image, tbl)*FUNC_ENTRY_LEN;
+		int codeStart = tbl + 4 + funcLen;
+
+		int[] off = new int[N_SECTIONS];
+		int[] len = new int[N_SECTIONS];
+		len[CODE] = image.length - codeStart;
+		len[DATA] = dataLen;
+		len[FUNC] = funcLen;
+		len[LINE] = lines.length/2*LINE_LEN;
+		off[CODE] = HEADER_LEN;
+		for (int i = 1; i < N_SECTIONS; i++)
+			off[i] = off[i - 1] + len[i - 1];
+
+		byte[] res = new byte[off[LINE] + len[LINE]];
+		int at = 0;
+		at = put(res, at, Marshal.bytesS32BE(MAGIC), 0, 4);
+		at = put(res, at, Marshal.bytesS32BE(VERSION), 0, 4);
+		for (int i = 0; i < N_SECTIONS; i++) {
+			at = put(res, at, Marshal.bytesS32BE(off[i]), 0, 4);
+			at = put(res, at, Marshal.bytesS32BE(len[i]), 0, 4);
+		}
+		at = put(res, at, image, codeStart, len[CODE]);
+		at = put(res, at, image, VM.HEADER, dataLen);
+		at = put(res, at, image, tbl + 4, funcLen);
+		for (int v : lines)
+			at = put(res, at, Marshal.bytesS32BE(v), 0, 4);
+		return res;
+	}
+
+	private static int put(byte[] dst, int at, byte[] src, int off, int len) {
+		System.arraycopy(src, off, dst, at, len);
+		return at + len;
+	}
+
+	private BcWriter() { /**/ }
+
+}
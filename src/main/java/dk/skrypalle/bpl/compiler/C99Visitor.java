@@ -39,6 +39,7 @@ import static dk.skrypalle.bpl.util.Parse.*;
 public class C99Visitor extends BPLBaseVisitor<String> {
 
 	private final FuncTbl              funcTbl;
+	private final TypeUniverse         types;
 	private final Deque<Type>          tStack;
 	private final Deque<Deque<String>> defers;
 
@@ -49,8 +50,15 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 	private Func curF;
 	private Type curT;
 
-	public C99Visitor(FuncTbl funcTbl) {
+	private boolean         tailCalls;   // curF never takes an address, so its params may be reassigned
+	private FuncCallContext tailCall;    // call in tail position of the return being visited
+	private String          tailJump;    // loop back-edge replacing a self tail call
+	private boolean         tailLoop;    // curF's body needs the tail call label
+	private List<String>    paramIds;
+
+	public C99Visitor(FuncTbl funcTbl, TypeUniverse types) {
 		this.funcTbl = funcTbl;
+		this.types = types;
 		this.tStack = new ArrayDeque<>();
 		this.defers = new ArrayDeque<>();
 		isDeferred = false;
@@ -170,7 +178,13 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 	@Override
 	public String visitRet(RetContext ctx) {
 		curF.returns = true;
+		boolean pendingDefers = false;
+		for (Deque<String> scope : defers)
+			pendingDefers |= !scope.isEmpty();
+		if (tailCalls && !pendingDefers && ctx.expr() instanceof FuncCallExprContext)
+			tailCall = ((FuncCallExprContext) ctx.expr()).funcCall();
 		String val = visitChildren(ctx);
+		tailCall = null;
 		Type have;
 		Type want = curF.type;
 
@@ -188,6 +202,12 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 				buf.append(defer);
 		}
 
+		if (tailJump != null) {
+			String jump = tailJump;
+			tailJump = null;
+			return jump;
+		}
+
 		return buf + "return " + val;
 	}
 
@@ -228,8 +248,8 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 		Type cond_t = popt();
 		if (cond_t == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.cond));
-		if (cond_t != Types.lookup("int"))
-			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.cond), cond_t, Types.lookup("int"));
+		if (cond_t != Types.INT)
+			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.cond), cond_t, Types.INT);
 
 		curF.returns = false;
 		String onTrue = visit(ctx.onTrue).trim();
@@ -253,8 +273,8 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 		Type cond_t = popt();
 		if (cond_t == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.cond));
-		if (cond_t != Types.lookup("int"))
-			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.cond), cond_t, Types.lookup("int"));
+		if (cond_t != Types.INT)
+			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx.cond), cond_t, Types.INT);
 
 		return "while (" + cond_str + ") " + visit(ctx.body);
 	}
@@ -371,6 +391,13 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 			throw new NullPointerException(id + " :: " + params);
 		curF.entry = -1; // unused by C99 target
 		curF.returns = false;
+		tailCalls = !"main".equals(id) && !BCVisitor.takesAddr(ctx.body);
+		tailLoop = false;
+		paramIds = new ArrayList<>();
+		if (ctx.params != null) {
+			for (ParamContext pctx : ctx.params.param())
+				paramIds.add(ttos(pctx.id));
+		}
 
 		String params_s = visit(ctx.params);
 		String body_s = visit(ctx.body);
@@ -381,6 +408,8 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 		String ret_t = curF.type.c_type; // FIXME temporary to please GCC
 		if ("main".equals(id))
 			ret_t = "int";
+		if (tailLoop)
+			body_s = "{\n__$tail:;\n" + body_s + "}";
 		String res = ret_t + " " + mangle(curF) + "(" + params_s + ")" + body_s;
 
 		if (!tStack.isEmpty())
@@ -397,7 +426,18 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 		if (ctx.args != null)
 			nArgs = ctx.args.arg().size();
 
-		String args_str = isDeferred ? deferredArgs : visit(ctx.args);
+		boolean tail = ctx == tailCall;
+		List<String> argv = new ArrayList<>();
+		String args_str;
+		if (isDeferred) {
+			args_str = deferredArgs;
+		} else if (tail) {
+			for (int i = 0; i < nArgs; i++)
+				argv.add(visit(ctx.args.arg(i)));
+			args_str = String.join(", ", argv);
+		} else {
+			args_str = visit(ctx.args);
+		}
 		List<Type> arg_types = new ArrayList<>();
 		for (int i = 0; i < nArgs; i++) {
 			Type t = popt();
@@ -460,6 +500,20 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 		if (!(ctx.getParent() instanceof DeferrableStmtContext))
 			pusht(f.type);
 
+		// A self tail call re-binds the params and jumps back to the top of
+		// the body. All args are evaluated before any param is overwritten.
+		if (tail && f == curF) {
+			StringBuilder jump = new StringBuilder("{\n");
+			for (int i = 0; i < nArgs; i++)
+				jump.append(arg_types.get(i).c_type).append(" __$tail_param_").append(i).append(" = ").append(argv.get(i)).append(";\n");
+			for (int i = 0; i < nArgs; i++)
+				jump.append(paramIds.get(i)).append(" = __$tail_param_").append(i).append(";\n");
+			jump.append("goto __$tail;\n}");
+			tailJump = jump.toString();
+			tailLoop = true;
+			return "";
+		}
+
 		return mangle(f) + "(" + args_str + ")";
 	}
 
@@ -500,7 +554,7 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 			throw new BPLCErrUnaddressable(TokenAdapter.from(ctx.rhs));
 		String cld = visit(ctx.rhs);
 		Type type = popt();
-		type = Types.ref(type);
+		type = types.ref(type);
 		pusht(type);
 		return "(&" + cld + ")";
 	}
@@ -517,7 +571,7 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 
 		if (!(type instanceof PtrType))
 			throw new BPLCErrInvalidDereference(TokenAdapter.from(ctx.rhs), type);
-		type = Types.deref((PtrType) type);
+		type = types.deref((PtrType) type);
 		pusht(type);
 		return "(*" + cld + ")";
 	}
@@ -534,8 +588,8 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 		if (rhs_t == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.rhs));
 		if (rhs_t != lhs_t)
-			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.lookup("int"), Types.lookup("int")));
-		pusht(Types.lookup("int"));
+			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.INT, Types.INT));
+		pusht(Types.INT);
 		return lhs + op_str + rhs;
 	}
 
@@ -551,8 +605,8 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 		if (rhs_t == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.rhs));
 		if (rhs_t != lhs_t)
-			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.lookup("int"), Types.lookup("int")));
-		pusht(Types.lookup("int"));
+			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.INT, Types.INT));
+		pusht(Types.INT);
 		return lhs + op_str + rhs;
 	}
 
@@ -568,8 +622,8 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 		if (rhs_t == Types.VOID)
 			throw new BPLCErrVoidAsValue(TokenAdapter.from(ctx.rhs));
 		if (rhs_t != lhs_t)
-			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.lookup("int"), Types.lookup("int")));
-		pusht(Types.lookup("int"));
+			throw new BPLCErrTypeMismatch(TokenAdapter.from(ctx), Arrays.asList(rhs_t, lhs_t), Arrays.asList(Types.INT, Types.INT));
+		pusht(Types.INT);
 		return "(" + lhs + op_str + rhs + ")";
 	}
 
@@ -581,7 +635,7 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 	@Override
 	public String visitStrExpr(StrExprContext ctx) {
 		String val = ttos(ctx.val);
-		pusht(Types.lookup("string"));
+		pusht(Types.STRING);
 		return val;
 	}
 
@@ -590,7 +644,10 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 		BigInteger i = new BigInteger(ttos(ctx.val));
 		String val = i.toString();
 
-		pusht(Types.lookup("int"));
+		pusht(Types.INT);
+		// literals past the signed range wrap around, as they do in the VM
+		if (i.bitLength() > 63)
+			return "((long long) " + val + "ULL)";
 		return val + "LL";
 	}
 
@@ -611,7 +668,7 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 	@Override
 	public String visitIdType(IdTypeContext ctx) {
 		String type_str = ttos(ctx.id);
-		curT = Types.lookup(type_str);
+		curT = types.lookup(type_str);
 		if (curT == null)
 			throw new BPLCErrTypeUndeclared(ctx.id);
 		return "";
@@ -620,7 +677,7 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 	@Override
 	public String visitPtrType(PtrTypeContext ctx) {
 		visitChildren(ctx);
-		curT = Types.ref(curT);
+		curT = types.ref(curT);
 		return "";
 	}
 
@@ -674,8 +731,8 @@ public class C99Visitor extends BPLBaseVisitor<String> {
 	}
 
 	private Type popt() {
-		StackTraceElement ste = Thread.currentThread().getStackTrace()[2];
 		if (tStack.isEmpty()) {
+			StackTraceElement ste = Thread.currentThread().getStackTrace()[2];
 			throw new IllegalStateException(String.format(
 				"%30s :: POP EMPTY STACK\n", ste.getMethodName()
 			));
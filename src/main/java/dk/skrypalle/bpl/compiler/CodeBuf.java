@@ -0,0 +1,423 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.compiler;
+
+import dk.skrypalle.bpl.compiler.type.*;
+
+import java.util.*;
+
+import static dk.skrypalle.bpl.vm.Bytecode.*;
+
+// Growable byte code buffer. Appending is amortized O(1) per byte, so a
+// visitor can glue fragments together without re-copying the prefix.
+//
+// Jumps are emitted against Labels. A jump to an unbound label leaves a
+// fixup that is patched with the relative offset once the label is bound.
+// Relative offsets do not depend on where the fragment ends up, so a
+// fragment can be appended anywhere after all of its labels are bound.
+//
+// Calls are emitted as relocations against the callee. The absolute target
+// is only known once every function is laid out, so link() patches them in
+// after the whole program has been emitted.
+//
+// Every op also tracks the stack depth relative to the start of the
+// fragment. Depths compose on append and labels carry the depth of their
+// jumps, so the max. depth of a function body is known once it is emitted.
+//
+// Source lines are marked at the address where their code starts and move
+// along on append, giving the line table of the final image.
+public final class CodeBuf {
+
+	private byte[] buf;
+	private int    len;
+	private int    pending;
+
+	private int     depth;
+	private int     maxDepth;
+	private boolean reachable;
+	private int     lastAt;    // start of the last op, -1 if unknown
+	private int     lastDepth; // depth before the last op
+
+	private int[]  relocAt;
+	private Func[] relocTo;
+	private int    nRelocs;
+
+	private int[] lineAt;
+	private int[] lineNo;
+	private int   nLines;
+
+	public CodeBuf() {
+		this.buf = new byte[16];
+		this.len = 0;
+		this.pending = 0;
+		this.depth = 0;
+		this.maxDepth = 0;
+		this.reachable = true;
+		this.lastAt = -1;
+		this.lastDepth = 0;
+		this.relocAt = null;
+		this.relocTo = null;
+		this.nRelocs = 0;
+		this.lineAt = null;
+		this.lineNo = null;
+		this.nLines = 0;
+	}
+
+	public int length() {
+		return len;
+	}
+
+	public int depth() {
+		return depth;
+	}
+
+	public int maxDepth() {
+		return maxDepth;
+	}
+
+	public byte last() {
+		if (len == 0)
+			throw new IllegalStateException("empty code buffer");
+		return buf[len - 1];
+	}
+
+	// Drops the last op, keeping the max. depth it may have reached.
+	public void truncate(int newLen) {
+		if (newLen < 0 || newLen > len)
+			throw new IndexOutOfBoundsException("truncate " + newLen + " of " + len);
+		if (newLen == len)
+			return;
+		if (newLen != lastAt)
+			throw new IllegalStateException("only the last op can be truncated");
+		depth = lastDepth;
+		lastAt = -1;
+		len = newLen;
+		while (nRelocs > 0 && relocAt[nRelocs - 1] + 4 > len)
+			nRelocs--;
+		while (nLines > 0 && lineAt[nLines - 1] > len)
+			nLines--;
+	}
+
+	//region emit
+
+	public CodeBuf op(byte op) {
+		return emit(op, effect(op));
+	}
+
+	public CodeBuf locals(int n) {
+		return emit(LOCALS, n).s32(n);
+	}
+
+	public CodeBuf print(int n) {
+		return emit(PRINT, -n).s32(n);
+	}
+
+	public CodeBuf s8(int v) {
+		ensure(1);
+		buf[len++] = (byte) v;
+		return this;
+	}
+
+	public CodeBuf s16(int v) {
+		ensure(2);
+		buf[len++] = (byte) (v >> 8);
+		buf[len++] = (byte) v;
+		return this;
+	}
+
+	public CodeBuf s32(int v) {
+		ensure(4);
+		putS32(len, v);
+		len += 4;
+		return this;
+	}
+
+	public CodeBuf s64(long v) {
+		ensure(8);
+		for (int i = 0; i < 8; i++)
+			buf[len + i] = (byte) (v >> ((7 - i)*8));
+		len += 8;
+		return this;
+	}
+
+	public CodeBuf bytes(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, len, b.length);
+		len += b.length;
+		return this;
+	}
+
+	public CodeBuf append(CodeBuf other) {
+		if (other.pending > 0)
+			throw new IllegalStateException("appending code with unbound labels");
+		if (reachable) {
+			maxDepth = Math.max(maxDepth, depth + other.maxDepth);
+			lastDepth = depth + other.lastDepth;
+			depth += other.depth;
+			reachable = other.reachable;
+		}
+		if (other.lastAt >= 0)
+			lastAt = len + other.lastAt;
+		ensure(other.len);
+		System.arraycopy(other.buf, 0, buf, len, other.len);
+		for (int i = 0; i < other.nRelocs; i++)
+			reloc(len + other.relocAt[i], other.relocTo[i]);
+		for (int i = 0; i < other.nLines; i++)
+			mark(len + other.lineAt[i], other.lineNo[i]);
+		len += other.len;
+		return this;
+	}
+
+	// Pushes v with the shortest op that holds it
+	public CodeBuf ipush(long v) {
+		if (v >= 0 && v <= 3)
+			return op((byte) (IPUSH_0 + v));
+		if (v == (byte) v)
+			return op(IPUSH8).s8((int) v);
+		if (v == (short) v)
+			return op(IPUSH16).s16((int) v);
+		if (v == (int) v)
+			return op(IPUSH32).s32((int) v);
+		return op(IPUSH).s64(v);
+	}
+
+	public CodeBuf call(Func f, int nArgs) {
+		emit(CALL, 1 - nArgs);
+		reloc(len, f);
+		return s32(0).s32(nArgs);
+	}
+
+	public CodeBuf tailCall(Func f, int nArgs) {
+		emit(TAILCALL, 1 - nArgs);
+		reloc(len, f);
+		return s32(0).s32(nArgs);
+	}
+
+	//endregion
+
+	//region labels
+
+	public CodeBuf jump(byte op, Label l) {
+		emit(op, op == JMP ? 0 : op == BREQ || op == BRNE ? -1 : -2);
+		if (reachable)
+			l.reach(depth);
+		if (op == JMP)
+			reachable = false;
+		if (l.pos >= 0)
+			return s32(l.pos - (len + 4));
+
+		l.fixup(len);
+		pending++;
+		return s32(0);
+	}
+
+	public CodeBuf bind(Label l) {
+		if (l.pos >= 0)
+			throw new IllegalStateException("label bound twice");
+		l.pos = len;
+		if (reachable)
+			l.reach(depth); // fall through
+		if (l.depth != Label.UNREACHED) {
+			depth = l.depth;
+			reachable = true;
+		}
+		for (int i = 0; i < l.nFixups; i++)
+			putS32(l.fixups[i], l.pos - (l.fixups[i] + 4));
+		pending -= l.nFixups;
+		l.nFixups = 0;
+		return this;
+	}
+
+	public static final class Label {
+		private static final int UNREACHED = Integer.MIN_VALUE;
+
+		private int   pos     = -1;
+		private int[] fixups  = new int[2];
+		private int   nFixups = 0;
+		private int   depth   = UNREACHED;
+
+		private void reach(int d) {
+			if (depth == UNREACHED)
+				depth = d;
+			else if (depth != d)
+				throw new IllegalStateException("inconsistent stack depth at label: " + depth + " vs. " + d);
+		}
+
+		private void fixup(int at) {
+			if (nFixups == fixups.length)
+				fixups = Arrays.copyOf(fixups, nFixups*2);
+			fixups[nFixups++] = at;
+		}
+	}
+
+	//endregion
+
+	//region lines
+
+	// Marks the code emitted next as belonging to a source line
+	public CodeBuf line(int line) {
+		mark(len, line);
+		return this;
+	}
+
+	// Returns the line table as (address, line) pairs in address order
+	public int[] lines() {
+		int[] res = new int[nLines*2];
+		for (int i = 0; i < nLines; i++) {
+			res[i*2] = lineAt[i];
+			res[i*2 + 1] = lineNo[i];
+		}
+		return res;
+	}
+
+	// A later mark at the same address wins, i.e. the innermost statement
+	private void mark(int at, int line) {
+		if (nLines > 0 && lineAt[nLines - 1] == at) {
+			lineNo[nLines - 1] = line;
+			return;
+		}
+		if (nLines > 0 && lineNo[nLines - 1] == line)
+			return;
+		if (lineAt == null) {
+			lineAt = new int[4];
+			lineNo = new int[4];
+		} else if (nLines == lineAt.length) {
+			lineAt = Arrays.copyOf(lineAt, nLines*2);
+			lineNo = Arrays.copyOf(lineNo, nLines*2);
+		}
+		lineAt[nLines] = at;
+		lineNo[nLines] = line;
+		nLines++;
+	}
+
+	//endregion
+
+	//region relocations
+
+	public CodeBuf link() {
+		for (int i = 0; i < nRelocs; i++) {
+			Func f = relocTo[i];
+			if (f.entry == Func.ENTRY_UNRESOLVED)
+				throw new IllegalStateException("unresolved call target " + f.id);
+			putS32(relocAt[i], f.entry);
+		}
+		nRelocs = 0;
+		return this;
+	}
+
+	private void reloc(int at, Func f) {
+		if (relocAt == null) {
+			relocAt = new int[4];
+			relocTo = new Func[4];
+		} else if (nRelocs == relocAt.length) {
+			relocAt = Arrays.copyOf(relocAt, nRelocs*2);
+			relocTo = Arrays.copyOf(relocTo, nRelocs*2);
+		}
+		relocAt[nRelocs] = at;
+		relocTo[nRelocs] = f;
+		nRelocs++;
+	}
+
+	//endregion
+
+	public byte[] toArray() {
+		if (pending > 0)
+			throw new IllegalStateException("code has unbound labels");
+		if (nRelocs > 0)
+			throw new IllegalStateException("code has unlinked calls");
+		return Arrays.copyOf(buf, len);
+	}
+
+	private CodeBuf emit(byte op, int effect) {
+		ensure(1);
+		lastAt = len;
+		lastDepth = depth;
+		buf[len++] = op;
+		depth += effect;
+		maxDepth = Math.max(maxDepth, depth);
+		if (op == RET || op == TAILCALL || op == HALT)
+			reachable = false;
+		return this;
+	}
+
+	// Stack effect of the ops that take no count operand
+	private static int effect(byte op) {
+		switch (op) {
+		case NOP:
+		case ILOAD:
+		case SLOAD:
+		case ADDR_OF:
+		case VAL_OF:
+		case RESOLVE:
+		case IADDI:
+		case IINC:
+		case HALT:
+			return 0;
+		case IPUSH:
+		case IPUSH_0:
+		case IPUSH_1:
+		case IPUSH_2:
+		case IPUSH_3:
+		case IPUSH8:
+		case IPUSH16:
+		case IPUSH32:
+		case SPUSH:
+		case LLOAD:
+			return 1;
+		case POP:
+		case IADD:
+		case ISUB:
+		case IMUL:
+		case IDIV:
+		case ILT:
+		case IGT:
+		case ILTE:
+		case IGTE:
+		case IEQ:
+		case INEQ:
+		case LSTORE:
+		case RET:
+			return -1;
+		case ISTORE:
+			return -2;
+		default:
+			throw new IllegalArgumentException(String.format("op 0x%02x needs a dedicated emit method", op));
+		}
+	}
+
+	private void putS32(int at, int v) {
+		buf[at] = (byte) (v >> 24);
+		buf[at + 1] = (byte) (v >> 16);
+		buf[at + 2] = (byte) (v >> 8);
+		buf[at + 3] = (byte) v;
+	}
+
+	private void ensure(int n) {
+		if (len + n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length*2, len + n));
+	}
+
+}
@@ -37,13 +37,15 @@ public class FuncResolvePass extends BPLBaseVisitor<FuncTbl> {
 
 	private static final FuncTbl EMPTY = new FuncTbl();
 
-	private final FuncTbl funcTbl;
+	private final FuncTbl      funcTbl;
+	private final TypeUniverse types;
 
 	private Func curF;
 	private Type curT;
 
-	public FuncResolvePass() {
-		funcTbl = new FuncTbl();
+	public FuncResolvePass(TypeUniverse types) {
+		this.funcTbl = new FuncTbl();
+		this.types = types;
 	}
 
 	@Override
@@ -54,8 +56,8 @@ public class FuncResolvePass extends BPLBaseVisitor<FuncTbl> {
 			throw new IllegalStateException("no main function found"); // TODO
 		if (funcTbl.hasOverloads("main"))
 			throw new IllegalStateException("main function cannot be overloaded"); // TODO
-		if (funcTbl.getFirst("main").type != Types.lookup("int"))
-			throw new IllegalStateException("main function must return " + Types.lookup("int")); // TODO
+		if (funcTbl.getFirst("main").type != Types.INT)
+			throw new IllegalStateException("main function must return " + Types.INT); // TODO
 
 		return funcTbl;
 	}
@@ -95,7 +97,7 @@ public class FuncResolvePass extends BPLBaseVisitor<FuncTbl> {
 	@Override
 	public FuncTbl visitIdType(IdTypeContext ctx) {
 		String type_str = ttos(ctx.id);
-		curT = Types.lookup(type_str);
+		curT = types.lookup(type_str);
 		if (curT == null)
 			throw new BPLCErrTypeUndeclared(ctx.id);
 
@@ -105,7 +107,7 @@ public class FuncResolvePass extends BPLBaseVisitor<FuncTbl> {
 	@Override
 	public FuncTbl visitPtrType(PtrTypeContext ctx) {
 		visitChildren(ctx);
-		curT = Types.ref(curT);
+		curT = types.ref(curT);
 		return funcTbl;
 	}
 
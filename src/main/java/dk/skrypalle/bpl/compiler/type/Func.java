@@ -36,6 +36,8 @@ public final class Func {
 	public boolean returns;
 	//	public List<DataType> params = new ArrayList<>();
 	public int entry = ENTRY_UNRESOLVED;
+	public int nLocals;
+	public int maxStack; // max. operand depth above the locals
 
 	@Override
 	public String toString() {
@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.compiler.type;
+
+import java.util.concurrent.*;
+
+// Interns the types of one compilation, so that the same type is always the
+// same instance. Primitives are shared, pointer types are created on first
+// use. Their vm_type is derived from the pointee (see Types), so it does not
+// depend on the order in which they were created, and concurrent
+// compilations in separate universes never touch shared state.
+public final class TypeUniverse {
+
+	private final ConcurrentMap<Integer, Type> ptrs;
+
+	public TypeUniverse() {
+		this.ptrs = new ConcurrentHashMap<>();
+	}
+
+	public Type lookup(String name) {
+		int depth = 0;
+		while (depth < name.length() && name.charAt(depth) == '^')
+			depth++;
+		Type t = Types.primitive(name.substring(depth));
+		if (t == null)
+			return null;
+		for (int i = 0; i < depth; i++)
+			t = ref(t);
+		return t;
+	}
+
+	public Type lookup(int vm_type) {
+		if (vm_type < 0)
+			return null;
+		Type t = Types.primitive(Types.base(vm_type));
+		if (t == null)
+			return null;
+		for (int i = Types.depth(vm_type); i > 0; i--)
+			t = ref(t);
+		return t;
+	}
+
+	public Type ref(Type to) {
+		int vm_type = Types.ptr(to.vm_type);
+		Type t = ptrs.get(vm_type);
+		if (t == null) {
+			Type n = new PtrType(vm_type, to);
+			t = ptrs.putIfAbsent(vm_type, n);
+			if (t == null)
+				t = n;
+		}
+		return t;
+	}
+
+	public Type deref(PtrType from) {
+		return from.to;
+	}
+
+}
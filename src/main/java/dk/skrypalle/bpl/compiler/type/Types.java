@@ -25,54 +25,46 @@
 
 package dk.skrypalle.bpl.compiler.type;
 
-import java.util.*;
-
 public final class Types {
 
-	public static final Type VOID = new Type("", -1, "void");
+	// A vm_type handle is depth<<PTR_SHIFT | base, where base is the id of a
+	// primitive and depth the number of pointer levels above it.
+	public static final int PTR_SHIFT = 16;
+	public static final int BASE_MASK = (1 << PTR_SHIFT) - 1;
+	public static final int MAX_DEPTH = Integer.MAX_VALUE >>> PTR_SHIFT;
 
-	private static final Map<String, Type>  fwd;
-	private static final Map<Integer, Type> rev;
+	public static final Type VOID   = new Type("", -1, "void");
+	public static final Type INT    = new Type("int", 0, "int64_t");
+	public static final Type STRING = new Type("string", 1, "char*");
 
-	static {
-		fwd = new HashMap<>();
-		rev = new HashMap<>();
-		newPrimitive("int", "int64_t");
-		newPrimitive("string", "char*");
-	}
+	private static final Type[] primitives = {INT, STRING};
 
-	public static Type lookup(String name) {
-		return fwd.get(name);
+	public static int ptr(int vm_type) {
+		if (depth(vm_type) == MAX_DEPTH)
+			throw new IllegalArgumentException("pointer depth overflow: " + vm_type);
+		return vm_type + (1 << PTR_SHIFT);
 	}
 
-	public static Type lookup(int vm_type) {
-		return rev.get(vm_type);
+	public static int depth(int vm_type) {
+		return vm_type >>> PTR_SHIFT;
 	}
 
-	public static Type ref(Type to) {
-		Type t = lookup("^" + to.name);
-		if (t == null) {
-			t = new PtrType(fwd.size(), to);
-			fwd.put(t.name, t);
-			rev.put(t.vm_type, t);
-		}
-
-		return t;
+	public static int base(int vm_type) {
+		return vm_type & BASE_MASK;
 	}
 
-	public static Type deref(PtrType from) {
-		Type t = lookup(from.name.substring(1));
-		if (t == null) {
-			throw new IllegalStateException("after deref: base-type not found");
+	static Type primitive(String name) {
+		for (Type t : primitives) {
+			if (t.name.equals(name))
+				return t;
 		}
-		return t;
+		return null;
 	}
 
-	private static Type newPrimitive(String name, String c_name) {
-		Type t = new Type(name, fwd.size(), c_name);
-		fwd.put(name, t);
-		rev.put(t.vm_type, t);
-		return t;
+	static Type primitive(int base) {
+		if (base < 0 || base >= primitives.length)
+			return null;
+		return primitives[base];
 	}
 
 	private Types() { /**/ }
@@ -27,6 +27,13 @@ package dk.skrypalle.bpl.util;
 
 public final class Hex {
 
+	private static final byte[] DIGITS = {
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f',
+	};
+
+	// Max. number of bytes put writes
+	public static final int MAX_LEN = 16;
+
 	public static String dump(byte[] b) {
 		return dump(b, 0, b.length);
 	}
@@ -88,6 +95,16 @@ public final class Hex {
 		return buf.toString();
 	}
 
+	// Writes val like String.format("%x", val) as ASCII into b at pos and
+	// returns the position after the last digit.
+	public static int put(byte[] b, int pos, long val) {
+		int n = val == 0 ? 1 : (67 - Long.numberOfLeadingZeros(val))/4;
+		int end = pos + n;
+		for (int i = end - 1; i >= pos; i--, val >>>= 4)
+			b[i] = DIGITS[(int) val & 0xf];
+		return end;
+	}
+
 	private Hex() { /**/ }
 
 }
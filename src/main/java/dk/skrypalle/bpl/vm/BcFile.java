@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.compiler.type.*;
+import dk.skrypalle.bpl.util.*;
+import dk.skrypalle.bpl.vm.err.*;
+
+import java.io.*;
+import java.nio.file.*;
+
+import static dk.skrypalle.bpl.vm.Bytecode.*;
+
+// The .bplbc file format, version 2. A file starts with a fixed header
+//
+//   magic(4) version(4) code_off(4) code_len(4) data_off(4) data_len(4)
+//   func_off(4) func_len(4) line_off(4) line_len(4)
+//
+// followed by the sections it points to, all big-endian:
+//
+//   code: the preamble (CALL main, HALT) and all function bodies
+//   data: the data segment, i.e. the string constants
+//   func: entry(4) n_locals(4) max_stack(4) per function
+//   line: addr(4) line(4) per statement, in address order
+//
+// The VM runs an image laid out as data_len(4), data, n_funcs(4), func,
+// code. Addresses in code, func and line refer to that image, which the
+// loader rebuilds from the sections as is. Version 1 was the bare image
+// with the old sparse op codes.
+public final class BcFile {
+
+	public static final String EXT = ".bplbc";
+
+	public static final int MAGIC   = 0x42504c42; // "BPLB"
+	public static final int VERSION = 2;
+
+	//fmt:off
+	public static final int CODE       = 0;
+	public static final int DATA       = 1;
+	public static final int FUNC       = 2;
+	public static final int LINE       = 3;
+	public static final int N_SECTIONS = 4;
+	public static final int HEADER_LEN = 8 + N_SECTIONS*8;
+	public static final int LINE_LEN   = 8;
+	//fmt:on
+
+	private static final String[] NAMES = {"code", "data", "func", "line"};
+
+	public static Program load(Path file) throws IOException {
+		return load(Files.readAllBytes(file));
+	}
+
+	public static Program load(byte[] file) {
+		if (file.length < HEADER_LEN)
+			throw new BPLVMFormatError(String.format("%d bytes are too short for a header", file.length));
+		if (Marshal.s32BE(file, 0) != MAGIC)
+			throw new BPLVMFormatError(String.format("bad magic 0x%08x", Marshal.s32BE(file, 0)));
+		int version = Marshal.s32BE(file, 4);
+		if (version != VERSION)
+			throw new BPLVMFormatError(String.format("version %d is not supported, want %d", version, VERSION));
+
+		int[] off = new int[N_SECTIONS];
+		int[] len = new int[N_SECTIONS];
+		for (int i = 0; i < N_SECTIONS; i++) {
+			off[i] = Marshal.s32BE(file, 8 + i*8);
+			len[i] = Marshal.s32BE(file, 12 + i*8);
+			if (off[i] < HEADER_LEN || len[i] < 0 || (long) off[i] + len[i] > file.length)
+				throw new BPLVMFormatError(String.format("%s section [0x%08x, +%d] is out of bounds", NAMES[i], off[i], len[i]));
+		}
+		if (len[CODE] == 0)
+			throw new BPLVMFormatError("code section is empty");
+		if (len[FUNC]%FUNC_ENTRY_LEN != 0)
+			throw new BPLVMFormatError(String.format("func section length %d is no multiple of %d", len[FUNC], FUNC_ENTRY_LEN));
+		if (len[LINE]%LINE_LEN != 0)
+			throw new BPLVMFormatError(String.format("line section length %d is no multiple of %d", len[LINE], LINE_LEN));
+
+		byte[] image = new byte[VM.HEADER + len[DATA] + 4 + len[FUNC] + len[CODE]];
+		int at = 0;
+		at = put(image, at, Marshal.bytesS32BE(len[DATA]), 0, 4);
+		at = put(image, at, file, off[DATA], len[DATA]);
+		at = put(image, at, Marshal.bytesS32BE(len[FUNC]/FUNC_ENTRY_LEN), 0, 4);
+		at = put(image, at, file, off[FUNC], len[FUNC]);
+		put(image, at, file, off[CODE], len[CODE]);
+		checkFuncs(image, image.length - len[CODE], len[FUNC]/FUNC_ENTRY_LEN);
+
+		int[] lines = new int[len[LINE]/LINE_LEN*2];
+		for (int i = 0; i < lines.length; i++)
+			lines[i] = Marshal.s32BE(file, off[LINE] + i*4);
+		for (int i = 2; i < lines.length; i += 2) {
+			if (lines[i] < lines[i - 2])
+				throw new BPLVMFormatError(String.format("line table not sorted at 0x%08x", lines[i]));
+		}
+
+		return Program.load(image, new TypeUniverse(), lines);
+	}
+
+	// Checks the function table against the code and every call against the
+	// function table, so that the engines only ever see valid entries.
+	private static void checkFuncs(byte[] image, int codeStart, int n) {
+		boolean[] entry = new boolean[image.length];
+		int tbl = VM.funcTbl(image) + 4;
+		for (int i = 0; i < n; i++) {
+			int at = tbl + i*FUNC_ENTRY_LEN;
+			int addr = Marshal.s32BE(image, at);
+			if (addr < codeStart || addr >= image.length)
+				throw new BPLVMFormatError(String.format("func %d enters at 0x%08x, outside of the code section", i, addr));
+			if (Marshal.s32BE(image, at + 4) < 0 || Marshal.s32BE(image, at + 8) < 0)
+				throw new BPLVMFormatError(String.format("func %d has %d locals and a max. stack of %d",
+					i, Marshal.s32BE(image, at + 4), Marshal.s32BE(image, at + 8)));
+			entry[addr] = true;
+		}
+
+		for (int ip = codeStart; ip < image.length; ) {
+			Op inst = opCodes.get(image[ip]);
+			if (inst == null)
+				throw new BPLVMFormatError(String.format("illegal op 0x%02x at 0x%08x", image[ip], ip));
+			if (ip + inst.nArgs >= image.length)
+				throw new BPLVMFormatError(String.format("op 0x%02x at 0x%08x is truncated", image[ip], ip));
+			if (image[ip] == CALL || image[ip] == TAILCALL) {
+				int to = Marshal.s32BE(image, ip + 1);
+				if (to < 0 || to >= image.length || !entry[to])
+					throw new BPLVMFormatError(String.format("call at 0x%08x to 0x%08x, which is no function entry", ip, to));
+			}
+			ip += 1 + inst.nArgs;
+		}
+	}
+
+	private static int put(byte[] dst, int at, byte[] src, int off, int len) {
+		System.arraycopy(src, off, dst, at, len);
+		return at + len;
+	}
+
+	private BcFile() { /**/ }
+
+}
@@ -30,11 +30,18 @@ import java.util.*;
 public final class Bytecode {
 
 	// Bytecode preamble length
-	// data_seg_len(4) + data_seg(?) + CALL(8), HALT(1) +1
+	// data_seg_len(4) + data_seg(?) + func_tbl(?) + CALL(8), HALT(1) +1
 	public static final int PREABLE_LEN = 0x0e;
 
-	// Parameter offset from fp after call
-	public static final int PARAM_START = -4;
+	// Function table between data segment and preamble
+	// n_funcs(4) + n_funcs*(entry(4) + n_locals(4) + max_stack(4))
+	public static final int FUNC_ENTRY_LEN = 0x0c;
+
+	// Parameter offset from fp after call, the last arg sits at fp
+	public static final int PARAM_START = -1;
+
+	// Op codes are numbered densely from 0x00 (format version 2, see BcFile),
+	// so a switch over them compiles to a jump table.
 
 	public static final byte NOP   = (byte) 0x00;
 	public static final byte POP   = (byte) 0x01;
@@ -46,27 +53,53 @@ public final class Bytecode {
 	public static final byte ILT   = (byte) 0x07;
 	public static final byte IGT   = (byte) 0x08;
 	public static final byte ILTE  = (byte) 0x09;
-	public static final byte IGTE  = (byte) 0x10;
-	public static final byte IEQ   = (byte) 0x11;
-	public static final byte INEQ  = (byte) 0x12;
-
-	public static final byte ILOAD   = (byte) 0x30;
-	public static final byte ISTORE  = (byte) 0x31;
-	public static final byte SPUSH   = (byte) 0x32;
-	public static final byte SLOAD   = (byte) 0x33;
-	public static final byte CALL    = (byte) 0x34;
-	public static final byte RET     = (byte) 0x35;
-	public static final byte LOCALS  = (byte) 0x36;
-	public static final byte ADDR_OF = (byte) 0x37;
-	public static final byte VAL_OF  = (byte) 0x38;
-	public static final byte RESOLVE = (byte) 0x39;
-
-	public static final byte JMP  = (byte) 0x40;
-	public static final byte BREQ = (byte) 0x41;
-	public static final byte BRNE = (byte) 0x42;
-
-	public static final byte PRINT = (byte) 0xfe;
-	public static final byte HALT  = (byte) 0xff;
+	public static final byte IGTE  = (byte) 0x0a;
+	public static final byte IEQ   = (byte) 0x0b;
+	public static final byte INEQ  = (byte) 0x0c;
+	public static final byte IADDI = (byte) 0x0d;
+
+	public static final byte ILOAD   = (byte) 0x0e;
+	public static final byte ISTORE  = (byte) 0x0f;
+	public static final byte SPUSH   = (byte) 0x10;
+	public static final byte SLOAD   = (byte) 0x11;
+	public static final byte CALL    = (byte) 0x12;
+	public static final byte RET     = (byte) 0x13;
+	public static final byte LOCALS  = (byte) 0x14;
+	public static final byte ADDR_OF = (byte) 0x15;
+	public static final byte VAL_OF  = (byte) 0x16;
+	public static final byte RESOLVE = (byte) 0x17;
+	public static final byte LLOAD   = (byte) 0x18;
+	public static final byte LSTORE  = (byte) 0x19;
+	public static final byte IINC    = (byte) 0x1a;
+
+	// Call that replaces the current frame: the args are moved down to the
+	// current params and the callee returns straight to our caller
+	public static final byte TAILCALL = (byte) 0x1b;
+
+	public static final byte JMP  = (byte) 0x1c;
+	public static final byte BREQ = (byte) 0x1d;
+	public static final byte BRNE = (byte) 0x1e;
+
+	// Fused int compare-and-branch: pop rhs, lhs and branch if lhs <op> rhs
+	public static final byte BRLT  = (byte) 0x1f;
+	public static final byte BRGT  = (byte) 0x20;
+	public static final byte BRLTE = (byte) 0x21;
+	public static final byte BRGTE = (byte) 0x22;
+	public static final byte BRIEQ = (byte) 0x23;
+	public static final byte BRINE = (byte) 0x24;
+
+	public static final byte PRINT = (byte) 0x25;
+	public static final byte HALT  = (byte) 0x26;
+
+	// Short int pushes: IPUSH_0-3 carry no operand, IPUSH8/16/32 a
+	// sign-extended 1, 2 or 4 byte operand
+	public static final byte IPUSH_0 = (byte) 0x27;
+	public static final byte IPUSH_1 = (byte) 0x28;
+	public static final byte IPUSH_2 = (byte) 0x29;
+	public static final byte IPUSH_3 = (byte) 0x2a;
+	public static final byte IPUSH8  = (byte) 0x2b;
+	public static final byte IPUSH16 = (byte) 0x2c;
+	public static final byte IPUSH32 = (byte) 0x2d;
 
 	static class Op {
 		final String name;
@@ -96,6 +129,7 @@ public final class Bytecode {
 		opCodes.put(IGTE,    new Op("ilte",    0));
 		opCodes.put(IEQ,     new Op("ieq",     0));
 		opCodes.put(INEQ,    new Op("ineq",    0));
+		opCodes.put(IADDI,   new Op("iaddi",   8));
 
 		opCodes.put(ILOAD,   new Op("iload",   0));
 		opCodes.put(ISTORE,  new Op("istore",  0));
@@ -107,13 +141,31 @@ public final class Bytecode {
 		opCodes.put(ADDR_OF, new Op("addr_of", 0));
 		opCodes.put(VAL_OF,  new Op("val_of",  0));
 		opCodes.put(RESOLVE, new Op("resolve", 0));
+		opCodes.put(LLOAD,   new Op("lload",   4));
+		opCodes.put(LSTORE,  new Op("lstore",  4));
+		opCodes.put(IINC,    new Op("iinc",   12));
+		opCodes.put(TAILCALL, new Op("tailcall", 8));
 
 		opCodes.put(JMP,     new Op("jmp",     4));
 		opCodes.put(BREQ,    new Op("breq",    4));
 		opCodes.put(BRNE,    new Op("brne",    4));
+		opCodes.put(BRLT,    new Op("brlt",    4));
+		opCodes.put(BRGT,    new Op("brgt",    4));
+		opCodes.put(BRLTE,   new Op("brlte",   4));
+		opCodes.put(BRGTE,   new Op("brgte",   4));
+		opCodes.put(BRIEQ,   new Op("brieq",   4));
+		opCodes.put(BRINE,   new Op("brine",   4));
 
 		opCodes.put(PRINT,   new Op("print",   4));
 		opCodes.put(HALT,    new Op("halt",    0));
+
+		opCodes.put(IPUSH_0, new Op("ipush_0", 0));
+		opCodes.put(IPUSH_1, new Op("ipush_1", 0));
+		opCodes.put(IPUSH_2, new Op("ipush_2", 0));
+		opCodes.put(IPUSH_3, new Op("ipush_3", 0));
+		opCodes.put(IPUSH8,  new Op("ipush8",  1));
+		opCodes.put(IPUSH16, new Op("ipush16", 2));
+		opCodes.put(IPUSH32, new Op("ipush32", 4));
 		//fmt:on
 	}
 
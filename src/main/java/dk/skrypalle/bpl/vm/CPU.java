@@ -33,9 +33,15 @@ import java.util.*;
 
 import static dk.skrypalle.bpl.vm.Bytecode.*;
 
-class CPU {
+class CPU implements Core {
 
-	static int MAX_STACK_SIZE = 0xffff;
+	// Call frames live on a separate int stack as (ret ip, saved fp, nArgs)
+	// triples, so the operand stack only ever holds BPL values.
+	static final int FRAME_LEN = 3;
+
+	// vm_type handles of the primitives; pointer handles are derived via Types.ptr
+	static final int T_INT    = Types.INT.vm_type;
+	static final int T_STRING = Types.STRING.vm_type;
 
 	private final VM vm;
 
@@ -44,28 +50,52 @@ class CPU {
 	private int  fp;
 	private byte op;
 
-	byte[] code;
-	int    ds_len;
-	private StackEntry[] stack;
-
-	CPU(VM vm, byte[] code) {
-		this.ds_len = Marshal.s32BE(code, 0);
+	final byte[] code;
+	final int    ds_len;
+	final int    codeStart;
+	final int[]  frameSizes;
+
+	// Both stacks are segmented off-heap memory, so deep recursion neither
+	// copies on growth nor inflates the heap. A frame is stored in one slot as
+	// ((ret ip << 32) | saved fp, nArgs) and fsp counts frames, not ints.
+	private final SegmentedStack stack;
+	private final SegmentedStack frames;
+	private       int            fsp;
+
+	// Hot functions run compiled (see Jit). heat counts calls and back-edges
+	// per function entry, jitUsed the budget compiled code used in a step.
+	private final Jit    jit;
+	private final int[]  heat;
+	private final long[] fuel;
+	private       long[] args;
+	private       long   jitUsed;
+
+	CPU(VM vm, Program program, boolean compile) {
+		this.ds_len = program.ds_len;
 		this.vm = vm;
-		this.ip = VM.HEADER + ds_len;
+		this.ip = program.codeStart;
 		this.sp = -1;
 		this.fp = 0;
-		this.code = code;
-		this.stack = new StackEntry[0];
+		this.code = program.code;
+		this.codeStart = program.codeStart;
+		this.frameSizes = program.frameSizes;
+		this.stack = new SegmentedStack(vm.stackLimit);
+		this.frames = new SegmentedStack(vm.stackLimit);
+		this.fsp = 0;
+		this.jit = compile ? program.jit() : null;
+		this.heat = compile ? new int[code.length] : null;
+		this.fuel = new long[1];
+		this.args = new long[0];
+		// the result slot of the preamble is covered by main's reservation
 	}
 
-	void step() {
+	// Returns whether the step was a preemption point, a backward JMP or a
+	// call. budget is what is left of it, compiled code must not exceed it.
+	boolean step(long budget) {
 		op = fetch();
 
-		if (vm.trace)
-			disassemble();
-
 		int addr, off, nArgs;
-		StackEntry lhs, rhs, cmp, arg;
+		int lhs, rhs, cmp;
 		long res;
 		long val;
 		switch (op) {
@@ -76,155 +106,211 @@ class CPU {
 			break;
 		case IPUSH:
 			val = fetchS64();
-			push(val, Types.lookup("int"));
+			push(val, T_INT);
+			break;
+		case IPUSH_0:
+		case IPUSH_1:
+		case IPUSH_2:
+		case IPUSH_3:
+			push(op - IPUSH_0, T_INT);
+			break;
+		case IPUSH8:
+			push(fetch(), T_INT);
+			break;
+		case IPUSH16:
+			push(fetchS16(), T_INT);
+			break;
+		case IPUSH32:
+			push(fetchS32(), T_INT);
 			break;
 		case IADD:
 			rhs = pop();
 			lhs = pop();
-			if (lhs.type != rhs.type)
-				throw new IllegalArgumentException(String.format("IADD:: want [INT,INT], have [%s,%s]", lhs.type, rhs.type));
-			res = lhs.val + rhs.val;
-			push(res, Types.lookup("int"));
+			if (stack.type(lhs) != stack.type(rhs))
+				throw new IllegalArgumentException(String.format("IADD:: want [INT,INT], have [%s,%s]", vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			res = stack.val(lhs) + stack.val(rhs);
+			push(res, T_INT);
 			break;
 		case ISUB:
 			rhs = pop();
 			lhs = pop();
-			if (lhs.type != rhs.type)
-				throw new IllegalArgumentException(String.format("ISUB:: want [INT,INT], have [%s,%s]", lhs.type, rhs.type));
-			res = lhs.val - rhs.val;
-			push(res, Types.lookup("int"));
+			if (stack.type(lhs) != stack.type(rhs))
+				throw new IllegalArgumentException(String.format("ISUB:: want [INT,INT], have [%s,%s]", vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			res = stack.val(lhs) - stack.val(rhs);
+			push(res, T_INT);
 			break;
 		case IMUL:
 			rhs = pop();
 			lhs = pop();
-			if (lhs.type != rhs.type)
-				throw new IllegalArgumentException(String.format("IMUL:: want [INT,INT], have [%s,%s]", lhs.type, rhs.type));
-			res = lhs.val*rhs.val;
-			push(res, Types.lookup("int"));
+			if (stack.type(lhs) != stack.type(rhs))
+				throw new IllegalArgumentException(String.format("IMUL:: want [INT,INT], have [%s,%s]", vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			res = stack.val(lhs)*stack.val(rhs);
+			push(res, T_INT);
 			break;
 		case IDIV:
 			rhs = pop();
 			lhs = pop();
-			if (lhs.type != rhs.type)
-				throw new IllegalArgumentException(String.format("IDIV:: want [INT,INT], have [%s,%s]", lhs.type, rhs.type));
-			res = lhs.val/rhs.val;
-			push(res, Types.lookup("int"));
+			if (stack.type(lhs) != stack.type(rhs))
+				throw new IllegalArgumentException(String.format("IDIV:: want [INT,INT], have [%s,%s]", vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			res = stack.val(lhs)/stack.val(rhs);
+			push(res, T_INT);
 			break;
 		case ILT:
 			rhs = pop();
 			lhs = pop();
-			if (lhs.type != rhs.type)
-				throw new IllegalArgumentException(String.format("ILT:: want [INT,INT], have [%s,%s]", lhs.type, rhs.type));
-			res = lhs.val < rhs.val ? 1 : 0;
-			push(res, Types.lookup("int"));
+			if (stack.type(lhs) != stack.type(rhs))
+				throw new IllegalArgumentException(String.format("ILT:: want [INT,INT], have [%s,%s]", vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			res = stack.val(lhs) < stack.val(rhs) ? 1 : 0;
+			push(res, T_INT);
 			break;
 		case IGT:
 			rhs = pop();
 			lhs = pop();
-			if (lhs.type != rhs.type)
-				throw new IllegalArgumentException(String.format("IGT:: want [INT,INT], have [%s,%s]", lhs.type, rhs.type));
-			res = lhs.val > rhs.val ? 1 : 0;
-			push(res, Types.lookup("int"));
+			if (stack.type(lhs) != stack.type(rhs))
+				throw new IllegalArgumentException(String.format("IGT:: want [INT,INT], have [%s,%s]", vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			res = stack.val(lhs) > stack.val(rhs) ? 1 : 0;
+			push(res, T_INT);
 			break;
 		case ILTE:
 			rhs = pop();
 			lhs = pop();
-			if (lhs.type != rhs.type)
-				throw new IllegalArgumentException(String.format("ILTE:: want [INT,INT], have [%s,%s]", lhs.type, rhs.type));
-			res = lhs.val <= rhs.val ? 1 : 0;
-			push(res, Types.lookup("int"));
+			if (stack.type(lhs) != stack.type(rhs))
+				throw new IllegalArgumentException(String.format("ILTE:: want [INT,INT], have [%s,%s]", vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			res = stack.val(lhs) <= stack.val(rhs) ? 1 : 0;
+			push(res, T_INT);
 			break;
 		case IGTE:
 			rhs = pop();
 			lhs = pop();
-			if (lhs.type != rhs.type)
-				throw new IllegalArgumentException(String.format("IGTE:: want [INT,INT], have [%s,%s]", lhs.type, rhs.type));
-			res = lhs.val >= rhs.val ? 1 : 0;
-			push(res, Types.lookup("int"));
+			if (stack.type(lhs) != stack.type(rhs))
+				throw new IllegalArgumentException(String.format("IGTE:: want [INT,INT], have [%s,%s]", vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			res = stack.val(lhs) >= stack.val(rhs) ? 1 : 0;
+			push(res, T_INT);
 			break;
 		case IEQ:
 			rhs = pop();
 			lhs = pop();
-			if (lhs.type != rhs.type)
-				throw new IllegalArgumentException(String.format("IEQ:: want [INT,INT], have [%s,%s]", lhs.type, rhs.type));
-			res = lhs.val == rhs.val ? 1 : 0;
-			push(res, Types.lookup("int"));
+			if (stack.type(lhs) != stack.type(rhs))
+				throw new IllegalArgumentException(String.format("IEQ:: want [INT,INT], have [%s,%s]", vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			res = stack.val(lhs) == stack.val(rhs) ? 1 : 0;
+			push(res, T_INT);
 			break;
 		case INEQ:
 			rhs = pop();
 			lhs = pop();
-			if (lhs.type != rhs.type)
-				throw new IllegalArgumentException(String.format("INEQ:: want [INT,INT], have [%s,%s]", lhs.type, rhs.type));
-			res = lhs.val != rhs.val ? 1 : 0;
-			push(res, Types.lookup("int"));
+			if (stack.type(lhs) != stack.type(rhs))
+				throw new IllegalArgumentException(String.format("INEQ:: want [INT,INT], have [%s,%s]", vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			res = stack.val(lhs) != stack.val(rhs) ? 1 : 0;
+			push(res, T_INT);
+			break;
+		case IADDI:
+			val = fetchS64();
+			lhs = pop();
+			if (stack.type(lhs) != T_INT)
+				throw new IllegalArgumentException(String.format("IADDI:: want [INT], have [%s]", vm.universe.lookup(stack.type(lhs))));
+			push(stack.val(lhs) + val, T_INT);
 			break;
 		case ISTORE:
 			rhs = pop();
 			lhs = pop();
-			addr = fp + (int) lhs.val + 1;
-			sput(addr, rhs.val, rhs.type);
+			addr = fp + (int) stack.val(lhs) + 1;
+			sput(addr, stack.val(rhs), stack.type(rhs));
 			break;
 		case ILOAD:
 			lhs = pop();
-			addr = fp + (int) lhs.val + 1;
+			addr = fp + (int) stack.val(lhs) + 1;
 			rhs = sget(addr);
-			push(rhs.val, rhs.type);
+			push(stack.val(rhs), stack.type(rhs));
 			break;
 		case ADDR_OF:
 			lhs = pop();
-			addr = fp + (int) lhs.val + 1;
-			push(addr, Types.ref(lhs.type));
+			addr = fp + (int) stack.val(lhs) + 1;
+			push(addr, Types.ptr(stack.type(lhs)));
 			break;
 		case VAL_OF:
 			lhs = pop();
-			addr = (int) lhs.val;
+			addr = (int) stack.val(lhs);
 			rhs = sget(addr);
-			push(rhs.val, rhs.type);
+			push(stack.val(rhs), stack.type(rhs));
 			break;
 		case RESOLVE:
 			lhs = pop();
-			push(lhs.val - fp - 1, Types.lookup("int"));
+			push(stack.val(lhs) - fp - 1, T_INT);
 			break;
 		case SPUSH:
 			int t = fetchS32();
 			addr = fetchS32();
-			push(addr, Types.lookup(t));
+			push(addr, t);
 			break;
 		case SLOAD:
 			lhs = pop();
-			addr = fp + (int) lhs.val + 1;
+			addr = fp + (int) stack.val(lhs) + 1;
+			rhs = sget(addr);
+			push(stack.val(rhs), stack.type(rhs));
+			break;
+		case LLOAD:
+			addr = fp + fetchS32() + 1;
 			rhs = sget(addr);
-			push(rhs.val, rhs.type);
+			push(stack.val(rhs), stack.type(rhs));
+			break;
+		case LSTORE:
+			addr = fp + fetchS32() + 1;
+			rhs = pop();
+			sput(addr, stack.val(rhs), stack.type(rhs));
+			break;
+		case IINC:
+			addr = fp + fetchS32() + 1;
+			val = fetchS64();
+			lhs = sget(addr);
+			if (stack.type(lhs) != T_INT)
+				throw new IllegalArgumentException(String.format("IINC:: want [INT], have [%s]", vm.universe.lookup(stack.type(lhs))));
+			stack.putVal(lhs, stack.val(lhs) + val);
 			break;
 		case CALL:
 			addr = fetchS32();
 			nArgs = fetchS32();
-			push(nArgs, Types.lookup("int"));
-			push(fp, Types.lookup("int"));
-			push(ip, Types.lookup("int"));
+			if (addr < 0 || addr >= code.length || frameSizes[addr] < 0)
+				throw new ArrayIndexOutOfBoundsException(String.format("call to invalid addr 0x%08x\n", addr));
+			// reserve the whole frame once, pushes within the body are unchecked
+			stack.reserve(sp + frameSizes[addr]);
+			frames.reserve(fsp);
+			// a compiled call ran to completion, the budget is checked at the
+			// next preemption point as after an interpreted one
+			if (jit != null && callCompiled(addr, nArgs, budget))
+				return false;
+			frames.put(fsp++, (long) ip << 32 | fp & 0xffffffffL, nArgs);
 			fp = sp;
 			ip = addr;
-			if (ip < 0 || ip >= code.length)
-				throw new ArrayIndexOutOfBoundsException(String.format("call to invalid addr 0x%08x\n", ip));
-			break;
+			return true;
 		case RET:
 			rhs = pop();
-			sp = fp;
-			StackEntry _ip = pop();
-			StackEntry _fp = pop();
-			StackEntry _nArgs = pop();
-			if (_ip.type != Types.lookup("int"))
-				throw new IllegalArgumentException(String.format("RET:: want ip[INT], have ip[%s]", _ip.type));
-			if (_fp.type != Types.lookup("int"))
-				throw new IllegalArgumentException(String.format("RET:: want fp[INT], have fp[%s]", _fp.type));
-			if (_nArgs.type != Types.lookup("int"))
-				throw new IllegalArgumentException(String.format("RET:: want nArgs[INT], have nArgs[%s]", _nArgs.type));
-			ip = (int) _ip.val;
-			fp = (int) _fp.val;
-			nArgs = (int) _nArgs.val;
-			sp -= nArgs;
-			push(rhs.val, rhs.type);
+			val = stack.val(rhs);
+			int type = stack.type(rhs);
+			if (fsp < 1)
+				throw new BPLVMStackUnderflowError();
+			long ret = frames.val(--fsp);
+			sp = fp - frames.type(fsp);
+			fp = (int) ret;
+			ip = (int) (ret >>> 32);
+			push(val, type);
 			break;
+		case TAILCALL:
+			addr = fetchS32();
+			nArgs = fetchS32();
+			if (addr < 0 || addr >= code.length || frameSizes[addr] < 0)
+				throw new ArrayIndexOutOfBoundsException(String.format("call to invalid addr 0x%08x\n", addr));
+			if (fsp < 1 || sp - nArgs + 1 < 0)
+				throw new BPLVMStackUnderflowError();
+			// move the args onto our params and hand our return over to the callee
+			lhs = fp - frames.type(fsp - 1) + 1;
+			for (int i = 0; i < nArgs; i++)
+				stack.put(lhs + i, stack.val(sp - nArgs + 1 + i), stack.type(sp - nArgs + 1 + i));
+			frames.put(fsp - 1, frames.val(fsp - 1), nArgs);
+			sp = lhs + nArgs - 1;
+			stack.reserve(sp + frameSizes[addr]);
+			fp = sp;
+			ip = addr;
+			return true;
 		case LOCALS:
 //			sp += fetchS32();
 //			while (sp >= stack.length)
@@ -232,71 +318,156 @@ class CPU {
 			int l = fetchS32();
 			// simulate garbage in local storage
 			for (int i = 0; i < l; i++)
-				push((long) (Math.random()*23452345.0), Types.lookup("int"));
+				push((long) (Math.random()*23452345.0), T_INT);
 			break;
 		case JMP:
 			off = fetchS32();
 			ip += off;
 			if (ip < 0 || ip >= code.length)
 				throw new ArrayIndexOutOfBoundsException(String.format("jmp to invalid addr 0x%08x --> 0x%08x\n", ip - off, ip));
-			break;
+			if (off >= 0)
+				return false;
+			if (jit != null)
+				heat[jit.owner[ip]]++;
+			return true;
 		case BRNE:
 			off = fetchS32();
 			cmp = pop();
-			if (cmp.type != Types.lookup("int"))
-				throw new IllegalArgumentException(String.format("BRNE:: want [INT], have [%s]", cmp.type));
-			if (cmp.val != 0)
+			if (stack.type(cmp) != T_INT)
+				throw new IllegalArgumentException(String.format("BRNE:: want [INT], have [%s]", vm.universe.lookup(stack.type(cmp))));
+			if (stack.val(cmp) != 0)
 				ip += off;
 			break;
 		case BREQ:
 			off = fetchS32();
 			cmp = pop();
-			if (cmp.type != Types.lookup("int"))
-				throw new IllegalArgumentException(String.format("BREQ:: want [INT], have [%s]", cmp.type));
-			if (cmp.val == 0)
+			if (stack.type(cmp) != T_INT)
+				throw new IllegalArgumentException(String.format("BREQ:: want [INT], have [%s]", vm.universe.lookup(stack.type(cmp))));
+			if (stack.val(cmp) == 0)
+				ip += off;
+			break;
+		case BRLT:
+		case BRGT:
+		case BRLTE:
+		case BRGTE:
+		case BRIEQ:
+		case BRINE:
+			off = fetchS32();
+			rhs = pop();
+			lhs = pop();
+			if (stack.type(lhs) != T_INT || stack.type(rhs) != T_INT)
+				throw new IllegalArgumentException(String.format("%s:: want [INT,INT], have [%s,%s]",
+					Bytecode.opCodes.get(op).name.toUpperCase(), vm.universe.lookup(stack.type(lhs)), vm.universe.lookup(stack.type(rhs))));
+			if (cmp(op, stack.val(lhs), stack.val(rhs)))
 				ip += off;
 			break;
 		case PRINT:
 			off = fetchS32();
-			Deque<StackEntry> args = new ArrayDeque<>();
-			for (int i = 0; i < off; i++) {
-				args.push(pop());
-			}
-			for (int i = 0; i < off; i++) {
-				arg = args.pop();
-				switch (arg.type.name) { // TODO
-				case "int":
-					vm.out(String.format("%x", arg.val));
-					break;
-				case "string":
-					addr = (int) arg.val;
-					int len = Marshal.s32BE(code, addr);
-					addr += 4;
-					String s = new String(code, addr, len, IO.UTF8);
-					vm.out(s);
-					break;
-				default:
-					vm.out(String.format("Don't know, how to print [%s] addr=0x%08x", arg.type, arg.val));
-					break;
-				}
-			}
+			if (sp - off + 1 < 0)
+				throw new BPLVMStackUnderflowError();
+			for (int arg = sp - off + 1; arg <= sp; arg++)
+				vm.print(stack.val(arg), stack.type(arg));
+			sp -= off;
 			break;
 		case HALT:
 			break;
 		default:
 			throw new BPLVMIllegalStateError(op);
 		}
+		return false;
+	}
 
-		if (vm.trace)
-			traceStack();
+	boolean traceStep() {
+		disassemble();
+		boolean res = step(Long.MAX_VALUE);
+		traceStack();
+		return res;
+	}
+
+	@Override
+	public long run(long budget) {
+		while (hasInstructions()) {
+			budget--;
+			boolean preempt = vm.trace ? traceStep() : step(budget);
+			budget -= jitUsed;
+			jitUsed = 0;
+			if (preempt && budget <= 0)
+				break;
+		}
+		return budget;
+	}
+
+	@Override
+	public boolean halted() {
+		return !hasInstructions();
+	}
+
+	// Runs the call to addr compiled if addr is or just got hot and its code
+	// takes the args. Returns false if the interpreter has to run it instead.
+	private boolean callCompiled(int addr, int nArgs, long budget) {
+		Jit.Entry e = jit.entry(addr);
+		if (e == null) {
+			if (++heat[addr] < Jit.THRESHOLD)
+				return false;
+			e = jit.compile(addr, nArgs);
+		}
+		if (e.code == null || e.nArgs != nArgs || budget <= 0 || sp - nArgs + 1 < 0)
+			return false;
+
+		if (args.length < nArgs)
+			args = new long[nArgs];
+		for (int i = 0, at = sp - nArgs + 1; i < nArgs; i++, at++) {
+			if (stack.type(at) != T_INT)
+				return false;
+			args[i] = stack.val(at);
+		}
+
+		fuel[0] = budget;
+		long res;
+		try {
+			res = e.code.invoke(fuel, vm.stackLimit - sp, Math.min(Jit.MAX_DEPTH, vm.stackLimit - fsp - 1), args);
+		} catch (JitBail b) {
+			if (b == JitBail.DEPTH)
+				jit.reject(addr);
+			return false;
+		}
+		jitUsed = budget - fuel[0];
+		sp -= nArgs;
+		push(res, T_INT);
+		return true;
+	}
+
+	private static boolean cmp(byte op, long lhs, long rhs) {
+		//fmt:off
+		switch (op) {
+		case BRLT : return lhs <  rhs;
+		case BRGT : return lhs >  rhs;
+		case BRLTE: return lhs <= rhs;
+		case BRGTE: return lhs >= rhs;
+		case BRIEQ: return lhs == rhs;
+		case BRINE: return lhs != rhs;
+		default   : throw new IllegalStateException("unreachable");
+		}
+		//fmt:on
 	}
 
 	boolean hasInstructions() {
 		return op != HALT && ip < code.length;
 	}
 
-	int exitCode() {
-		return (int) stack[sp].val;
+	@Override
+	public int exitCode() {
+		return (int) stack.val(sp);
+	}
+
+	@Override
+	public void reset() {
+		ip = codeStart;
+		sp = -1;
+		fp = 0;
+		op = NOP;
+		fsp = 0;
+		jitUsed = 0; // heat is kept, the program is the same
 	}
 
 	//region mem code
@@ -305,6 +476,12 @@ class CPU {
 		return code[ip++];
 	}
 
+	private short fetchS16() {
+		short val = (short) ((code[ip] & 0xff) << 8 | (code[ip + 1] & 0xff));
+		ip += 2;
+		return val;
+	}
+
 	private int fetchS32() {
 		int val = Marshal.s32BE(code, ip);
 		ip += 4;
@@ -321,45 +498,42 @@ class CPU {
 
 	//region mem stack
 
-	private void push(long val, Type type) {
-		sp++;
-		if (sp == stack.length)
-			growStack();
-		stack[sp].val = val;
-		stack[sp].type = type;
+	private void push(long val, int type) {
+		stack.put(++sp, val, type);
 	}
 
-	private StackEntry pop() {
+	private int pop() {
 		if (sp < 0)
 			throw new BPLVMStackUnderflowError();
-		return stack[sp--];
+		return sp--;
 	}
 
-	private StackEntry sget(int addr) {
+	private int sget(int addr) {
 		if (addr < 0)
 			throw new BPLVMStackUnderflowError();
-		return stack[addr];
+		return addr;
 	}
 
-	private void sput(int addr, long val, Type type) {
+	private void sput(int addr, long val, int type) {
 		if (addr < 0)
 			throw new BPLVMStackUnderflowError();
-		stack[addr].val = val;
-		stack[addr].type = type;
+		stack.put(addr, val, type);
 	}
 
-	private void growStack() {
-		int newLen = stack.length*2;
-		if (newLen == 0)
-			newLen = 1;
-		if (newLen > MAX_STACK_SIZE)
-			throw new BPLVMStackOverflowError(newLen, MAX_STACK_SIZE);
-
-		StackEntry[] newStack = new StackEntry[newLen];
-		for (int i = 0; i < newLen; i++)
-			newStack[i] = new StackEntry();
-		System.arraycopy(stack, 0, newStack, 0, stack.length);
-		stack = newStack;
+	// Length an array-backed stack of len slots grows to, so that it holds at
+	// least minLen slots without exceeding limit
+	static int growLen(int len, int minLen, int limit) {
+		if (minLen > limit)
+			throw new BPLVMStackOverflowError(minLen, limit);
+		int newLen = Math.max(len*2, 1);
+		while (newLen < minLen)
+			newLen *= 2;
+		return Math.min(newLen, limit);
+	}
+
+	static int[] growFrames(int[] frames, int limit) {
+		int n = frames.length/FRAME_LEN;
+		return Arrays.copyOf(frames, growLen(n, n + 1, limit)*FRAME_LEN);
 	}
 
 	//endregion
@@ -367,6 +541,7 @@ class CPU {
 	//region trace
 
 	private void disassemble() {
+		byte op = code[ip];
 		Op inst = Bytecode.opCodes.get(op);
 		if (inst == null)
 			throw new IllegalStateException(String.format("Illegal op code 0x%02x", op));
@@ -374,13 +549,13 @@ class CPU {
 		StringBuilder argBuf = new StringBuilder();
 		argBuf.append('[');
 		for (int i = 0; i < inst.nArgs; i++) {
-			argBuf.append(String.format("0x%02x", code[ip + i]));
+			argBuf.append(String.format("0x%02x", code[ip + 1 + i]));
 			if (i < inst.nArgs - 1)
 				argBuf.append(", ");
 		}
 		argBuf.append(']');
 
-		String trace = String.format("%08x  (0x%02x) %-8s %s", ip - 1, op, inst.name, argBuf.toString());
+		String trace = String.format("%08x  (0x%02x) %-8s %s", ip, op, inst.name, argBuf.toString());
 
 		vm.trace(String.format("%-80s", trace));
 	}
@@ -389,35 +564,25 @@ class CPU {
 		StringBuilder stackBuf = new StringBuilder();
 		stackBuf.append('[');
 		for (int i = 0; i < sp + 1; i++) {
-			stackBuf.append(String.format("0x%x(%s)", stack[i].val, stack[i].type));
+			stackBuf.append(String.format("0x%x(%s)", stack.val(i), vm.universe.lookup(stack.type(i))));
 			if (i < sp)
 				stackBuf.append(", ");
 		}
 		stackBuf.append(']');
 
-		vm.trace(String.format("stack=%s", stackBuf));
-	}
-
-	//endregion
-
-	private static class StackEntry {
-		private long val;
-		private Type type;
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj) return true;
-			if (!(obj instanceof StackEntry)) return false;
-			StackEntry other = (StackEntry) obj;
-
-			return this.val == other.val
-				&& this.type == other.type;
+		StringBuilder frameBuf = new StringBuilder();
+		frameBuf.append('[');
+		for (int i = 0; i < fsp; i++) {
+			long ret = frames.val(i);
+			frameBuf.append(String.format("(ip=0x%08x, fp=%d, nArgs=%d)", (int) (ret >>> 32), (int) ret, frames.type(i)));
+			if (i < fsp - 1)
+				frameBuf.append(", ");
 		}
+		frameBuf.append(']');
 
-		@Override
-		public String toString() {
-			return String.format("StackEntry{val=0x%016x, type=%s}", val, type);
-		}
+		vm.trace(String.format("stack=%s frames=%s", stackBuf, frameBuf));
 	}
 
+	//endregion
+
 }
@@ -0,0 +1,396 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.util.*;
+
+import java.util.*;
+
+// Minimal writer for the class files the JIT emits: a public final class
+// with a default constructor, implementing one interface. Branch targets
+// within a method all share one layout of locals and an empty operand stack,
+// so the StackMapTable consists of the same full frame at every target.
+final class ClassFile {
+
+	//region opcodes
+
+	//fmt:off
+	static final int ICONST_M1     = 0x02;
+	static final int ICONST_0      = 0x03;
+	static final int ICONST_1      = 0x04;
+	static final int LCONST_0      = 0x09;
+	static final int LCONST_1      = 0x0a;
+	static final int BIPUSH        = 0x10;
+	static final int SIPUSH        = 0x11;
+	static final int LDC_W         = 0x13;
+	static final int LDC2_W        = 0x14;
+	static final int ILOAD         = 0x15;
+	static final int LLOAD         = 0x16;
+	static final int ALOAD         = 0x19;
+	static final int LALOAD        = 0x2f;
+	static final int LSTORE        = 0x37;
+	static final int LASTORE       = 0x50;
+	static final int DUP2          = 0x5c;
+	static final int LADD          = 0x61;
+	static final int ISUB          = 0x64;
+	static final int LSUB          = 0x65;
+	static final int LMUL          = 0x69;
+	static final int LDIV          = 0x6d;
+	static final int INEG          = 0x74;
+	static final int IUSHR         = 0x7c;
+	static final int IAND          = 0x7e;
+	static final int IXOR          = 0x82;
+	static final int I2L           = 0x85;
+	static final int LCMP          = 0x94;
+	static final int IFEQ          = 0x99;
+	static final int IFNE          = 0x9a;
+	static final int IFLT          = 0x9b;
+	static final int IFGE          = 0x9c;
+	static final int IFGT          = 0x9d;
+	static final int IFLE          = 0x9e;
+	static final int IF_ICMPGT     = 0xa3;
+	static final int GOTO          = 0xa7;
+	static final int LRETURN       = 0xad;
+	static final int RETURN        = 0xb1;
+	static final int GETSTATIC     = 0xb2;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC  = 0xb8;
+	static final int ATHROW        = 0xbf;
+	static final int WIDE          = 0xc4;
+	//fmt:on
+
+	static final int ACC_PUBLIC  = 0x0001;
+	static final int ACC_PRIVATE = 0x0002;
+	static final int ACC_STATIC  = 0x0008;
+	static final int ACC_FINAL   = 0x0010;
+	static final int ACC_SUPER   = 0x0020;
+
+	// verification types of stack map frames
+	static final int T_INT    = 1;
+	static final int T_LONG   = 4;
+	static final int T_OBJECT = 7;
+
+	//endregion
+
+	private static final int VERSION = 52; // Java 8
+
+	final String name;
+
+	private final Buf                  pool;
+	private final Map<String, Integer> poolIdx;
+	private final int                  iface;
+	private final List<byte[]>         methods;
+
+	private int nPool;
+
+	ClassFile(String name, String iface) {
+		this.name = name;
+		this.pool = new Buf();
+		this.poolIdx = new HashMap<>();
+		this.methods = new ArrayList<>();
+		this.nPool = 1;
+		this.iface = cls(iface);
+
+		Code init = new Code(ACC_PUBLIC, "<init>", "()V", 1, new byte[0], 0);
+		init.op(ALOAD).u1(0);
+		init.op(INVOKESPECIAL).u2(methodRef("java/lang/Object", "<init>", "()V"));
+		init.op(RETURN);
+		init.finish(1);
+	}
+
+	byte[] toBytes() {
+		Buf b = new Buf();
+		b.u4(0xcafebabe).u2(0).u2(VERSION);
+		b.u2(nPool).bytes(pool.toBytes());
+		b.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER).u2(cls(name)).u2(cls("java/lang/Object"));
+		b.u2(1).u2(iface);
+		b.u2(0); // fields
+		b.u2(methods.size());
+		for (byte[] m : methods)
+			b.bytes(m);
+		b.u2(0); // attributes
+		return b.toBytes();
+	}
+
+	//region constant pool
+
+	int utf8(String s) {
+		Integer idx = poolIdx.get("U" + s);
+		if (idx != null)
+			return idx;
+		byte[] b = s.getBytes(IO.UTF8); // names are plain ASCII
+		pool.u1(1).u2(b.length).bytes(b);
+		poolIdx.put("U" + s, nPool);
+		return nPool++;
+	}
+
+	int cls(String name) {
+		return entry("C" + name, 7, utf8(name), -1);
+	}
+
+	int fieldRef(String owner, String name, String desc) {
+		return entry("F" + owner + "." + name + desc, 9, cls(owner), nameAndType(name, desc));
+	}
+
+	int methodRef(String owner, String name, String desc) {
+		return entry("M" + owner + "." + name + desc, 10, cls(owner), nameAndType(name, desc));
+	}
+
+	int intConst(int v) {
+		Integer idx = poolIdx.get("I" + v);
+		if (idx != null)
+			return idx;
+		pool.u1(3).u4(v);
+		poolIdx.put("I" + v, nPool);
+		return nPool++;
+	}
+
+	int longConst(long v) {
+		Integer idx = poolIdx.get("J" + v);
+		if (idx != null)
+			return idx;
+		pool.u1(5).u8(v);
+		poolIdx.put("J" + v, nPool);
+		int res = nPool;
+		nPool += 2; // longs take two entries
+		return res;
+	}
+
+	private int nameAndType(String name, String desc) {
+		return entry("N" + name + ":" + desc, 12, utf8(name), utf8(desc));
+	}
+
+	private int entry(String key, int tag, int a, int b) {
+		Integer idx = poolIdx.get(key);
+		if (idx != null)
+			return idx;
+		pool.u1(tag).u2(a);
+		if (b >= 0)
+			pool.u2(b);
+		poolIdx.put(key, nPool);
+		return nPool++;
+	}
+
+	//endregion
+
+	//region Code
+
+	// Bytecode of one method. frame holds the verification types of the
+	// locals at every branch target, nFrame their count.
+	final class Code {
+
+		private final int    access;
+		private final String name;
+		private final String desc;
+		private final int    maxLocals;
+		private final byte[] frame;
+		private final int    nFrame;
+		private final Buf    code;
+
+		private int[] labels;
+		private int   nLabels;
+		private int[] fixups; // (insn pos, label) pairs
+		private int   nFixups;
+
+		Code(int access, String name, String desc, int maxLocals, byte[] frame, int nFrame) {
+			this.access = access;
+			this.name = name;
+			this.desc = desc;
+			this.maxLocals = maxLocals;
+			this.frame = frame;
+			this.nFrame = nFrame;
+			this.code = new Buf();
+			this.labels = new int[16];
+			this.fixups = new int[32];
+		}
+
+		Code op(int op) {
+			code.u1(op);
+			return this;
+		}
+
+		Code u1(int v) {
+			code.u1(v);
+			return this;
+		}
+
+		Code u2(int v) {
+			code.u2(v);
+			return this;
+		}
+
+		Code iconst(int v) {
+			if (v >= -1 && v <= 5)
+				return op(ICONST_0 + v);
+			if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE)
+				return op(BIPUSH).u1(v);
+			if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE)
+				return op(SIPUSH).u2(v);
+			return op(LDC_W).u2(intConst(v));
+		}
+
+		Code lconst(long v) {
+			if (v == 0 || v == 1)
+				return op(LCONST_0 + (int) v);
+			return op(LDC2_W).u2(longConst(v));
+		}
+
+		Code lload(int local) {
+			return local(LLOAD, local);
+		}
+
+		Code lstore(int local) {
+			return local(LSTORE, local);
+		}
+
+		Code iload(int local) {
+			return local(ILOAD, local);
+		}
+
+		Code aload(int local) {
+			return local(ALOAD, local);
+		}
+
+		private Code local(int op, int local) {
+			if (local > 0xff)
+				return op(WIDE).op(op).u2(local);
+			return op(op).u1(local);
+		}
+
+		int label() {
+			if (nLabels == labels.length)
+				labels = Arrays.copyOf(labels, nLabels*2);
+			labels[nLabels] = -1;
+			return nLabels++;
+		}
+
+		void bind(int label) {
+			labels[label] = code.len;
+		}
+
+		Code jump(int op, int label) {
+			if (nFixups + 2 > fixups.length)
+				fixups = Arrays.copyOf(fixups, fixups.length*2);
+			fixups[nFixups++] = code.len;
+			fixups[nFixups++] = label;
+			return op(op).u2(0);
+		}
+
+		// Adds the method to the class. Returns false, adding nothing, if the
+		// method is too large for 16bit branch offsets.
+		boolean finish(int maxStack) {
+			byte[] b = code.toBytes();
+			if (b.length > Short.MAX_VALUE)
+				return false;
+
+			int[] targets = new int[nFixups/2];
+			for (int i = 0; i < nFixups; i += 2) {
+				int at = fixups[i];
+				int to = labels[fixups[i + 1]];
+				if (to < 0)
+					throw new IllegalStateException("unbound label " + fixups[i + 1] + " in " + name);
+				int off = to - at;
+				b[at + 1] = (byte) (off >> 8);
+				b[at + 2] = (byte) off;
+				targets[i/2] = to;
+			}
+
+			Buf attr = new Buf();
+			Arrays.sort(targets);
+			int nFrames = 0;
+			Buf frames = new Buf();
+			for (int i = 0, prev = -1; i < targets.length; i++) {
+				if (targets[i] == prev)
+					continue;
+				frames.u1(255).u2(prev < 0 ? targets[i] : targets[i] - prev - 1);
+				frames.u2(nFrame).bytes(frame).u2(0);
+				prev = targets[i];
+				nFrames++;
+			}
+
+			Buf m = new Buf();
+			m.u2(access).u2(utf8(this.name)).u2(utf8(desc));
+			m.u2(1).u2(utf8("Code"));
+			attr.u2(maxStack).u2(maxLocals).u4(b.length).bytes(b);
+			attr.u2(0); // exception table
+			if (nFrames > 0) {
+				byte[] f = frames.toBytes();
+				attr.u2(1).u2(utf8("StackMapTable")).u4(2 + f.length).u2(nFrames).bytes(f);
+			} else {
+				attr.u2(0);
+			}
+			byte[] a = attr.toBytes();
+			m.u4(a.length).bytes(a);
+			methods.add(m.toBytes());
+			return true;
+		}
+
+	}
+
+	//endregion
+
+	//region Buf
+
+	// Growable big-endian byte buffer
+	static final class Buf {
+
+		private byte[] b = new byte[64];
+		private int    len;
+
+		Buf u1(int v) {
+			if (len == b.length)
+				b = Arrays.copyOf(b, len*2);
+			b[len++] = (byte) v;
+			return this;
+		}
+
+		Buf u2(int v) {
+			return u1(v >> 8).u1(v);
+		}
+
+		Buf u4(int v) {
+			return u2(v >> 16).u2(v);
+		}
+
+		Buf u8(long v) {
+			return u4((int) (v >> 32)).u4((int) v);
+		}
+
+		Buf bytes(byte[] v) {
+			for (byte x : v)
+				u1(x);
+			return this;
+		}
+
+		byte[] toBytes() {
+			return Arrays.copyOf(b, len);
+		}
+
+	}
+
+	//endregion
+
+}
@@ -0,0 +1,287 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.util.*;
+import dk.skrypalle.bpl.vm.err.*;
+
+import java.util.*;
+
+// Load-time translation of a code image into a flat int[] instruction
+// stream. Operands are inlined after their op, 64bit immediates live in a
+// constant pool and all branch/call targets are absolute stream indices.
+final class Decoded {
+
+	// Ops keep their Bytecode numbers, so the table stays dense and needs no
+	// translation. The short int pushes all decode to IPUSH, whose operand
+	// becomes a constant pool index.
+	//fmt:off
+	static final int NOP      = Bytecode.NOP;
+	static final int POP      = Bytecode.POP;
+	static final int IPUSH    = Bytecode.IPUSH;    // const_idx
+	static final int IADD     = Bytecode.IADD;
+	static final int ISUB     = Bytecode.ISUB;
+	static final int IMUL     = Bytecode.IMUL;
+	static final int IDIV     = Bytecode.IDIV;
+	static final int ILT      = Bytecode.ILT;
+	static final int IGT      = Bytecode.IGT;
+	static final int ILTE     = Bytecode.ILTE;
+	static final int IGTE     = Bytecode.IGTE;
+	static final int IEQ      = Bytecode.IEQ;
+	static final int INEQ     = Bytecode.INEQ;
+	static final int ILOAD    = Bytecode.ILOAD;
+	static final int ISTORE   = Bytecode.ISTORE;
+	static final int SPUSH    = Bytecode.SPUSH;    // type, addr
+	static final int SLOAD    = Bytecode.SLOAD;
+	static final int CALL     = Bytecode.CALL;     // target, nArgs
+	static final int RET      = Bytecode.RET;
+	static final int LOCALS   = Bytecode.LOCALS;   // n
+	static final int ADDR_OF  = Bytecode.ADDR_OF;
+	static final int VAL_OF   = Bytecode.VAL_OF;
+	static final int RESOLVE  = Bytecode.RESOLVE;
+	static final int JMP      = Bytecode.JMP;      // target
+	static final int BREQ     = Bytecode.BREQ;     // target
+	static final int BRNE     = Bytecode.BRNE;     // target
+	static final int PRINT    = Bytecode.PRINT;    // n
+	static final int HALT     = Bytecode.HALT;
+	static final int LLOAD    = Bytecode.LLOAD;    // slot
+	static final int LSTORE   = Bytecode.LSTORE;   // slot
+	static final int IINC     = Bytecode.IINC;     // slot, const_idx
+	static final int BRLT     = Bytecode.BRLT;     // target
+	static final int BRGT     = Bytecode.BRGT;     // target
+	static final int BRLTE    = Bytecode.BRLTE;    // target
+	static final int BRGTE    = Bytecode.BRGTE;    // target
+	static final int BRIEQ    = Bytecode.BRIEQ;    // target
+	static final int BRINE    = Bytecode.BRINE;    // target
+	static final int IADDI    = Bytecode.IADDI;    // const_idx
+	static final int TAILCALL = Bytecode.TAILCALL; // target, nArgs
+	//fmt:on
+
+	final byte[] code;
+	final int[]  inst;
+	final long[] consts;
+	final int[]  addr;  // code image address of every decoded op, for diagnostics
+	final int[]  frame; // frame size of the function entered at this op, from the function table
+
+	private Decoded(byte[] code, int[] inst, long[] consts, int[] addr, int[] frame) {
+		this.code = code;
+		this.inst = inst;
+		this.consts = consts;
+		this.addr = addr;
+		this.frame = frame;
+	}
+
+	static Decoded decode(byte[] code) {
+		int start = VM.codeStart(code);
+		int[] frameSizes = VM.frameSizes(code);
+
+		// pass 1: map every instruction start in the image to its stream index
+		int[] idx = new int[code.length + 1];
+		Arrays.fill(idx, -1);
+		int len = 0;
+		for (int ip = start; ip < code.length; ip += 1 + nArgs(code, ip)) {
+			idx[ip] = len;
+			len += width(code[ip]);
+		}
+		idx[code.length] = len;
+		len++; // trailing HALT catches control running off the end of the image
+
+		// pass 2: emit
+		int[] inst = new int[len];
+		int[] addr = new int[len];
+		int[] frame = new int[len];
+		long[] consts = new long[16];
+		int nConsts = 0;
+		int pc = 0;
+		for (int ip = start; ip < code.length; ip += 1 + nArgs(code, ip)) {
+			byte op = code[ip];
+			addr[pc] = ip;
+			switch (op) {
+			case Bytecode.IPUSH:
+			case Bytecode.IPUSH_0:
+			case Bytecode.IPUSH_1:
+			case Bytecode.IPUSH_2:
+			case Bytecode.IPUSH_3:
+			case Bytecode.IPUSH8:
+			case Bytecode.IPUSH16:
+			case Bytecode.IPUSH32:
+			case Bytecode.IADDI:
+				if (nConsts == consts.length)
+					consts = Arrays.copyOf(consts, nConsts*2);
+				consts[nConsts] = op == Bytecode.IADDI ? Marshal.s64BE(code, ip + 1) : ipush(code, ip);
+				inst[pc++] = op == Bytecode.IADDI ? IADDI : IPUSH;
+				inst[pc++] = nConsts++;
+				break;
+			case Bytecode.IINC:
+				if (nConsts == consts.length)
+					consts = Arrays.copyOf(consts, nConsts*2);
+				consts[nConsts] = Marshal.s64BE(code, ip + 5);
+				inst[pc++] = IINC;
+				inst[pc++] = Marshal.s32BE(code, ip + 1);
+				inst[pc++] = nConsts++;
+				break;
+			case Bytecode.SPUSH:
+				inst[pc++] = SPUSH;
+				inst[pc++] = Marshal.s32BE(code, ip + 1);
+				inst[pc++] = Marshal.s32BE(code, ip + 5);
+				break;
+			case Bytecode.CALL:
+			case Bytecode.TAILCALL:
+				int to = Marshal.s32BE(code, ip + 1);
+				inst[pc++] = op == Bytecode.CALL ? CALL : TAILCALL;
+				inst[pc++] = target(idx, ip, to, "call");
+				inst[pc++] = Marshal.s32BE(code, ip + 5);
+				if (frameSizes[to] < 0)
+					throw new IllegalStateException(String.format("call to 0x%08x without function table entry", to));
+				frame[idx[to]] = frameSizes[to];
+				break;
+			case Bytecode.JMP:
+			case Bytecode.BREQ:
+			case Bytecode.BRNE:
+			case Bytecode.BRLT:
+			case Bytecode.BRGT:
+			case Bytecode.BRLTE:
+			case Bytecode.BRGTE:
+			case Bytecode.BRIEQ:
+			case Bytecode.BRINE:
+				inst[pc++] = op;
+				inst[pc++] = target(idx, ip, ip + 5 + Marshal.s32BE(code, ip + 1), "jmp");
+				break;
+			case Bytecode.LOCALS:
+			case Bytecode.PRINT:
+			case Bytecode.LLOAD:
+			case Bytecode.LSTORE:
+				inst[pc++] = op;
+				inst[pc++] = Marshal.s32BE(code, ip + 1);
+				break;
+			default:
+				inst[pc++] = op;
+				break;
+			}
+		}
+		addr[pc] = code.length;
+		inst[pc] = HALT;
+
+		return new Decoded(code, inst, Arrays.copyOf(consts, nConsts), addr, frame);
+	}
+
+	// Value pushed by any of the int push forms at ip
+	static long ipush(byte[] code, int ip) {
+		switch (code[ip]) {
+		case Bytecode.IPUSH_0:
+		case Bytecode.IPUSH_1:
+		case Bytecode.IPUSH_2:
+		case Bytecode.IPUSH_3:
+			return code[ip] - Bytecode.IPUSH_0;
+		case Bytecode.IPUSH8:
+			return code[ip + 1];
+		case Bytecode.IPUSH16:
+			return (short) ((code[ip + 1] & 0xff) << 8 | (code[ip + 2] & 0xff));
+		case Bytecode.IPUSH32:
+			return Marshal.s32BE(code, ip + 1);
+		default:
+			return Marshal.s64BE(code, ip + 1);
+		}
+	}
+
+	private static int nArgs(byte[] code, int ip) {
+		Bytecode.Op inst = Bytecode.opCodes.get(code[ip]);
+		if (inst == null)
+			throw new BPLVMIllegalStateError(code[ip]);
+		return inst.nArgs;
+	}
+
+	private static int width(byte op) {
+		switch (op) {
+		case Bytecode.SPUSH:
+		case Bytecode.CALL:
+		case Bytecode.TAILCALL:
+		case Bytecode.IINC:
+			return 3;
+		case Bytecode.IPUSH:
+		case Bytecode.IPUSH_0:
+		case Bytecode.IPUSH_1:
+		case Bytecode.IPUSH_2:
+		case Bytecode.IPUSH_3:
+		case Bytecode.IPUSH8:
+		case Bytecode.IPUSH16:
+		case Bytecode.IPUSH32:
+		case Bytecode.IADDI:
+		case Bytecode.JMP:
+		case Bytecode.BREQ:
+		case Bytecode.BRNE:
+		case Bytecode.BRLT:
+		case Bytecode.BRGT:
+		case Bytecode.BRLTE:
+		case Bytecode.BRGTE:
+		case Bytecode.BRIEQ:
+		case Bytecode.BRINE:
+		case Bytecode.LOCALS:
+		case Bytecode.PRINT:
+		case Bytecode.LLOAD:
+		case Bytecode.LSTORE:
+			return 2;
+		default:
+			return 1;
+		}
+	}
+
+	// Width of a decoded op in ints, including its operands
+	static int length(int op) {
+		switch (op) {
+		case SPUSH:
+		case CALL:
+		case TAILCALL:
+		case IINC:
+			return 3;
+		case IPUSH:
+		case IADDI:
+		case JMP:
+		case BREQ:
+		case BRNE:
+		case BRLT:
+		case BRGT:
+		case BRLTE:
+		case BRGTE:
+		case BRIEQ:
+		case BRINE:
+		case LOCALS:
+		case PRINT:
+		case LLOAD:
+		case LSTORE:
+			return 2;
+		default:
+			return 1;
+		}
+	}
+
+	private static int target(int[] idx, int ip, int to, String what) {
+		if (to < 0 || to >= idx.length || idx[to] < 0)
+			throw new ArrayIndexOutOfBoundsException(String.format("%s to invalid addr 0x%08x --> 0x%08x\n", what, ip, to));
+		return idx[to];
+	}
+
+}
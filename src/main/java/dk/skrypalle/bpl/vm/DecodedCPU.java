@@ -0,0 +1,509 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.compiler.type.*;
+import dk.skrypalle.bpl.vm.err.*;
+
+import java.util.*;
+
+import static dk.skrypalle.bpl.vm.CPU.*;
+import static dk.skrypalle.bpl.vm.Decoded.*;
+
+class DecodedCPU implements Core {
+
+	private final VM      vm;
+	private final Decoded dec;
+
+	private long[]  vals;
+	private int[]   types;
+	private int[]   frames;
+	private int     fsp;
+	private int     pc;
+	private int     fp;
+	private int     sp;
+	private long    garbage;
+	private boolean halted;
+
+	DecodedCPU(VM vm, Decoded dec) {
+		this.vm = vm;
+		this.dec = dec;
+		this.vals = new long[0];
+		this.types = new int[0];
+		this.frames = new int[0];
+		this.sp = -1;
+		this.garbage = 0x2545f4914f6cdd1dL;
+		growStack(1); // result slot of the preamble
+	}
+
+	@Override
+	public long run(long budget) {
+		final int[] inst = dec.inst;
+		final int[] frame = dec.frame;
+		final long[] consts = dec.consts;
+
+		long[] vals = this.vals;
+		int[] types = this.types;
+		int sp = this.sp;
+		int fp = this.fp;
+		int pc = this.pc;
+
+		int lhs, rhs, n, addr;
+		long val;
+
+		for (; ; ) {
+			budget--;
+			int op = inst[pc++];
+			switch (op) {
+			case NOP:
+				break;
+			case POP:
+				if (sp < 0)
+					throw new BPLVMStackUnderflowError();
+				sp--;
+				break;
+			case IPUSH:
+				sp++;
+				vals[sp] = consts[inst[pc++]];
+				types[sp] = T_INT;
+				break;
+			case IADD:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp;
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[lhs] = vals[lhs] + vals[rhs];
+				types[lhs] = T_INT;
+				break;
+			case ISUB:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp;
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[lhs] = vals[lhs] - vals[rhs];
+				types[lhs] = T_INT;
+				break;
+			case IMUL:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp;
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[lhs] = vals[lhs]*vals[rhs];
+				types[lhs] = T_INT;
+				break;
+			case IDIV:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp;
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[lhs] = vals[lhs]/vals[rhs];
+				types[lhs] = T_INT;
+				break;
+			case ILT:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp;
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[lhs] = vals[lhs] < vals[rhs] ? 1 : 0;
+				types[lhs] = T_INT;
+				break;
+			case IGT:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp;
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[lhs] = vals[lhs] > vals[rhs] ? 1 : 0;
+				types[lhs] = T_INT;
+				break;
+			case ILTE:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp;
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[lhs] = vals[lhs] <= vals[rhs] ? 1 : 0;
+				types[lhs] = T_INT;
+				break;
+			case IGTE:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp;
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[lhs] = vals[lhs] >= vals[rhs] ? 1 : 0;
+				types[lhs] = T_INT;
+				break;
+			case IEQ:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp;
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[lhs] = vals[lhs] == vals[rhs] ? 1 : 0;
+				types[lhs] = T_INT;
+				break;
+			case INEQ:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp;
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[lhs] = vals[lhs] != vals[rhs] ? 1 : 0;
+				types[lhs] = T_INT;
+				break;
+			case ILOAD:
+			case SLOAD:
+				if (sp < 0)
+					throw new BPLVMStackUnderflowError();
+				addr = fp + (int) vals[sp] + 1;
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[sp] = vals[addr];
+				types[sp] = types[addr];
+				break;
+			case IADDI:
+				if (sp < 0)
+					throw new BPLVMStackUnderflowError();
+				if (types[sp] != T_INT)
+					throw new IllegalArgumentException(String.format("IADDI:: want [INT], have [%s]", vm.universe.lookup(types[sp])));
+				vals[sp] += consts[inst[pc++]];
+				break;
+			case LLOAD:
+				addr = fp + inst[pc++] + 1;
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				sp++;
+				vals[sp] = vals[addr];
+				types[sp] = types[addr];
+				break;
+			case LSTORE:
+				if (sp < 0)
+					throw new BPLVMStackUnderflowError();
+				addr = fp + inst[pc++] + 1;
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[addr] = vals[sp];
+				types[addr] = types[sp];
+				sp--;
+				break;
+			case IINC:
+				addr = fp + inst[pc++] + 1;
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				if (types[addr] != T_INT)
+					throw new IllegalArgumentException(String.format("IINC:: want [INT], have [%s]", vm.universe.lookup(types[addr])));
+				vals[addr] += consts[inst[pc++]];
+				break;
+			case ISTORE:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp--;
+				addr = fp + (int) vals[lhs] + 1;
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[addr] = vals[rhs];
+				types[addr] = types[rhs];
+				break;
+			case ADDR_OF:
+				if (sp < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[sp] = fp + (int) vals[sp] + 1;
+				types[sp] = Types.ptr(types[sp]);
+				break;
+			case VAL_OF:
+				if (sp < 0)
+					throw new BPLVMStackUnderflowError();
+				addr = (int) vals[sp];
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[sp] = vals[addr];
+				types[sp] = types[addr];
+				break;
+			case RESOLVE:
+				if (sp < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[sp] = vals[sp] - fp - 1;
+				types[sp] = T_INT;
+				break;
+			case SPUSH:
+				sp++;
+				types[sp] = inst[pc++];
+				vals[sp] = inst[pc++];
+				break;
+			case CALL:
+				addr = inst[pc++];
+				n = inst[pc++];
+				// reserve the whole frame once, the body runs without bounds checks
+				if (sp + frame[addr] >= vals.length) {
+					growStack(sp + frame[addr] + 1);
+					vals = this.vals;
+					types = this.types;
+				}
+				pushFrame(pc, fp, n);
+				fp = sp;
+				pc = addr;
+				if (budget <= 0)
+					return suspend(pc, fp, sp, budget);
+				break;
+			case RET:
+				if (sp < 0 || fsp < FRAME_LEN)
+					throw new BPLVMStackUnderflowError();
+				val = vals[sp];
+				int type = types[sp];
+				int f = fsp -= FRAME_LEN;
+				sp = fp - frames[f + 2] + 1;
+				fp = frames[f + 1];
+				pc = frames[f];
+				if (sp < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[sp] = val;
+				types[sp] = type;
+				break;
+			case TAILCALL:
+				addr = inst[pc++];
+				n = inst[pc++];
+				if (sp - n + 1 < 0 || fsp < FRAME_LEN)
+					throw new BPLVMStackUnderflowError();
+				// move the args onto our params and hand our return over to the callee
+				lhs = fp - frames[fsp - 1] + 1;
+				System.arraycopy(vals, sp - n + 1, vals, lhs, n);
+				System.arraycopy(types, sp - n + 1, types, lhs, n);
+				frames[fsp - 1] = n;
+				sp = lhs + n - 1;
+				if (sp + frame[addr] >= vals.length) {
+					growStack(sp + frame[addr] + 1);
+					vals = this.vals;
+					types = this.types;
+				}
+				fp = sp;
+				pc = addr;
+				if (budget <= 0)
+					return suspend(pc, fp, sp, budget);
+				break;
+			case LOCALS:
+				n = inst[pc++];
+				// simulate garbage in local storage
+				for (int i = 0; i < n; i++) {
+					garbage ^= garbage << 13;
+					garbage ^= garbage >>> 7;
+					garbage ^= garbage << 17;
+					vals[++sp] = garbage;
+					types[sp] = T_INT;
+				}
+				break;
+			case JMP:
+				if (inst[pc] < pc && budget <= 0)
+					return suspend(inst[pc], fp, sp, budget);
+				pc = inst[pc];
+				break;
+			case BREQ:
+			case BRNE:
+				if (sp < 0)
+					throw new BPLVMStackUnderflowError();
+				if (types[sp] != T_INT)
+					throw new IllegalArgumentException(String.format("%s:: want [INT], have [%s]",
+						op == BREQ ? "BREQ" : "BRNE", vm.universe.lookup(types[sp])));
+				if ((vals[sp--] == 0) == (op == BREQ))
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRLT:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp--;
+				if (types[lhs] != T_INT || types[rhs] != T_INT)
+					throw cmpMismatch("BRLT", types[lhs], types[rhs]);
+				if (vals[lhs] < vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRGT:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp--;
+				if (types[lhs] != T_INT || types[rhs] != T_INT)
+					throw cmpMismatch("BRGT", types[lhs], types[rhs]);
+				if (vals[lhs] > vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRLTE:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp--;
+				if (types[lhs] != T_INT || types[rhs] != T_INT)
+					throw cmpMismatch("BRLTE", types[lhs], types[rhs]);
+				if (vals[lhs] <= vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRGTE:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp--;
+				if (types[lhs] != T_INT || types[rhs] != T_INT)
+					throw cmpMismatch("BRGTE", types[lhs], types[rhs]);
+				if (vals[lhs] >= vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRIEQ:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp--;
+				if (types[lhs] != T_INT || types[rhs] != T_INT)
+					throw cmpMismatch("BRIEQ", types[lhs], types[rhs]);
+				if (vals[lhs] == vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRINE:
+				if (sp < 1)
+					throw new BPLVMStackUnderflowError();
+				rhs = sp--;
+				lhs = sp--;
+				if (types[lhs] != T_INT || types[rhs] != T_INT)
+					throw cmpMismatch("BRINE", types[lhs], types[rhs]);
+				if (vals[lhs] != vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case PRINT:
+				n = inst[pc++];
+				if (sp - n + 1 < 0)
+					throw new BPLVMStackUnderflowError();
+				for (int arg = sp - n + 1; arg <= sp; arg++)
+					vm.print(vals[arg], types[arg]);
+				sp -= n;
+				break;
+			case HALT:
+				halted = true;
+				return suspend(pc - 1, fp, sp, budget);
+			default:
+				throw new IllegalStateException(String.format("illegal decoded op 0x%02x at 0x%08x", op, dec.addr[pc - 1]));
+			}
+		}
+	}
+
+	@Override
+	public boolean halted() {
+		return halted;
+	}
+
+	@Override
+	public int exitCode() {
+		return (int) vals[sp];
+	}
+
+	@Override
+	public void reset() {
+		pc = 0;
+		fp = 0;
+		sp = -1;
+		fsp = 0;
+		halted = false;
+		garbage = 0x2545f4914f6cdd1dL;
+	}
+
+	private IllegalArgumentException typeMismatch(int op, int lhs, int rhs) {
+		//fmt:off
+		String name;
+		switch (op) {
+		case IADD: name = "IADD"; break;
+		case ISUB: name = "ISUB"; break;
+		case IMUL: name = "IMUL"; break;
+		case IDIV: name = "IDIV"; break;
+		case ILT : name = "ILT";  break;
+		case IGT : name = "IGT";  break;
+		case ILTE: name = "ILTE"; break;
+		case IGTE: name = "IGTE"; break;
+		case IEQ : name = "IEQ";  break;
+		default  : name = "INEQ"; break;
+		}
+		//fmt:on
+		return new IllegalArgumentException(String.format("%s:: want [INT,INT], have [%s,%s]",
+			name, vm.universe.lookup(lhs), vm.universe.lookup(rhs)));
+	}
+
+	private IllegalArgumentException cmpMismatch(String name, int lhs, int rhs) {
+		return new IllegalArgumentException(String.format("%s:: want [INT,INT], have [%s,%s]",
+			name, vm.universe.lookup(lhs), vm.universe.lookup(rhs)));
+	}
+
+	// Saves the registers of a run interrupted at a preemption point
+	private long suspend(int pc, int fp, int sp, long budget) {
+		this.pc = pc;
+		this.fp = fp;
+		this.sp = sp;
+		return budget;
+	}
+
+	private void pushFrame(int pc, int fp, int nArgs) {
+		int f = fsp;
+		if (f + FRAME_LEN > frames.length)
+			frames = growFrames(frames, vm.stackLimit);
+		frames[f] = pc;
+		frames[f + 1] = fp;
+		frames[f + 2] = nArgs;
+		fsp = f + FRAME_LEN;
+	}
+
+	private void growStack(int minLen) {
+		int newLen = growLen(vals.length, minLen, vm.stackLimit);
+		vals = Arrays.copyOf(vals, newLen);
+		types = Arrays.copyOf(types, newLen);
+	}
+
+}
@@ -0,0 +1,621 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.vm.err.*;
+
+import java.util.*;
+
+import static dk.skrypalle.bpl.vm.ClassFile.*;
+
+// Second tier of the byte-dispatch CPU. Functions that get hot are translated
+// from their decoded form into static methods of a generated class, which the
+// JVM then compiles to machine code like any other.
+//
+// Only side-effect free int functions are compiled: no PRINT, no strings or
+// pointers, and calls only to functions that qualify as well. All values are
+// plain longs, every frame slot becomes a JVM local and calls become JVM
+// calls. As such a function cannot change anything outside its own frame,
+// compiled code may give up at any point (see JitBail) and leave the call to
+// the interpreter: when the budget runs out at a preemption point, and when
+// calls nest deeper than MAX_DEPTH or come close to the stack limit. Budgets,
+// limits and errors thus behave exactly as in the interpreter.
+//
+// The compiled code is shared by all VMs running the program; the counters
+// deciding what is hot are kept per CPU.
+final class Jit {
+
+	static final int THRESHOLD = 1000; // calls and back-edges before a function is compiled
+	static final int MAX_DEPTH = 256;  // calls compiled code may nest
+
+	private static final int UNSEEN = Integer.MIN_VALUE;
+
+	static final class Entry {
+		final JitCode code; // null if the function is not compiled
+		final int     nArgs;
+
+		private Entry(JitCode code, int nArgs) {
+			this.code = code;
+			this.nArgs = nArgs;
+		}
+	}
+
+	final int[] owner; // entry address of the function each image address belongs to
+
+	private final Program program;
+	private final Entry[] entries; // by function entry address
+	private final Loader  loader;
+
+	private Decoded dec;
+	private int[]   pcOf; // decoded pc of each instruction address
+	private int     nUnits;
+
+	Jit(Program program) {
+		this.program = program;
+		this.entries = new Entry[program.code.length];
+		this.loader = new Loader();
+		this.owner = new int[program.code.length];
+		for (int a = 0, cur = program.codeStart; a < owner.length; a++) {
+			if (program.frameSizes[a] >= 0)
+				cur = a;
+			owner[a] = cur;
+		}
+	}
+
+	Entry entry(int addr) {
+		return entries[addr];
+	}
+
+	// Compiles the function at addr, called with nArgs, together with every
+	// function it calls into one class.
+	synchronized Entry compile(int addr, int nArgs) {
+		Entry e = entries[addr];
+		if (e != null)
+			return e;
+
+		JitCode code = null;
+		if (decode())
+			code = new Unit("bplc/jit/Unit" + nUnits++).compile(pcOf[addr], nArgs);
+		e = new Entry(code, nArgs);
+		entries[addr] = e;
+		return e;
+	}
+
+	// Drops the compiled code of the function at addr for good, used once it
+	// bailed out for nesting too deep
+	synchronized void reject(int addr) {
+		Entry e = entries[addr];
+		if (e != null && e.code != null)
+			entries[addr] = new Entry(null, e.nArgs);
+	}
+
+	private boolean decode() {
+		if (pcOf != null)
+			return true;
+		try {
+			dec = program.decoded();
+		} catch (RuntimeException | BPLVMIllegalStateError e) {
+			return false; // left to the interpreter, which reports the error when it gets there
+		}
+		pcOf = new int[program.code.length + 1];
+		Arrays.fill(pcOf, -1);
+		for (int pc = 0; pc < dec.inst.length; pc += Decoded.length(dec.inst[pc]))
+			pcOf[dec.addr[pc]] = pc;
+		return true;
+	}
+
+	//region Unit
+
+	// One generated class: the root function and everything it calls
+	private final class Unit {
+
+		private final ClassFile         cf;
+		private final Map<Integer, Fn>  fns;
+		private final Deque<Fn>         todo;
+		private final int               fuel;
+		private final int               deep;
+
+		private Unit(String name) {
+			this.cf = new ClassFile(name, "dk/skrypalle/bpl/vm/JitCode");
+			this.fns = new LinkedHashMap<>();
+			this.todo = new ArrayDeque<>();
+			this.fuel = cf.fieldRef("dk/skrypalle/bpl/vm/JitBail", "FUEL", "Ldk/skrypalle/bpl/vm/JitBail;");
+			this.deep = cf.fieldRef("dk/skrypalle/bpl/vm/JitBail", "DEPTH", "Ldk/skrypalle/bpl/vm/JitBail;");
+		}
+
+		private JitCode compile(int entry, int nArgs) {
+			Fn root = fn(entry, nArgs);
+			if (root == null)
+				return null;
+			while (!todo.isEmpty()) {
+				if (!analyze(todo.poll()))
+					return null;
+			}
+			for (Fn f : fns.values()) {
+				if (!emit(f))
+					return null;
+			}
+			if (!emitInvoke(root))
+				return null;
+
+			try {
+				Class<?> cls = loader.define(cf.name.replace('/', '.'), cf.toBytes());
+				return (JitCode) cls.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("cannot instantiate compiled " + cf.name, e);
+			}
+		}
+
+		private Fn fn(int entry, int nArgs) {
+			Fn f = fns.get(entry);
+			if (f == null) {
+				int frame = program.frameSizes[dec.addr[entry]];
+				if (frame < 0)
+					return null;
+				f = new Fn(fns.size(), entry, nArgs, frame, dec.inst.length);
+				fns.put(entry, f);
+				todo.add(f);
+			}
+			return f.nArgs == nArgs ? f : null;
+		}
+
+		//region analysis
+
+		// Tracks the stack depth above fp at every op reachable from the
+		// entry, rejecting any op the translation does not cover
+		private boolean analyze(Fn f) {
+			int[] in = dec.inst;
+			Deque<Integer> work = new ArrayDeque<>();
+			f.depth[f.entry] = 0;
+			work.push(f.entry);
+			while (!work.isEmpty()) {
+				int pc = work.pop();
+				int d = f.depth[pc];
+				int op = in[pc];
+				int next = pc + Decoded.length(op);
+				int need = 0;
+				int to = -1;
+				boolean falls = true;
+				switch (op) {
+				case Decoded.NOP:
+					break;
+				case Decoded.POP:
+				case Decoded.IADDI:
+					need = 1;
+					d -= op == Decoded.POP ? 1 : 0;
+					break;
+				case Decoded.IPUSH:
+					d++;
+					break;
+				case Decoded.IADD:
+				case Decoded.ISUB:
+				case Decoded.IMUL:
+				case Decoded.IDIV:
+				case Decoded.ILT:
+				case Decoded.IGT:
+				case Decoded.ILTE:
+				case Decoded.IGTE:
+				case Decoded.IEQ:
+				case Decoded.INEQ:
+					need = 2;
+					d--;
+					break;
+				case Decoded.LLOAD:
+					if (!f.hasSlot(in[pc + 1] + 1))
+						return false;
+					d++;
+					break;
+				case Decoded.LSTORE:
+					if (!f.hasSlot(in[pc + 1] + 1))
+						return false;
+					need = 1;
+					d--;
+					break;
+				case Decoded.IINC:
+					if (!f.hasSlot(in[pc + 1] + 1))
+						return false;
+					break;
+				case Decoded.LOCALS:
+					if (in[pc + 1] < 0)
+						return false;
+					d += in[pc + 1];
+					break;
+				case Decoded.JMP:
+					to = in[pc + 1];
+					falls = false;
+					break;
+				case Decoded.BREQ:
+				case Decoded.BRNE:
+					need = 1;
+					d--;
+					to = in[pc + 1];
+					break;
+				case Decoded.BRLT:
+				case Decoded.BRGT:
+				case Decoded.BRLTE:
+				case Decoded.BRGTE:
+				case Decoded.BRIEQ:
+				case Decoded.BRINE:
+					need = 2;
+					d -= 2;
+					to = in[pc + 1];
+					break;
+				case Decoded.CALL:
+				case Decoded.TAILCALL:
+					need = in[pc + 2];
+					if (need < 0 || fn(in[pc + 1], need) == null)
+						return false;
+					d -= need - 1;
+					falls = op == Decoded.CALL;
+					break;
+				case Decoded.RET:
+					need = 1;
+					falls = false;
+					break;
+				default:
+					return false; // side effects, strings, pointers or HALT
+				}
+				if (f.depth[pc] < need || d < 0 || d > f.frame)
+					return false;
+				if (to >= 0 && !reach(f, work, to, d))
+					return false;
+				if (falls && !reach(f, work, next, d))
+					return false;
+			}
+
+			f.pcs = new int[f.nPcs];
+			for (int pc = 0, i = 0; pc < in.length; pc++) {
+				if (f.depth[pc] != UNSEEN)
+					f.pcs[i++] = pc;
+			}
+			return true;
+		}
+
+		private boolean reach(Fn f, Deque<Integer> work, int pc, int d) {
+			if (pc < 0 || pc >= f.depth.length)
+				return false;
+			if (f.depth[pc] == UNSEEN) {
+				f.depth[pc] = d;
+				f.nPcs++;
+				work.push(pc);
+				return true;
+			}
+			return f.depth[pc] == d;
+		}
+
+		//endregion
+
+		//region emit
+
+		private boolean emit(Fn f) {
+			int[] in = dec.inst;
+			ClassFile.Code c = cf.new Code(ACC_PRIVATE | ACC_STATIC, f.name, f.desc(),
+				3 + 2*(f.nArgs + f.frame), f.frameTypes(cf), 3 + f.nArgs + f.frame);
+
+			// ops starting a basic block: the budget is charged per block
+			boolean[] leader = new boolean[in.length + 1];
+			int[] label = new int[in.length];
+			Arrays.fill(label, -1);
+			leader[f.entry] = true;
+			for (int pc : f.pcs) {
+				int op = in[pc];
+				if (isBranch(op)) {
+					leader[in[pc + 1]] = true;
+					if (label[in[pc + 1]] < 0)
+						label[in[pc + 1]] = c.label();
+				}
+				if (isBranch(op) || op == Decoded.CALL)
+					leader[pc + Decoded.length(op)] = true;
+			}
+
+			// frame slots above fp start out as 0, a fine value for garbage
+			for (int r = 1; r <= f.frame; r++)
+				c.op(LCONST_0).lstore(f.local(r));
+			int loop = c.label();
+			c.bind(loop);
+
+			int maxStack = 6;
+			for (int i = 0; i < f.pcs.length; i++) {
+				int pc = f.pcs[i];
+				int op = in[pc];
+				int d = f.depth[pc];
+				if (label[pc] >= 0)
+					c.bind(label[pc]);
+				if (leader[pc]) {
+					int n = 1;
+					while (i + n < f.pcs.length && !leader[f.pcs[i + n]])
+						n++;
+					c.aload(0).op(ICONST_0).op(DUP2).op(LALOAD).lconst(n).op(LSUB).op(LASTORE);
+				}
+
+				switch (op) {
+				case Decoded.NOP:
+				case Decoded.POP:
+					break;
+				case Decoded.IPUSH:
+					c.lconst(dec.consts[in[pc + 1]]).lstore(f.local(d + 1));
+					break;
+				case Decoded.IADDI:
+					c.lload(f.local(d)).lconst(dec.consts[in[pc + 1]]).op(LADD).lstore(f.local(d));
+					break;
+				case Decoded.IADD:
+				case Decoded.ISUB:
+				case Decoded.IMUL:
+				case Decoded.IDIV:
+					c.lload(f.local(d - 1)).lload(f.local(d)).op(arith(op)).lstore(f.local(d - 1));
+					break;
+				case Decoded.ILT:
+				case Decoded.IGT:
+				case Decoded.ILTE:
+				case Decoded.IGTE:
+				case Decoded.IEQ:
+				case Decoded.INEQ:
+					c.lload(f.local(d - 1)).lload(f.local(d)).op(LCMP);
+					compare(c, op);
+					c.op(I2L).lstore(f.local(d - 1));
+					break;
+				case Decoded.LLOAD:
+					c.lload(f.local(in[pc + 1] + 1)).lstore(f.local(d + 1));
+					break;
+				case Decoded.LSTORE:
+					c.lload(f.local(d)).lstore(f.local(in[pc + 1] + 1));
+					break;
+				case Decoded.IINC:
+					c.lload(f.local(in[pc + 1] + 1)).lconst(dec.consts[in[pc + 2]]).op(LADD).lstore(f.local(in[pc + 1] + 1));
+					break;
+				case Decoded.LOCALS:
+					for (int r = d + 1; r <= d + in[pc + 1]; r++)
+						c.op(LCONST_0).lstore(f.local(r));
+					break;
+				case Decoded.JMP:
+					if (in[pc + 1] <= pc)
+						checkFuel(c); // backward JMPs are preemption points
+					c.jump(GOTO, label[in[pc + 1]]);
+					break;
+				case Decoded.BREQ:
+				case Decoded.BRNE:
+					c.lload(f.local(d)).op(LCONST_0).op(LCMP);
+					c.jump(op == Decoded.BREQ ? IFEQ : IFNE, label[in[pc + 1]]);
+					break;
+				case Decoded.BRLT:
+				case Decoded.BRGT:
+				case Decoded.BRLTE:
+				case Decoded.BRGTE:
+				case Decoded.BRIEQ:
+				case Decoded.BRINE:
+					c.lload(f.local(d - 1)).lload(f.local(d)).op(LCMP);
+					c.jump(branch(op), label[in[pc + 1]]);
+					break;
+				case Decoded.CALL:
+				case Decoded.TAILCALL:
+					Fn g = fns.get(in[pc + 1]);
+					int m = in[pc + 2];
+					maxStack = Math.max(maxStack, 4 + 2*m);
+					if (op == Decoded.TAILCALL && g == f) {
+						// the frame is reused as is, so this is a loop
+						for (int r = d - m + 1; r <= d; r++)
+							c.lload(f.local(r));
+						for (int r = 0; r > -m; r--)
+							c.lstore(f.local(r));
+						checkFuel(c);
+						c.jump(GOTO, loop);
+						break;
+					}
+					call(c, f, g, d, m);
+					if (op == Decoded.CALL)
+						c.lstore(f.local(d - m + 1));
+					else
+						c.op(LRETURN);
+					break;
+				case Decoded.RET:
+					c.lload(f.local(d)).op(LRETURN);
+					break;
+				default:
+					throw new IllegalStateException("unreachable");
+				}
+			}
+			return c.finish(maxStack);
+		}
+
+		// Calls g with the m args on top of the stack at depth d, bailing out
+		// wherever the interpreter might suspend or run out of stack
+		private void call(ClassFile.Code c, Fn f, Fn g, int d, int m) {
+			checkFuel(c);
+			int ok = c.label();
+			c.iload(2).jump(IFGT, ok);
+			bail(c, deep);
+			c.bind(ok);
+			ok = c.label();
+			c.iload(1).iconst(d + g.frame).jump(IF_ICMPGT, ok);
+			bail(c, deep);
+			c.bind(ok);
+
+			c.aload(0).iload(1).iconst(d).op(ClassFile.ISUB).iload(2).op(ICONST_1).op(ClassFile.ISUB);
+			for (int r = d - m + 1; r <= d; r++)
+				c.lload(f.local(r));
+			c.op(INVOKESTATIC).u2(cf.methodRef(cf.name, g.name, g.desc()));
+		}
+
+		private void checkFuel(ClassFile.Code c) {
+			int ok = c.label();
+			c.aload(0).op(ICONST_0).op(LALOAD).op(LCONST_0).op(LCMP).jump(IFGT, ok);
+			bail(c, fuel);
+			c.bind(ok);
+		}
+
+		private void bail(ClassFile.Code c, int field) {
+			c.op(GETSTATIC).u2(field).op(ATHROW);
+		}
+
+		private boolean emitInvoke(Fn root) {
+			ClassFile.Code c = cf.new Code(ACC_PUBLIC, "invoke", "([JII[J)J", 5, new byte[0], 0);
+			c.aload(1).iload(2).iload(3);
+			for (int i = 0; i < root.nArgs; i++)
+				c.aload(4).iconst(i).op(LALOAD);
+			c.op(INVOKESTATIC).u2(cf.methodRef(cf.name, root.name, root.desc())).op(LRETURN);
+			return c.finish(3 + 2*root.nArgs + 2);
+		}
+
+		//endregion
+
+	}
+
+	//endregion
+
+	//region Fn
+
+	private static final class Fn {
+
+		final String name;
+		final int    entry; // decoded pc
+		final int    nArgs;
+		final int    frame; // slots above fp
+		final int[]  depth; // stack depth above fp before each op, UNSEEN if not reached
+
+		int[] pcs; // reached ops in code order
+		int   nPcs;
+
+		Fn(int idx, int entry, int nArgs, int frame, int len) {
+			this.name = "f" + idx;
+			this.entry = entry;
+			this.nArgs = nArgs;
+			this.frame = frame;
+			this.depth = new int[len];
+			Arrays.fill(depth, UNSEEN);
+			this.nPcs = 1;
+		}
+
+		// Frame slot fp + r lives in a long local; fuel, room and frames come first
+		int local(int r) {
+			return 3 + 2*(r + nArgs - 1);
+		}
+
+		boolean hasSlot(int r) {
+			return r > -nArgs && r <= frame;
+		}
+
+		String desc() {
+			StringBuilder buf = new StringBuilder("([JII");
+			for (int i = 0; i < nArgs; i++)
+				buf.append('J');
+			return buf.append(")J").toString();
+		}
+
+		byte[] frameTypes(ClassFile cf) {
+			ClassFile.Buf b = new ClassFile.Buf();
+			b.u1(T_OBJECT).u2(cf.cls("[J")).u1(ClassFile.T_INT).u1(ClassFile.T_INT);
+			for (int i = 0; i < nArgs + frame; i++)
+				b.u1(T_LONG);
+			return b.toBytes();
+		}
+
+	}
+
+	//endregion
+
+	private static boolean isBranch(int op) {
+		switch (op) {
+		case Decoded.JMP:
+		case Decoded.BREQ:
+		case Decoded.BRNE:
+		case Decoded.BRLT:
+		case Decoded.BRGT:
+		case Decoded.BRLTE:
+		case Decoded.BRGTE:
+		case Decoded.BRIEQ:
+		case Decoded.BRINE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static int arith(int op) {
+		//fmt:off
+		switch (op) {
+		case Decoded.IADD: return LADD;
+		case Decoded.ISUB: return LSUB;
+		case Decoded.IMUL: return LMUL;
+		case Decoded.IDIV: return LDIV;
+		default          : throw new IllegalStateException("unreachable");
+		}
+		//fmt:on
+	}
+
+	private static int branch(int op) {
+		//fmt:off
+		switch (op) {
+		case Decoded.BRLT : return IFLT;
+		case Decoded.BRGT : return IFGT;
+		case Decoded.BRLTE: return IFLE;
+		case Decoded.BRGTE: return IFGE;
+		case Decoded.BRIEQ: return IFEQ;
+		case Decoded.BRINE: return IFNE;
+		default           : throw new IllegalStateException("unreachable");
+		}
+		//fmt:on
+	}
+
+	// Turns the lcmp result c (-1, 0 or 1) on the stack into 0 or 1 without
+	// branching, so no value ever sits on the JVM stack at a branch target
+	private static void compare(ClassFile.Code c, int op) {
+		switch (op) {
+		case Decoded.ILT: // c == -1
+			c.iconst(31).op(IUSHR);
+			break;
+		case Decoded.IGT: // c == 1
+			c.op(INEG).iconst(31).op(IUSHR);
+			break;
+		case Decoded.ILTE:
+			c.op(INEG).iconst(31).op(IUSHR).op(ICONST_1).op(IXOR);
+			break;
+		case Decoded.IGTE:
+			c.iconst(31).op(IUSHR).op(ICONST_1).op(IXOR);
+			break;
+		case Decoded.IEQ: // c == 0
+			c.op(ICONST_1).op(IAND).op(ICONST_1).op(IXOR);
+			break;
+		case Decoded.INEQ:
+			c.op(ICONST_1).op(IAND);
+			break;
+		default:
+			throw new IllegalStateException("unreachable");
+		}
+	}
+
+	private static final class Loader extends ClassLoader {
+
+		Loader() {
+			super(JitCode.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.compiler.type.*;
+import dk.skrypalle.bpl.util.*;
+
+// A loaded code image. Everything derived from the image alone -- the header,
+// the function table and the decoded forms the engines run -- is computed
+// once and shared by all VMs running it. A Program is immutable and may be
+// shared between threads; the decoded forms are built on first use.
+public final class Program {
+
+	final byte[]       code;
+	final int          ds_len;
+	final int          codeStart;
+	final int[]        frameSizes;
+	final TypeUniverse universe;
+	final int[]        lines; // (address, source line) pairs in address order, empty if unknown
+
+	private Decoded   decoded;
+	private Registers registers;
+	private Verified  verified;
+	private Jit       jit;
+	private Tree      tree;
+
+	private Program(byte[] code, TypeUniverse universe, int[] lines) {
+		this.code = code;
+		this.ds_len = Marshal.s32BE(code, 0);
+		this.codeStart = VM.codeStart(code);
+		this.frameSizes = VM.frameSizes(code);
+		this.universe = universe;
+		this.lines = lines;
+	}
+
+	public static Program load(byte[] code) {
+		return load(code, new TypeUniverse());
+	}
+
+	public static Program load(byte[] code, TypeUniverse universe) {
+		return new Program(code.clone(), universe, new int[0]);
+	}
+
+	// Loads an image rebuilt from a .bplbc file, see BcFile
+	static Program load(byte[] image, TypeUniverse universe, int[] lines) {
+		return new Program(image, universe, lines);
+	}
+
+	// Returns the source line of the statement the op at addr belongs to, -1
+	// if the line table does not cover it
+	int line(int addr) {
+		int lo = 0;
+		int hi = lines.length/2 - 1;
+		int res = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (lines[mid*2] <= addr) {
+				res = lines[mid*2 + 1];
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return res;
+	}
+
+	synchronized Decoded decoded() {
+		if (decoded == null)
+			decoded = Decoded.decode(code);
+		return decoded;
+	}
+
+	synchronized Registers registers() {
+		if (registers == null)
+			registers = Registers.translate(decoded());
+		return registers;
+	}
+
+	synchronized Tree tree() {
+		if (tree == null)
+			tree = Tree.build(verified());
+		return tree;
+	}
+
+	synchronized Jit jit() {
+		if (jit == null)
+			jit = new Jit(this);
+		return jit;
+	}
+
+	synchronized Verified verified() {
+		if (verified == null)
+			verified = Verified.verify(decoded(), universe);
+		return verified;
+	}
+
+}
@@ -0,0 +1,417 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.compiler.type.*;
+import dk.skrypalle.bpl.vm.err.*;
+
+import java.util.*;
+
+import static dk.skrypalle.bpl.vm.CPU.*;
+import static dk.skrypalle.bpl.vm.Registers.*;
+
+class RegisterCPU implements Core {
+
+	private final VM        vm;
+	private final Registers reg;
+
+	private long[]  vals;
+	private int[]   types;
+	private int[]   frames;
+	private int     fsp;
+	private int     pc;
+	private int     fp;
+	private int     sp;
+	private long    garbage;
+	private boolean halted;
+
+	RegisterCPU(VM vm, Registers reg) {
+		this.vm = vm;
+		this.reg = reg;
+		this.vals = new long[0];
+		this.types = new int[0];
+		this.frames = new int[0];
+		this.sp = -1;
+		this.garbage = 0x2545f4914f6cdd1dL;
+		growStack(1); // result slot of the preamble
+	}
+
+	@Override
+	public long run(long budget) {
+		final int[] inst = reg.inst;
+		final long[] consts = reg.consts;
+
+		long[] vals = this.vals;
+		int[] types = this.types;
+		int fp = this.fp;
+		int pc = this.pc;
+
+		int dst, lhs, rhs, n, addr;
+
+		for (; ; ) {
+			budget--;
+			int op = inst[pc];
+			switch (op) {
+			case MOV:
+				dst = fp + inst[pc + 1];
+				rhs = fp + inst[pc + 2];
+				vals[dst] = vals[rhs];
+				types[dst] = types[rhs];
+				pc += 3;
+				break;
+			case MOVK:
+				dst = fp + inst[pc + 1];
+				vals[dst] = consts[inst[pc + 2]];
+				types[dst] = T_INT;
+				pc += 3;
+				break;
+			case MOVS:
+				dst = fp + inst[pc + 1];
+				types[dst] = inst[pc + 2];
+				vals[dst] = inst[pc + 3];
+				pc += 4;
+				break;
+			case ADD:
+				dst = fp + inst[pc + 1];
+				lhs = fp + inst[pc + 2];
+				rhs = fp + inst[pc + 3];
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[dst] = vals[lhs] + vals[rhs];
+				types[dst] = T_INT;
+				pc += 4;
+				break;
+			case SUB:
+				dst = fp + inst[pc + 1];
+				lhs = fp + inst[pc + 2];
+				rhs = fp + inst[pc + 3];
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[dst] = vals[lhs] - vals[rhs];
+				types[dst] = T_INT;
+				pc += 4;
+				break;
+			case MUL:
+				dst = fp + inst[pc + 1];
+				lhs = fp + inst[pc + 2];
+				rhs = fp + inst[pc + 3];
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[dst] = vals[lhs]*vals[rhs];
+				types[dst] = T_INT;
+				pc += 4;
+				break;
+			case DIV:
+				dst = fp + inst[pc + 1];
+				lhs = fp + inst[pc + 2];
+				rhs = fp + inst[pc + 3];
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[dst] = vals[lhs]/vals[rhs];
+				types[dst] = T_INT;
+				pc += 4;
+				break;
+			case LT:
+			case GT:
+			case LTE:
+			case GTE:
+			case EQ:
+			case NEQ:
+				dst = fp + inst[pc + 1];
+				lhs = fp + inst[pc + 2];
+				rhs = fp + inst[pc + 3];
+				if (types[lhs] != types[rhs])
+					throw typeMismatch(op, types[lhs], types[rhs]);
+				vals[dst] = cmp(op, vals[lhs], vals[rhs]) ? 1 : 0;
+				types[dst] = T_INT;
+				pc += 4;
+				break;
+			case ADDK:
+				dst = fp + inst[pc + 1];
+				lhs = fp + inst[pc + 2];
+				if (types[lhs] != T_INT)
+					throw new IllegalArgumentException(String.format("IADDI:: want [INT], have [%s]", vm.universe.lookup(types[lhs])));
+				vals[dst] = vals[lhs] + consts[inst[pc + 3]];
+				types[dst] = T_INT;
+				pc += 4;
+				break;
+			case INC:
+				dst = fp + inst[pc + 1];
+				if (types[dst] != T_INT)
+					throw new IllegalArgumentException(String.format("IINC:: want [INT], have [%s]", vm.universe.lookup(types[dst])));
+				vals[dst] += consts[inst[pc + 2]];
+				pc += 3;
+				break;
+			case LOAD:
+				dst = fp + inst[pc + 1];
+				addr = fp + (int) vals[fp + inst[pc + 2]] + 1;
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[dst] = vals[addr];
+				types[dst] = types[addr];
+				pc += 3;
+				break;
+			case STORE:
+				addr = fp + (int) vals[fp + inst[pc + 1]] + 1;
+				rhs = fp + inst[pc + 2];
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[addr] = vals[rhs];
+				types[addr] = types[rhs];
+				pc += 3;
+				break;
+			case ADDR:
+				dst = fp + inst[pc + 1];
+				rhs = fp + inst[pc + 2];
+				vals[dst] = fp + (int) vals[rhs] + 1;
+				types[dst] = Types.ptr(types[rhs]);
+				pc += 3;
+				break;
+			case VALOF:
+				dst = fp + inst[pc + 1];
+				addr = (int) vals[fp + inst[pc + 2]];
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[dst] = vals[addr];
+				types[dst] = types[addr];
+				pc += 3;
+				break;
+			case RESOLVE:
+				dst = fp + inst[pc + 1];
+				vals[dst] = vals[fp + inst[pc + 2]] - fp - 1;
+				types[dst] = T_INT;
+				pc += 3;
+				break;
+			case CALL:
+				dst = fp + inst[pc + 2];
+				if (dst + inst[pc + 4] >= vals.length) {
+					growStack(dst + inst[pc + 4] + 1);
+					vals = this.vals;
+					types = this.types;
+				}
+				pushFrame(pc + 5, fp, inst[pc + 3]);
+				fp = dst;
+				pc = inst[pc + 1];
+				if (budget <= 0)
+					return suspend(pc, fp, sp, budget);
+				break;
+			case RET:
+				if (fsp < FRAME_LEN)
+					throw new BPLVMStackUnderflowError();
+				rhs = fp + inst[pc + 1];
+				int f = fsp -= FRAME_LEN;
+				dst = fp - frames[f + 2] + 1;
+				if (dst < 0)
+					throw new BPLVMStackUnderflowError();
+				fp = frames[f + 1];
+				pc = frames[f];
+				vals[dst] = vals[rhs];
+				types[dst] = types[rhs];
+				break;
+			case TAILCALL:
+				if (fsp < FRAME_LEN)
+					throw new BPLVMStackUnderflowError();
+				// move the args onto our params and hand our return over to the callee
+				n = inst[pc + 3];
+				rhs = fp + inst[pc + 2] - n + 1;
+				dst = fp - frames[fsp - 1] + 1;
+				if (dst < 0)
+					throw new BPLVMStackUnderflowError();
+				System.arraycopy(vals, rhs, vals, dst, n);
+				System.arraycopy(types, rhs, types, dst, n);
+				frames[fsp - 1] = n;
+				dst += n - 1;
+				if (dst + inst[pc + 4] >= vals.length) {
+					growStack(dst + inst[pc + 4] + 1);
+					vals = this.vals;
+					types = this.types;
+				}
+				fp = dst;
+				pc = inst[pc + 1];
+				if (budget <= 0)
+					return suspend(pc, fp, sp, budget);
+				break;
+			case LOCALS:
+				dst = fp + inst[pc + 1];
+				n = inst[pc + 2];
+				// simulate garbage in local storage
+				for (int i = 0; i < n; i++) {
+					garbage ^= garbage << 13;
+					garbage ^= garbage >>> 7;
+					garbage ^= garbage << 17;
+					vals[dst + i] = garbage;
+					types[dst + i] = T_INT;
+				}
+				pc += 3;
+				break;
+			case JMP:
+				if (inst[pc + 1] <= pc && budget <= 0)
+					return suspend(inst[pc + 1], fp, sp, budget);
+				pc = inst[pc + 1];
+				break;
+			case BRZ:
+			case BRNZ:
+				lhs = fp + inst[pc + 1];
+				if (types[lhs] != T_INT)
+					throw new IllegalArgumentException(String.format("%s:: want [INT], have [%s]",
+						op == BRZ ? "BREQ" : "BRNE", vm.universe.lookup(types[lhs])));
+				if ((vals[lhs] == 0) == (op == BRZ))
+					pc = inst[pc + 2];
+				else
+					pc += 3;
+				break;
+			case BRLT:
+			case BRGT:
+			case BRLTE:
+			case BRGTE:
+			case BRIEQ:
+			case BRINE:
+				lhs = fp + inst[pc + 1];
+				rhs = fp + inst[pc + 2];
+				if (types[lhs] != T_INT || types[rhs] != T_INT)
+					throw cmpMismatch(op - BRLT, types[lhs], types[rhs]);
+				if (cmp(op - BRLT + LT, vals[lhs], vals[rhs]))
+					pc = inst[pc + 3];
+				else
+					pc += 4;
+				break;
+			case BRLTK:
+			case BRGTK:
+			case BRLTEK:
+			case BRGTEK:
+			case BRIEQK:
+			case BRINEK:
+				lhs = fp + inst[pc + 1];
+				if (types[lhs] != T_INT)
+					throw cmpMismatch(op - BRLTK, types[lhs], T_INT);
+				if (cmp(op - BRLTK + LT, vals[lhs], consts[inst[pc + 2]]))
+					pc = inst[pc + 3];
+				else
+					pc += 4;
+				break;
+			case PRINT:
+				dst = fp + inst[pc + 1];
+				n = inst[pc + 2];
+				if (dst < 0)
+					throw new BPLVMStackUnderflowError();
+				for (int arg = dst; arg < dst + n; arg++)
+					vm.print(vals[arg], types[arg]);
+				pc += 3;
+				break;
+			case HALT:
+				halted = true;
+				return suspend(pc, fp, fp + inst[pc + 1], budget);
+			default:
+				throw new IllegalStateException(String.format("illegal register op 0x%02x at 0x%08x", op, reg.addr[pc]));
+			}
+		}
+	}
+
+	@Override
+	public boolean halted() {
+		return halted;
+	}
+
+	@Override
+	public int exitCode() {
+		return (int) vals[sp];
+	}
+
+	@Override
+	public void reset() {
+		pc = 0;
+		fp = 0;
+		sp = -1;
+		fsp = 0;
+		halted = false;
+		garbage = 0x2545f4914f6cdd1dL;
+	}
+
+	private static boolean cmp(int op, long lhs, long rhs) {
+		//fmt:off
+		switch (op) {
+		case LT : return lhs <  rhs;
+		case GT : return lhs >  rhs;
+		case LTE: return lhs <= rhs;
+		case GTE: return lhs >= rhs;
+		case EQ : return lhs == rhs;
+		default : return lhs != rhs;
+		}
+		//fmt:on
+	}
+
+	private IllegalArgumentException typeMismatch(int op, int lhs, int rhs) {
+		//fmt:off
+		String name;
+		switch (op) {
+		case ADD: name = "IADD"; break;
+		case SUB: name = "ISUB"; break;
+		case MUL: name = "IMUL"; break;
+		case DIV: name = "IDIV"; break;
+		case LT : name = "ILT";  break;
+		case GT : name = "IGT";  break;
+		case LTE: name = "ILTE"; break;
+		case GTE: name = "IGTE"; break;
+		case EQ : name = "IEQ";  break;
+		default : name = "INEQ"; break;
+		}
+		//fmt:on
+		return new IllegalArgumentException(String.format("%s:: want [INT,INT], have [%s,%s]",
+			name, vm.universe.lookup(lhs), vm.universe.lookup(rhs)));
+	}
+
+	// cond is the branch condition relative to BRLT
+	private IllegalArgumentException cmpMismatch(int cond, int lhs, int rhs) {
+		String[] names = {"BRLT", "BRGT", "BRLTE", "BRGTE", "BRIEQ", "BRINE"};
+		return new IllegalArgumentException(String.format("%s:: want [INT,INT], have [%s,%s]",
+			names[cond], vm.universe.lookup(lhs), vm.universe.lookup(rhs)));
+	}
+
+	// Saves the registers of a run interrupted at a preemption point
+	private long suspend(int pc, int fp, int sp, long budget) {
+		this.pc = pc;
+		this.fp = fp;
+		this.sp = sp;
+		return budget;
+	}
+
+	private void pushFrame(int pc, int fp, int nArgs) {
+		int f = fsp;
+		if (f + FRAME_LEN > frames.length)
+			frames = growFrames(frames, vm.stackLimit);
+		frames[f] = pc;
+		frames[f + 1] = fp;
+		frames[f + 2] = nArgs;
+		fsp = f + FRAME_LEN;
+	}
+
+	private void growStack(int minLen) {
+		int newLen = growLen(vals.length, minLen, vm.stackLimit);
+		vals = Arrays.copyOf(vals, newLen);
+		types = Arrays.copyOf(types, newLen);
+	}
+
+}
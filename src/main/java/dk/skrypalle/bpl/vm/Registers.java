@@ -0,0 +1,555 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import java.util.*;
+
+// Translation of the decoded stack code into a register code. A register is
+// a frame slot addressed relative to fp: slot d holds the stack value at
+// depth d (sp - fp), slot s+1 is local s and slots 1-nArgs..0 are params. The
+// stack depth at every op is known statically, so the register code keeps
+// the exact stack layout of the stack engines (pointers stay valid) but
+// needs no sp at runtime.
+//
+// Loads of locals and constants are not copied onto the stack but folded
+// into the operands of their consumer, and a result that is only stored to
+// a local is written to the local directly, so 'a = b + c' is a single ADD.
+final class Registers {
+
+	//fmt:off
+	static final int MOV      = 0x00; // dst, src
+	static final int MOVK     = 0x01; // dst, const_idx
+	static final int MOVS     = 0x02; // dst, type, addr
+	static final int ADD      = 0x03; // dst, lhs, rhs
+	static final int SUB      = 0x04; // dst, lhs, rhs
+	static final int MUL      = 0x05; // dst, lhs, rhs
+	static final int DIV      = 0x06; // dst, lhs, rhs
+	static final int LT       = 0x07; // dst, lhs, rhs
+	static final int GT       = 0x08; // dst, lhs, rhs
+	static final int LTE      = 0x09; // dst, lhs, rhs
+	static final int GTE      = 0x0a; // dst, lhs, rhs
+	static final int EQ       = 0x0b; // dst, lhs, rhs
+	static final int NEQ      = 0x0c; // dst, lhs, rhs
+	static final int ADDK     = 0x0d; // dst, src, const_idx
+	static final int INC      = 0x0e; // dst, const_idx
+	static final int LOAD     = 0x0f; // dst, off
+	static final int STORE    = 0x10; // off, src
+	static final int ADDR     = 0x11; // dst, src
+	static final int VALOF    = 0x12; // dst, src
+	static final int RESOLVE  = 0x13; // dst, src
+	static final int CALL     = 0x14; // target, top, nArgs, frame
+	static final int RET      = 0x15; // src
+	static final int LOCALS   = 0x16; // first, n
+	static final int JMP      = 0x17; // target
+	static final int BRZ      = 0x18; // src, target
+	static final int BRNZ     = 0x19; // src, target
+	static final int BRLT     = 0x1a; // lhs, rhs, target
+	static final int BRGT     = 0x1b; // lhs, rhs, target
+	static final int BRLTE    = 0x1c; // lhs, rhs, target
+	static final int BRGTE    = 0x1d; // lhs, rhs, target
+	static final int BRIEQ    = 0x1e; // lhs, rhs, target
+	static final int BRINE    = 0x1f; // lhs, rhs, target
+	static final int BRLTK    = 0x20; // lhs, const_idx, target
+	static final int BRGTK    = 0x21; // lhs, const_idx, target
+	static final int BRLTEK   = 0x22; // lhs, const_idx, target
+	static final int BRGTEK   = 0x23; // lhs, const_idx, target
+	static final int BRIEQK   = 0x24; // lhs, const_idx, target
+	static final int BRINEK   = 0x25; // lhs, const_idx, target
+	static final int PRINT    = 0x26; // first, n
+	static final int HALT     = 0x27; // src
+	static final int TAILCALL = 0x28; // target, top, nArgs, frame
+	//fmt:on
+
+	final byte[] code;
+	final int[]  inst;
+	final long[] consts;
+	final int[]  addr; // code image address of every register op, for diagnostics
+
+	private Registers(byte[] code, int[] inst, long[] consts, int[] addr) {
+		this.code = code;
+		this.inst = inst;
+		this.consts = consts;
+		this.addr = addr;
+	}
+
+	static Registers translate(Decoded dec) {
+		return new Translator(dec).run();
+	}
+
+	//region Translator
+
+	private static final class Translator {
+
+		private static final int UNKNOWN = Integer.MIN_VALUE;
+
+		// where a stack value currently lives
+		private static final int MAT = 0; // in its own slot
+		private static final int REG = 1; // still in another slot (a local)
+		private static final int KON = 2; // still in the constant pool
+
+		private final Decoded dec;
+		private final int[]   in;
+
+		private final int[]     depth; // stack depth before every decoded op, UNKNOWN if unreachable
+		private final boolean[] label; // decoded op is a jump or call target
+		private final int[]     frame; // slots used above fp by the function entered at this op
+
+		private int[] out;
+		private int[] outAddr;
+		private int   len;
+
+		private int[] fixups; // out positions holding a decoded target
+		private int   nFixups;
+
+		private int[] kind;
+		private int[] val;
+
+		private int lastDst; // out position of the dst operand of the last op, if it wrote lastTop
+		private int lastTop;
+
+		private Translator(Decoded dec) {
+			this.dec = dec;
+			this.in = dec.inst;
+			this.depth = new int[in.length];
+			this.label = new boolean[in.length];
+			this.frame = new int[in.length];
+			this.out = new int[in.length*2];
+			this.outAddr = new int[in.length*2];
+			this.len = 0;
+			this.fixups = new int[16];
+			this.nFixups = 0;
+			this.lastDst = -1;
+		}
+
+		private Registers run() {
+			int maxDepth = analyze();
+			kind = new int[maxDepth + 1];
+			val = new int[maxDepth + 1];
+
+			int[] map = new int[in.length];
+			for (int pc = 0; pc < in.length; pc += Decoded.length(in[pc])) {
+				int d = depth[pc];
+				if (d == UNKNOWN)
+					continue;
+				if (label[pc]) {
+					flush(pc, 0, d);
+					lastDst = -1;
+				}
+				map[pc] = len;
+				emit(pc, d);
+			}
+
+			for (int i = 0; i < nFixups; i++)
+				out[fixups[i]] = map[out[fixups[i]]];
+
+			return new Registers(dec.code, Arrays.copyOf(out, len), dec.consts, Arrays.copyOf(outAddr, len));
+		}
+
+		//region analysis
+
+		// Walks every function from its entry and records the stack depth
+		// before each op. Returns the max. depth over all functions.
+		private int analyze() {
+			Arrays.fill(depth, UNKNOWN);
+			int maxDepth = 0;
+
+			Deque<Integer> entries = new ArrayDeque<>();
+			entries.push(0);
+			depth[0] = -1; // the preamble runs below the first frame
+			label[0] = true;
+			int[] work = new int[in.length];
+			while (!entries.isEmpty()) {
+				int entry = entries.pop();
+				int floor = depth[entry];
+				int max = 0;
+				int nWork = 0;
+				work[nWork++] = entry;
+				while (nWork > 0) {
+					int pc = work[--nWork];
+					int op = in[pc];
+					int d = depth[pc];
+					int after = d + effect(pc, floor);
+					max = Math.max(max, Math.max(d, after));
+
+					switch (op) {
+					case Decoded.CALL:
+					case Decoded.TAILCALL:
+						int target = in[pc + 1];
+						if (!label[target]) {
+							label[target] = true;
+							depth[target] = 0;
+							entries.push(target);
+						}
+						break;
+					case Decoded.JMP:
+					case Decoded.BREQ:
+					case Decoded.BRNE:
+					case Decoded.BRLT:
+					case Decoded.BRGT:
+					case Decoded.BRLTE:
+					case Decoded.BRGTE:
+					case Decoded.BRIEQ:
+					case Decoded.BRINE:
+						label[in[pc + 1]] = true;
+						nWork = visit(work, nWork, in[pc + 1], after, pc);
+						break;
+					}
+
+					int next = pc + Decoded.length(op);
+					if (op != Decoded.JMP && op != Decoded.RET && op != Decoded.TAILCALL && op != Decoded.HALT && next < in.length)
+						nWork = visit(work, nWork, next, after, pc);
+				}
+				frame[entry] = max;
+				maxDepth = Math.max(maxDepth, max);
+			}
+			return maxDepth;
+		}
+
+		private int visit(int[] work, int nWork, int pc, int d, int from) {
+			if (depth[pc] == UNKNOWN) {
+				depth[pc] = d;
+				work[nWork++] = pc;
+			} else if (depth[pc] != d) {
+				throw new IllegalStateException(String.format(
+					"inconsistent stack depth at 0x%08x: %d vs. %d (from 0x%08x)",
+					dec.addr[pc], depth[pc], d, dec.addr[from]));
+			}
+			return nWork;
+		}
+
+		// Returns the change in stack depth of the op at pc. Slot 0 and below
+		// hold the params, so nothing may be popped below floor.
+		private int effect(int pc, int floor) {
+			int op = in[pc];
+			int pops;
+			int pushes;
+			//fmt:off
+			switch (op) {
+			case Decoded.NOP    :
+			case Decoded.JMP    :
+			case Decoded.IINC   : pops = 0;          pushes = 0;          break;
+			case Decoded.IPUSH  :
+			case Decoded.SPUSH  :
+			case Decoded.LLOAD  : pops = 0;          pushes = 1;          break;
+			case Decoded.LOCALS : pops = 0;          pushes = in[pc + 1]; break;
+			case Decoded.ILOAD  :
+			case Decoded.SLOAD  :
+			case Decoded.ADDR_OF:
+			case Decoded.VAL_OF :
+			case Decoded.RESOLVE:
+			case Decoded.IADDI  : pops = 1;          pushes = 1;          break;
+			case Decoded.POP    :
+			case Decoded.LSTORE :
+			case Decoded.BREQ   :
+			case Decoded.BRNE   :
+			case Decoded.RET    :
+			case Decoded.HALT   : pops = 1;          pushes = 0;          break;
+			case Decoded.IADD   :
+			case Decoded.ISUB   :
+			case Decoded.IMUL   :
+			case Decoded.IDIV   :
+			case Decoded.ILT    :
+			case Decoded.IGT    :
+			case Decoded.ILTE   :
+			case Decoded.IGTE   :
+			case Decoded.IEQ    :
+			case Decoded.INEQ   : pops = 2;          pushes = 1;          break;
+			case Decoded.ISTORE :
+			case Decoded.BRLT   :
+			case Decoded.BRGT   :
+			case Decoded.BRLTE  :
+			case Decoded.BRGTE  :
+			case Decoded.BRIEQ  :
+			case Decoded.BRINE  : pops = 2;          pushes = 0;          break;
+			case Decoded.CALL   :
+			case Decoded.TAILCALL: pops = in[pc + 2]; pushes = 1;         break;
+			case Decoded.PRINT  : pops = in[pc + 1]; pushes = 0;          break;
+			default             : throw new IllegalStateException(String.format("illegal decoded op 0x%02x at 0x%08x", op, dec.addr[pc]));
+			}
+			//fmt:on
+			if (depth[pc] - pops < floor)
+				throw new IllegalStateException(String.format("stack underflow at 0x%08x", dec.addr[pc]));
+			return pushes - pops;
+		}
+
+		//endregion
+
+		//region emit
+
+		private void emit(int pc, int d) {
+			int op = in[pc];
+			int lhs, rhs, dst, start;
+			switch (op) {
+			case Decoded.NOP:
+			case Decoded.POP: // the value is dropped together with its slot
+				break;
+			case Decoded.IPUSH:
+				kind[d + 1] = KON;
+				val[d + 1] = in[pc + 1];
+				break;
+			case Decoded.LLOAD:
+				kind[d + 1] = REG;
+				val[d + 1] = in[pc + 1] + 1;
+				break;
+			case Decoded.SPUSH:
+				start = begin(pc, MOVS);
+				put(d + 1);
+				put(in[pc + 1]);
+				put(in[pc + 2]);
+				result(start, d + 1);
+				break;
+			case Decoded.IADD:
+			case Decoded.ISUB:
+			case Decoded.IMUL:
+			case Decoded.IDIV:
+			case Decoded.ILT:
+			case Decoded.IGT:
+			case Decoded.ILTE:
+			case Decoded.IGTE:
+			case Decoded.IEQ:
+			case Decoded.INEQ:
+				lhs = operand(pc, d - 1);
+				rhs = operand(pc, d);
+				start = begin(pc, ADD + op - Decoded.IADD);
+				put(d - 1);
+				put(lhs);
+				put(rhs);
+				result(start, d - 1);
+				break;
+			case Decoded.IADDI:
+				lhs = operand(pc, d);
+				start = begin(pc, ADDK);
+				put(d);
+				put(lhs);
+				put(in[pc + 1]);
+				result(start, d);
+				break;
+			case Decoded.ILOAD:
+			case Decoded.SLOAD:
+				unary(pc, d, LOAD);
+				break;
+			case Decoded.ADDR_OF:
+				unary(pc, d, ADDR);
+				break;
+			case Decoded.VAL_OF:
+				unary(pc, d, VALOF);
+				break;
+			case Decoded.RESOLVE:
+				unary(pc, d, RESOLVE);
+				break;
+			case Decoded.LSTORE:
+				store(pc, d, in[pc + 1] + 1);
+				break;
+			case Decoded.IINC:
+				dst = in[pc + 1] + 1;
+				flushRefs(pc, dst, d);
+				begin(pc, INC);
+				put(dst);
+				put(in[pc + 2]);
+				break;
+			case Decoded.ISTORE:
+				lhs = operand(pc, d - 1);
+				rhs = operand(pc, d);
+				flush(pc, 0, d - 2); // the store may hit any local
+				begin(pc, STORE);
+				put(lhs);
+				put(rhs);
+				break;
+			case Decoded.CALL:
+				flush(pc, 0, d); // args in place, and the callee may write locals through pointers
+				begin(pc, CALL);
+				target(in[pc + 1]);
+				put(d);
+				put(in[pc + 2]);
+				put(frame[in[pc + 1]]);
+				kind[d - in[pc + 2] + 1] = MAT;
+				break;
+			case Decoded.TAILCALL:
+				flush(pc, 0, d);
+				begin(pc, TAILCALL);
+				target(in[pc + 1]);
+				put(d);
+				put(in[pc + 2]);
+				put(frame[in[pc + 1]]);
+				Arrays.fill(kind, MAT);
+				break;
+			case Decoded.RET:
+			case Decoded.HALT:
+				rhs = d < 0 ? d : operand(pc, d);
+				begin(pc, op == Decoded.RET ? RET : HALT);
+				put(rhs);
+				Arrays.fill(kind, MAT);
+				break;
+			case Decoded.LOCALS:
+				begin(pc, LOCALS);
+				put(d + 1);
+				put(in[pc + 1]);
+				for (int i = 1; i <= in[pc + 1]; i++)
+					kind[d + i] = MAT;
+				break;
+			case Decoded.JMP:
+				flush(pc, 0, d);
+				begin(pc, JMP);
+				target(in[pc + 1]);
+				Arrays.fill(kind, MAT);
+				break;
+			case Decoded.BREQ:
+			case Decoded.BRNE:
+				lhs = operand(pc, d);
+				flush(pc, 0, d - 1);
+				begin(pc, op == Decoded.BREQ ? BRZ : BRNZ);
+				put(lhs);
+				target(in[pc + 1]);
+				break;
+			case Decoded.BRLT:
+			case Decoded.BRGT:
+			case Decoded.BRLTE:
+			case Decoded.BRGTE:
+			case Decoded.BRIEQ:
+			case Decoded.BRINE:
+				lhs = operand(pc, d - 1);
+				boolean konst = kind[d] == KON;
+				rhs = konst ? val[d] : operand(pc, d);
+				flush(pc, 0, d - 2);
+				begin(pc, (konst ? BRLTK : BRLT) + op - Decoded.BRLT);
+				put(lhs);
+				put(rhs);
+				target(in[pc + 1]);
+				break;
+			case Decoded.PRINT:
+				flush(pc, d - in[pc + 1] + 1, d);
+				begin(pc, PRINT);
+				put(d - in[pc + 1] + 1);
+				put(in[pc + 1]);
+				break;
+			default:
+				throw new IllegalStateException(String.format("illegal decoded op 0x%02x at 0x%08x", op, dec.addr[pc]));
+			}
+		}
+
+		private void unary(int pc, int d, int op) {
+			int src = operand(pc, d);
+			int start = begin(pc, op);
+			put(d);
+			put(src);
+			result(start, d);
+		}
+
+		// Stores the stack top to slot dst. If the top was just computed by
+		// the previous op, that op is retargeted to write dst directly.
+		private void store(int pc, int d, int dst) {
+			boolean aliased = false;
+			for (int i = 0; i < d; i++)
+				aliased |= kind[i] == REG && val[i] == dst;
+
+			if (kind[d] == MAT && lastDst >= 0 && lastTop == d && !aliased) {
+				out[lastDst] = dst;
+				lastDst = -1;
+				return;
+			}
+
+			int k = kind[d];
+			int src = k == MAT ? d : val[d];
+			flushRefs(pc, dst, d - 1);
+			if (k == KON) {
+				begin(pc, MOVK);
+				put(dst);
+				put(src);
+			} else if (src != dst) {
+				begin(pc, MOV);
+				put(dst);
+				put(src);
+			}
+		}
+
+		// Returns the slot holding the stack value at depth i.
+		private int operand(int pc, int i) {
+			switch (kind[i]) {
+			case REG:
+				return val[i];
+			case KON:
+				flush(pc, i, i);
+				return i;
+			default:
+				return i;
+			}
+		}
+
+		private void flush(int pc, int from, int to) {
+			for (int i = Math.max(from, 0); i <= to; i++) {
+				if (kind[i] == MAT)
+					continue;
+				begin(pc, kind[i] == KON ? MOVK : MOV);
+				put(i);
+				put(val[i]);
+				kind[i] = MAT;
+			}
+		}
+
+		// Materializes the pending copies of slot before it is overwritten.
+		private void flushRefs(int pc, int slot, int to) {
+			for (int i = 0; i <= to; i++) {
+				if (kind[i] == REG && val[i] == slot)
+					flush(pc, i, i);
+			}
+		}
+
+		private int begin(int pc, int op) {
+			lastDst = -1;
+			int start = len;
+			put(op);
+			outAddr[start] = dec.addr[pc];
+			return start;
+		}
+
+		private void result(int start, int dst) {
+			kind[dst] = MAT;
+			lastDst = start + 1;
+			lastTop = dst;
+		}
+
+		private void target(int decodedPc) {
+			if (nFixups == fixups.length)
+				fixups = Arrays.copyOf(fixups, nFixups*2);
+			fixups[nFixups++] = len;
+			put(decodedPc);
+		}
+
+		private void put(int v) {
+			if (len == out.length) {
+				out = Arrays.copyOf(out, len*2);
+				outAddr = Arrays.copyOf(outAddr, len*2);
+			}
+			out[len++] = v;
+		}
+
+		//endregion
+
+	}
+
+	//endregion
+
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.vm.err.*;
+import dk.skrypalle.bpl.vm.sink.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Runs many programs on a fixed pool of worker threads. Each program runs for
+// at most one quantum of instructions at a time and then goes to the back of
+// the shared FIFO run queue, so programs are served round robin no matter how
+// long they run. Quanta end at preemption points only (see Core.run), so one
+// may overshoot a little. A program that exceeds its instruction or
+// wall-clock budget (measured from submission) is stopped at the end of its
+// quantum and its future fails with a BPLVMBudgetExceededError.
+public final class Scheduler implements AutoCloseable {
+
+	public static final long DEFAULT_QUANTUM = 0x2000;
+	public static final long UNLIMITED       = Long.MAX_VALUE;
+
+	private final ThreadPoolExecutor workers;
+	private final long               quantum;
+
+	public Scheduler(int nWorkers, long quantum) {
+		if (quantum < 1)
+			throw new IllegalArgumentException("quantum must be positive, is " + quantum);
+		AtomicInteger n = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(nWorkers, nWorkers, 0, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(), r -> {
+			Thread t = new Thread(r, "bpl-worker-" + n.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+		this.quantum = quantum;
+	}
+
+	public Scheduler(int nWorkers) {
+		this(nWorkers, DEFAULT_QUANTUM);
+	}
+
+	public CompletableFuture<Integer> submit(Program program, PrintStream out, PrintStream err) {
+		return submit(program, Engine.STACK, out, err, UNLIMITED, UNLIMITED);
+	}
+
+	public CompletableFuture<Integer> submit(Program program, PrintStream out, PrintStream err,
+	                                         long maxInstructions, long maxNanos) {
+		return submit(program, Engine.STACK, out, err, maxInstructions, maxNanos);
+	}
+
+	public CompletableFuture<Integer> submit(Program program, Engine engine, PrintStream out, PrintStream err,
+	                                         long maxInstructions, long maxNanos) {
+		return submit(program, engine, new StreamSink(out), err, maxInstructions, maxNanos);
+	}
+
+	public CompletableFuture<Integer> submit(Program program, Engine engine, Sink out, PrintStream err,
+	                                         long maxInstructions, long maxNanos) {
+		Task task = new Task(new VM(program, false, out, err, err, engine, VM.DEFAULT_STACK_LIMIT),
+			maxInstructions, maxNanos);
+		schedule(task);
+		return task.res;
+	}
+
+	// Stops accepting programs; programs still running fail with a
+	// CancellationException at the end of their current quantum.
+	@Override
+	public void close() {
+		workers.shutdown();
+	}
+
+	private void schedule(Task task) {
+		try {
+			workers.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.vm.flush();
+			task.res.completeExceptionally(new CancellationException("scheduler closed"));
+		}
+	}
+
+	//region inner types
+
+	private final class Task implements Runnable {
+
+		private final VM                         vm;
+		private final CompletableFuture<Integer> res;
+		private final long                       maxInstructions;
+		private final long                       maxNanos;
+		private final long                       start;
+		private       long                       used;
+
+		private Task(VM vm, long maxInstructions, long maxNanos) {
+			this.vm = vm;
+			this.res = new CompletableFuture<>();
+			this.maxInstructions = maxInstructions;
+			this.maxNanos = maxNanos;
+			this.start = System.nanoTime();
+			this.used = 0;
+		}
+
+		@Override
+		public void run() {
+			if (res.isDone()) // cancelled
+				return;
+
+			try {
+				long slice = Math.min(quantum, maxInstructions - used);
+				used += slice - vm.runSlice(slice);
+				if (vm.halted()) {
+					vm.flush();
+					res.complete(vm.exitCode());
+					return;
+				}
+				if (used >= maxInstructions)
+					throw new BPLVMBudgetExceededError("instruction", used, maxInstructions);
+				long elapsed = System.nanoTime() - start;
+				if (elapsed > maxNanos)
+					throw new BPLVMBudgetExceededError("wall-clock", elapsed, maxNanos);
+			} catch (Throwable t) {
+				vm.flush();
+				res.completeExceptionally(t);
+				return;
+			}
+			schedule(this);
+		}
+
+	}
+
+	//endregion
+
+}
@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.vm.err.*;
+
+import java.nio.*;
+import java.util.*;
+
+// Stack of (value, type) slots in fixed-size segments. Slot addr lives in
+// segment addr >>> SEG_SHIFT, so growing links in another segment and never
+// moves existing slots. The first segment is a pair of heap arrays, as that
+// is where nearly all programs stay and plain array access is the fastest;
+// only the segments past it are direct memory. Segments are allocated on
+// first use and kept until the stack is dropped, never beyond the limit.
+final class SegmentedStack {
+
+	static final int SEG_SHIFT = 12;
+	static final int SEG_LEN   = 1 << SEG_SHIFT;
+	static final int SEG_MASK  = SEG_LEN - 1;
+
+	private final int limit;
+
+	private final long[] headVals;
+	private final int[]  headTypes;
+
+	private LongBuffer[] vals; // index 0 is the head and stays null
+	private IntBuffer[]  types;
+	private int          cap;
+
+	SegmentedStack(int limit) {
+		this.limit = limit;
+		this.headVals = new long[Math.min(limit, SEG_LEN)];
+		this.headTypes = new int[headVals.length];
+		this.vals = new LongBuffer[1];
+		this.types = new IntBuffer[1];
+		this.cap = headVals.length;
+	}
+
+	// Makes every slot up to and including addr addressable
+	void reserve(int addr) {
+		if (addr < cap)
+			return;
+		if (addr >= limit)
+			throw new BPLVMStackOverflowError(addr + 1, limit);
+
+		int n = (addr >>> SEG_SHIFT) + 1;
+		int i = vals.length;
+		vals = Arrays.copyOf(vals, n);
+		types = Arrays.copyOf(types, n);
+		for (; i < n; i++) {
+			vals[i] = ByteBuffer.allocateDirect(SEG_LEN*8).order(ByteOrder.nativeOrder()).asLongBuffer();
+			types[i] = ByteBuffer.allocateDirect(SEG_LEN*4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		}
+		cap = n << SEG_SHIFT;
+	}
+
+	long val(int addr) {
+		if (addr < SEG_LEN)
+			return headVals[addr];
+		return vals[addr >>> SEG_SHIFT].get(addr & SEG_MASK);
+	}
+
+	int type(int addr) {
+		if (addr < SEG_LEN)
+			return headTypes[addr];
+		return types[addr >>> SEG_SHIFT].get(addr & SEG_MASK);
+	}
+
+	void put(int addr, long val, int type) {
+		if (addr < SEG_LEN) {
+			headVals[addr] = val;
+			headTypes[addr] = type;
+			return;
+		}
+		vals[addr >>> SEG_SHIFT].put(addr & SEG_MASK, val);
+		types[addr >>> SEG_SHIFT].put(addr & SEG_MASK, type);
+	}
+
+	void putVal(int addr, long val) {
+		if (addr < SEG_LEN)
+			headVals[addr] = val;
+		else
+			vals[addr >>> SEG_SHIFT].put(addr & SEG_MASK, val);
+	}
+
+	int capacity() {
+		return cap;
+	}
+
+}
@@ -0,0 +1,930 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.compiler.type.*;
+
+import java.util.*;
+
+import static dk.skrypalle.bpl.vm.CPU.*;
+import static dk.skrypalle.bpl.vm.Decoded.*;
+import static dk.skrypalle.bpl.vm.Verified.*;
+
+// Translation of the verified form into a tree of nodes run by TreeCPU. The
+// code is cut into basic blocks of statements ending in a terminator. Every
+// branch and call ends a block and every branch target starts one, so all
+// preemption points are block ends and a run stops and resumes between
+// blocks.
+//
+// Within a block the operand stack is not materialized. A push becomes an
+// expression node which its consumer takes as a child, so the arg of
+// 'f(n - 1)' is Sub(Local(n), Const(1)) and 'i < n' in a loop condition is
+// a Branch on Lt(Local(i), Local(n)). Ops whose types the verifier proved
+// become plain int nodes; the others check their operands on the stack in
+// a statement of their own and then share the same nodes. Expressions
+// still pending at a side effect, a call or the end of the block are pushed
+// onto the stack, and operands a block finds on the stack are read by Pop
+// leaves. Nodes evaluate their operands right to left, so the Pop leaves of
+// a tree pop in stack order.
+final class Tree {
+
+	final Block[] blocks; // by decoded pc, set where a block starts
+	final int[]   frame;  // slots used above fp by the function entered at this op
+
+	private Tree(Block[] blocks, int[] frame) {
+		this.blocks = blocks;
+		this.frame = frame;
+	}
+
+	static Tree build(Verified ver) {
+		return new Builder(ver).run();
+	}
+
+	//region blocks
+
+	static final class Block {
+		Stmt[]  body;
+		Term    term;
+		int     cost;    // ops in the block, charged against the budget up front
+		boolean preempt; // the terminator is a preemption point
+
+		// Returns the block to run next, null after HALT
+		Block exec(TreeCPU m) {
+			for (Stmt s : body)
+				s.exec(m);
+			return term.next(m);
+		}
+	}
+
+	abstract static class Stmt {
+		abstract void exec(TreeCPU m);
+	}
+
+	abstract static class Term {
+		abstract Block next(TreeCPU m);
+	}
+
+	//endregion
+
+	//region expressions
+
+	abstract static class Expr {
+		abstract long eval(TreeCPU m);
+
+		// Expressions are int valued unless a leaf says otherwise
+		void push(TreeCPU m) {
+			long val = eval(m);
+			int sp = ++m.sp;
+			m.vals[sp] = val;
+			m.types[sp] = T_INT;
+		}
+
+		void store(TreeCPU m, int addr) {
+			long val = eval(m);
+			m.vals[addr] = val;
+			m.types[addr] = T_INT;
+		}
+	}
+
+	static final class Const extends Expr {
+		private final long val;
+
+		Const(long val) {
+			this.val = val;
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			return val;
+		}
+	}
+
+	static final class Local extends Expr {
+		private final int slot;
+
+		Local(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			return m.vals[m.fp + slot + 1];
+		}
+
+		@Override
+		void push(TreeCPU m) {
+			int addr = m.fp + slot + 1;
+			int sp = ++m.sp;
+			m.vals[sp] = m.vals[addr];
+			m.types[sp] = m.types[addr];
+		}
+
+		@Override
+		void store(TreeCPU m, int addr) {
+			int src = m.fp + slot + 1;
+			m.vals[addr] = m.vals[src];
+			m.types[addr] = m.types[src];
+		}
+	}
+
+	static final class Str extends Expr {
+		private final int type;
+		private final int addr;
+
+		Str(int type, int addr) {
+			this.type = type;
+			this.addr = addr;
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			return addr;
+		}
+
+		@Override
+		void push(TreeCPU m) {
+			int sp = ++m.sp;
+			m.vals[sp] = addr;
+			m.types[sp] = type;
+		}
+
+		@Override
+		void store(TreeCPU m, int addr) {
+			m.vals[addr] = this.addr;
+			m.types[addr] = type;
+		}
+	}
+
+	// An operand left on the stack by an earlier block or statement
+	static final class Pop extends Expr {
+		@Override
+		long eval(TreeCPU m) {
+			return m.vals[m.sp--];
+		}
+
+		@Override
+		void store(TreeCPU m, int addr) {
+			int sp = m.sp--;
+			m.vals[addr] = m.vals[sp];
+			m.types[addr] = m.types[sp];
+		}
+	}
+
+	static final Pop STACKED = new Pop();
+
+	abstract static class Binary extends Expr {
+		final Expr lhs;
+		final Expr rhs;
+
+		Binary(Expr lhs, Expr rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+	}
+
+	static final class Add extends Binary {
+		Add(Expr lhs, Expr rhs) {
+			super(lhs, rhs);
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			long r = rhs.eval(m);
+			return lhs.eval(m) + r;
+		}
+	}
+
+	static final class Sub extends Binary {
+		Sub(Expr lhs, Expr rhs) {
+			super(lhs, rhs);
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			long r = rhs.eval(m);
+			return lhs.eval(m) - r;
+		}
+	}
+
+	static final class Mul extends Binary {
+		Mul(Expr lhs, Expr rhs) {
+			super(lhs, rhs);
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			long r = rhs.eval(m);
+			return lhs.eval(m)*r;
+		}
+	}
+
+	static final class Div extends Binary {
+		Div(Expr lhs, Expr rhs) {
+			super(lhs, rhs);
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			long r = rhs.eval(m);
+			return lhs.eval(m)/r;
+		}
+	}
+
+	static final class Lt extends Binary {
+		Lt(Expr lhs, Expr rhs) {
+			super(lhs, rhs);
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			long r = rhs.eval(m);
+			return lhs.eval(m) < r ? 1 : 0;
+		}
+	}
+
+	static final class Gt extends Binary {
+		Gt(Expr lhs, Expr rhs) {
+			super(lhs, rhs);
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			long r = rhs.eval(m);
+			return lhs.eval(m) > r ? 1 : 0;
+		}
+	}
+
+	static final class Lte extends Binary {
+		Lte(Expr lhs, Expr rhs) {
+			super(lhs, rhs);
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			long r = rhs.eval(m);
+			return lhs.eval(m) <= r ? 1 : 0;
+		}
+	}
+
+	static final class Gte extends Binary {
+		Gte(Expr lhs, Expr rhs) {
+			super(lhs, rhs);
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			long r = rhs.eval(m);
+			return lhs.eval(m) >= r ? 1 : 0;
+		}
+	}
+
+	static final class Eq extends Binary {
+		Eq(Expr lhs, Expr rhs) {
+			super(lhs, rhs);
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			long r = rhs.eval(m);
+			return lhs.eval(m) == r ? 1 : 0;
+		}
+	}
+
+	static final class Neq extends Binary {
+		Neq(Expr lhs, Expr rhs) {
+			super(lhs, rhs);
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			long r = rhs.eval(m);
+			return lhs.eval(m) != r ? 1 : 0;
+		}
+	}
+
+	static final class AddConst extends Expr {
+		private final Expr src;
+		private final long val;
+
+		AddConst(Expr src, long val) {
+			this.src = src;
+			this.val = val;
+		}
+
+		@Override
+		long eval(TreeCPU m) {
+			return src.eval(m) + val;
+		}
+	}
+
+	//endregion
+
+	//region statements
+
+	static final class Push extends Stmt {
+		private final Expr src;
+
+		Push(Expr src) {
+			this.src = src;
+		}
+
+		@Override
+		void exec(TreeCPU m) {
+			src.push(m);
+		}
+	}
+
+	// Evaluates a discarded value, which may still throw or pop
+	static final class Drop extends Stmt {
+		private final Expr src;
+
+		Drop(Expr src) {
+			this.src = src;
+		}
+
+		@Override
+		void exec(TreeCPU m) {
+			src.eval(m);
+		}
+	}
+
+	static final class PopStack extends Stmt {
+		@Override
+		void exec(TreeCPU m) {
+			m.sp--;
+		}
+	}
+
+	static final class Store extends Stmt {
+		private final int  slot;
+		private final Expr src;
+
+		Store(int slot, Expr src) {
+			this.slot = slot;
+			this.src = src;
+		}
+
+		@Override
+		void exec(TreeCPU m) {
+			src.store(m, m.fp + slot + 1);
+		}
+	}
+
+	static final class Inc extends Stmt {
+		private final int  slot;
+		private final long val;
+
+		Inc(int slot, long val) {
+			this.slot = slot;
+			this.val = val;
+		}
+
+		@Override
+		void exec(TreeCPU m) {
+			m.vals[m.fp + slot + 1] += val;
+		}
+	}
+
+	// Runtime type check of an arithmetic op the verifier could not prove
+	static final class CheckSame extends Stmt {
+		private final int op;
+
+		CheckSame(int op) {
+			this.op = op;
+		}
+
+		@Override
+		void exec(TreeCPU m) {
+			int sp = m.sp;
+			if (m.types[sp - 1] != m.types[sp])
+				throw m.typeMismatch(op, m.types[sp - 1], m.types[sp]);
+		}
+	}
+
+	static final class CheckInt extends Stmt {
+		private final String name;
+
+		CheckInt(String name) {
+			this.name = name;
+		}
+
+		@Override
+		void exec(TreeCPU m) {
+			if (m.types[m.sp] != T_INT)
+				throw new IllegalArgumentException(String.format("%s:: want [INT], have [%s]", name, m.lookup(m.types[m.sp])));
+		}
+	}
+
+	static final class CheckInts extends Stmt {
+		private final String name;
+
+		CheckInts(String name) {
+			this.name = name;
+		}
+
+		@Override
+		void exec(TreeCPU m) {
+			int sp = m.sp;
+			if (m.types[sp - 1] != T_INT || m.types[sp] != T_INT)
+				throw m.cmpMismatch(name, m.types[sp - 1], m.types[sp]);
+		}
+	}
+
+	static final class CheckSlot extends Stmt {
+		private final int slot;
+
+		CheckSlot(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		void exec(TreeCPU m) {
+			int type = m.types[m.fp + slot + 1];
+			if (type != T_INT)
+				throw new IllegalArgumentException(String.format("IINC:: want [INT], have [%s]", m.lookup(type)));
+		}
+	}
+
+	static final class Locals extends Stmt {
+		private final int n;
+
+		Locals(int n) {
+			this.n = n;
+		}
+
+		@Override
+		void exec(TreeCPU m) {
+			m.locals(n);
+		}
+	}
+
+	static final class Print extends Stmt {
+		private final int n;
+
+		Print(int n) {
+			this.n = n;
+		}
+
+		@Override
+		void exec(TreeCPU m) {
+			m.print(n);
+		}
+	}
+
+	// Pointer ops work on the stack as in the other engines
+	static final class Load extends Stmt {
+		@Override
+		void exec(TreeCPU m) {
+			int sp = m.sp;
+			int addr = TreeCPU.checkAddr(m.fp + (int) m.vals[sp] + 1);
+			m.vals[sp] = m.vals[addr];
+			m.types[sp] = m.types[addr];
+		}
+	}
+
+	static final class IStore extends Stmt {
+		@Override
+		void exec(TreeCPU m) {
+			int rhs = m.sp;
+			int addr = TreeCPU.checkAddr(m.fp + (int) m.vals[rhs - 1] + 1);
+			m.vals[addr] = m.vals[rhs];
+			m.types[addr] = m.types[rhs];
+			m.sp = rhs - 2;
+		}
+	}
+
+	static final class AddrOf extends Stmt {
+		@Override
+		void exec(TreeCPU m) {
+			int sp = m.sp;
+			m.vals[sp] = m.fp + (int) m.vals[sp] + 1;
+			m.types[sp] = Types.ptr(m.types[sp]);
+		}
+	}
+
+	static final class ValOf extends Stmt {
+		@Override
+		void exec(TreeCPU m) {
+			int sp = m.sp;
+			int addr = TreeCPU.checkAddr((int) m.vals[sp]);
+			m.vals[sp] = m.vals[addr];
+			m.types[sp] = m.types[addr];
+		}
+	}
+
+	static final class Resolve extends Stmt {
+		@Override
+		void exec(TreeCPU m) {
+			int sp = m.sp;
+			m.vals[sp] = m.vals[sp] - m.fp - 1;
+			m.types[sp] = T_INT;
+		}
+	}
+
+	//endregion
+
+	//region terminators
+
+	static final class Goto extends Term {
+		private final Block to;
+
+		Goto(Block to) {
+			this.to = to;
+		}
+
+		@Override
+		Block next(TreeCPU m) {
+			return to;
+		}
+	}
+
+	static final class Branch extends Term {
+		private final Expr  cond;
+		private final Block then;
+		private final Block other;
+
+		Branch(Expr cond, Block then, Block other) {
+			this.cond = cond;
+			this.then = then;
+			this.other = other;
+		}
+
+		@Override
+		Block next(TreeCPU m) {
+			return cond.eval(m) != 0 ? then : other;
+		}
+	}
+
+	static final class Call extends Term {
+		private final Block to;
+		private final int   nArgs;
+		private final int   frame;
+		private final int   ret; // decoded pc of the block after the call
+
+		Call(Block to, int nArgs, int frame, int ret) {
+			this.to = to;
+			this.nArgs = nArgs;
+			this.frame = frame;
+			this.ret = ret;
+		}
+
+		@Override
+		Block next(TreeCPU m) {
+			m.reserve(frame);
+			m.pushFrame(ret, m.fp, nArgs);
+			m.fp = m.sp;
+			return to;
+		}
+	}
+
+	static final class TailCall extends Term {
+		private final Block to;
+		private final int   nArgs;
+		private final int   frame;
+
+		TailCall(Block to, int nArgs, int frame) {
+			this.to = to;
+			this.nArgs = nArgs;
+			this.frame = frame;
+		}
+
+		@Override
+		Block next(TreeCPU m) {
+			// move the args onto our params and hand our return over to the callee
+			int f = m.fsp - 1;
+			int lhs = m.fp - m.frames[f] + 1;
+			System.arraycopy(m.vals, m.sp - nArgs + 1, m.vals, lhs, nArgs);
+			System.arraycopy(m.types, m.sp - nArgs + 1, m.types, lhs, nArgs);
+			m.frames[f] = nArgs;
+			m.sp = lhs + nArgs - 1;
+			m.reserve(frame);
+			m.fp = m.sp;
+			return to;
+		}
+	}
+
+	static final class Ret extends Term {
+		private final Expr val;
+
+		Ret(Expr val) {
+			this.val = val;
+		}
+
+		@Override
+		Block next(TreeCPU m) {
+			int f = m.fsp -= FRAME_LEN;
+			int res = m.fp - m.frames[f + 2] + 1;
+			val.store(m, res);
+			m.sp = res;
+			m.fp = m.frames[f + 1];
+			return m.tree.blocks[m.frames[f]];
+		}
+	}
+
+	static final class Halt extends Term {
+		@Override
+		Block next(TreeCPU m) {
+			m.halted = true;
+			return null;
+		}
+	}
+
+	//endregion
+
+	//region Builder
+
+	private static final class Builder {
+
+		private final Verified ver;
+		private final int[]    inst;
+		private final long[]   consts;
+		private final Block[]  blocks;
+
+		private final List<Stmt> body    = new ArrayList<>();
+		private final List<Expr> pending = new ArrayList<>();
+
+		private Builder(Verified ver) {
+			this.ver = ver;
+			this.inst = ver.inst;
+			this.consts = ver.dec.consts;
+			this.blocks = new Block[inst.length];
+		}
+
+		private Tree run() {
+			// pass 1: a block starts at the entry, at every branch and call
+			// target and after every op that does not fall through
+			blocks[0] = new Block();
+			for (int pc = 0; pc < inst.length; ) {
+				int op = inst[pc] & ~UNCHECKED;
+				int nxt = pc + length(op);
+				if (isBranch(op) || op == CALL || op == TAILCALL)
+					start(inst[pc + 1]);
+				if (isBranch(op) || op == CALL || op == TAILCALL || op == RET || op == HALT)
+					start(nxt);
+				pc = nxt;
+			}
+
+			// pass 2: translate every block
+			for (int pc = 0; pc < inst.length; ) {
+				Block b = blocks[pc];
+				body.clear();
+				pending.clear();
+				b.cost = 0;
+				do {
+					b.cost++;
+					pc = translate(b, pc);
+				} while (b.term == null && blocks[pc] == null);
+				if (b.term == null) {
+					flush(0);
+					b.term = new Goto(blocks[pc]);
+				}
+				b.body = body.toArray(new Stmt[0]);
+			}
+			return new Tree(blocks, ver.frame);
+		}
+
+		private void start(int pc) {
+			if (pc < inst.length && blocks[pc] == null)
+				blocks[pc] = new Block();
+		}
+
+		private static boolean isBranch(int op) {
+			return op == JMP || op == BREQ || op == BRNE || (op >= BRLT && op <= BRINE);
+		}
+
+		// Translates the op at pc into b and returns the pc of the next op
+		private int translate(Block b, int pc) {
+			boolean proven = (inst[pc] & UNCHECKED) != 0;
+			int op = inst[pc] & ~UNCHECKED;
+			int nxt = pc + length(op);
+			Expr lhs, rhs;
+			switch (op) {
+			case NOP:
+				break;
+			case POP:
+				if (pending.isEmpty())
+					body.add(new PopStack());
+				else if (!(top() instanceof Const || top() instanceof Local || top() instanceof Str))
+					body.add(new Drop(operand()));
+				else
+					operand();
+				break;
+			case IPUSH:
+				pending.add(new Const(consts[inst[pc + 1]]));
+				break;
+			case IADD:
+			case ISUB:
+			case IMUL:
+			case IDIV:
+			case ILT:
+			case IGT:
+			case ILTE:
+			case IGTE:
+			case IEQ:
+			case INEQ:
+				if (!proven) {
+					flush(0);
+					body.add(new CheckSame(op));
+				}
+				rhs = operand();
+				lhs = operand();
+				pending.add(binary(op, lhs, rhs));
+				break;
+			case IADDI:
+				if (!proven) {
+					flush(0);
+					body.add(new CheckInt("IADDI"));
+				}
+				pending.add(new AddConst(operand(), consts[inst[pc + 1]]));
+				break;
+			case LLOAD:
+				pending.add(new Local(inst[pc + 1]));
+				break;
+			case LSTORE:
+				flush(1);
+				body.add(new Store(inst[pc + 1], operand()));
+				break;
+			case IINC:
+				flush(0);
+				if (!proven)
+					body.add(new CheckSlot(inst[pc + 1]));
+				body.add(new Inc(inst[pc + 1], consts[inst[pc + 2]]));
+				break;
+			case SPUSH:
+				pending.add(new Str(inst[pc + 1], inst[pc + 2]));
+				break;
+			case ILOAD:
+			case SLOAD:
+				flush(0);
+				body.add(new Load());
+				break;
+			case ISTORE:
+				flush(0);
+				body.add(new IStore());
+				break;
+			case ADDR_OF:
+				flush(0);
+				body.add(new AddrOf());
+				break;
+			case VAL_OF:
+				flush(0);
+				body.add(new ValOf());
+				break;
+			case RESOLVE:
+				flush(0);
+				body.add(new Resolve());
+				break;
+			case LOCALS:
+				flush(0);
+				body.add(new Locals(inst[pc + 1]));
+				break;
+			case PRINT:
+				flush(0);
+				body.add(new Print(inst[pc + 1]));
+				break;
+			case CALL:
+				flush(0);
+				b.term = new Call(blocks[inst[pc + 1]], inst[pc + 2], ver.frame[inst[pc + 1]], nxt);
+				b.preempt = true;
+				break;
+			case TAILCALL:
+				flush(0);
+				b.term = new TailCall(blocks[inst[pc + 1]], inst[pc + 2], ver.frame[inst[pc + 1]]);
+				b.preempt = true;
+				break;
+			case RET:
+				flush(1);
+				b.term = new Ret(operand());
+				break;
+			case JMP:
+				flush(0);
+				b.term = new Goto(blocks[inst[pc + 1]]);
+				b.preempt = inst[pc + 1] <= pc;
+				break;
+			case BREQ:
+			case BRNE:
+				if (!proven) {
+					flush(0);
+					body.add(new CheckInt(op == BREQ ? "BREQ" : "BRNE"));
+				}
+				flush(1);
+				if (op == BREQ)
+					b.term = new Branch(operand(), blocks[nxt], blocks[inst[pc + 1]]);
+				else
+					b.term = new Branch(operand(), blocks[inst[pc + 1]], blocks[nxt]);
+				break;
+			case BRLT:
+			case BRGT:
+			case BRLTE:
+			case BRGTE:
+			case BRIEQ:
+			case BRINE:
+				if (!proven) {
+					flush(0);
+					body.add(new CheckInts(branchName(op)));
+				}
+				flush(2);
+				rhs = operand();
+				lhs = operand();
+				b.term = new Branch(binary(compareOf(op), lhs, rhs), blocks[inst[pc + 1]], blocks[nxt]);
+				break;
+			case HALT:
+				flush(0);
+				b.term = new Halt();
+				break;
+			default:
+				throw new IllegalStateException(String.format("illegal decoded op 0x%02x at 0x%08x", op, ver.dec.addr[pc]));
+			}
+			return nxt;
+		}
+
+		private Expr top() {
+			return pending.get(pending.size() - 1);
+		}
+
+		// Takes the topmost operand, from the stack once nothing is pending
+		private Expr operand() {
+			return pending.isEmpty() ? STACKED : pending.remove(pending.size() - 1);
+		}
+
+		// Pushes all pending expressions but the topmost keep ones
+		private void flush(int keep) {
+			int n = pending.size() - keep;
+			if (n <= 0)
+				return;
+			for (int i = 0; i < n; i++)
+				body.add(new Push(pending.get(i)));
+			pending.subList(0, n).clear();
+		}
+
+		private static Expr binary(int op, Expr lhs, Expr rhs) {
+			//fmt:off
+			switch (op) {
+			case IADD: return new Add(lhs, rhs);
+			case ISUB: return new Sub(lhs, rhs);
+			case IMUL: return new Mul(lhs, rhs);
+			case IDIV: return new Div(lhs, rhs);
+			case ILT : return new Lt(lhs, rhs);
+			case IGT : return new Gt(lhs, rhs);
+			case ILTE: return new Lte(lhs, rhs);
+			case IGTE: return new Gte(lhs, rhs);
+			case IEQ : return new Eq(lhs, rhs);
+			default  : return new Neq(lhs, rhs);
+			}
+			//fmt:on
+		}
+
+		private static int compareOf(int op) {
+			//fmt:off
+			switch (op) {
+			case BRLT : return ILT;
+			case BRGT : return IGT;
+			case BRLTE: return ILTE;
+			case BRGTE: return IGTE;
+			case BRIEQ: return IEQ;
+			default   : return INEQ;
+			}
+			//fmt:on
+		}
+
+		private static String branchName(int op) {
+			//fmt:off
+			switch (op) {
+			case BRLT : return "BRLT";
+			case BRGT : return "BRGT";
+			case BRLTE: return "BRLTE";
+			case BRGTE: return "BRGTE";
+			case BRIEQ: return "BRIEQ";
+			default   : return "BRINE";
+			}
+			//fmt:on
+		}
+
+	}
+
+	//endregion
+
+}
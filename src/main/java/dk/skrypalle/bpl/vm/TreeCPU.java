@@ -0,0 +1,183 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.compiler.type.*;
+import dk.skrypalle.bpl.vm.err.*;
+
+import java.util.*;
+
+import static dk.skrypalle.bpl.vm.CPU.*;
+
+// Interpreter running the node tree of a verified program (see Tree). The
+// registers are package-private for the nodes to work on; the run loop only
+// moves from block to block, charging each block's ops up front and checking
+// the budget after blocks ending in a preemption point.
+class TreeCPU implements Core {
+
+	private final VM   vm;
+	final         Tree tree;
+
+	long[]  vals;
+	int[]   types;
+	int[]   frames;
+	int     fsp;
+	int     fp;
+	int     sp;
+	boolean halted;
+
+	private long       garbage;
+	private Tree.Block block;
+
+	TreeCPU(VM vm, Tree tree) {
+		this.vm = vm;
+		this.tree = tree;
+		this.vals = new long[0];
+		this.types = new int[0];
+		this.frames = new int[0];
+		this.sp = -1;
+		this.garbage = 0x2545f4914f6cdd1dL;
+		this.block = tree.blocks[0];
+		growStack(tree.frame[0] + 1);
+	}
+
+	@Override
+	public long run(long budget) {
+		Tree.Block b = block;
+		for (; ; ) {
+			budget -= b.cost;
+			Tree.Block nxt = b.exec(this);
+			if (nxt == null) {
+				block = b;
+				return budget;
+			}
+			if (b.preempt && budget <= 0) {
+				block = nxt;
+				return budget;
+			}
+			b = nxt;
+		}
+	}
+
+	@Override
+	public boolean halted() {
+		return halted;
+	}
+
+	@Override
+	public int exitCode() {
+		return (int) vals[sp];
+	}
+
+	@Override
+	public void reset() {
+		block = tree.blocks[0];
+		fp = 0;
+		sp = -1;
+		fsp = 0;
+		halted = false;
+		garbage = 0x2545f4914f6cdd1dL;
+	}
+
+	//region node support
+
+	// Reserves the frame of a function about to be entered
+	void reserve(int frame) {
+		if (sp + frame >= vals.length)
+			growStack(sp + frame + 1);
+	}
+
+	void pushFrame(int pc, int fp, int nArgs) {
+		int f = fsp;
+		if (f + FRAME_LEN > frames.length)
+			frames = growFrames(frames, vm.stackLimit);
+		frames[f] = pc;
+		frames[f + 1] = fp;
+		frames[f + 2] = nArgs;
+		fsp = f + FRAME_LEN;
+	}
+
+	void locals(int n) {
+		// simulate garbage in local storage
+		for (int i = 0; i < n; i++) {
+			garbage ^= garbage << 13;
+			garbage ^= garbage >>> 7;
+			garbage ^= garbage << 17;
+			vals[++sp] = garbage;
+			types[sp] = T_INT;
+		}
+	}
+
+	void print(int n) {
+		for (int arg = sp - n + 1; arg <= sp; arg++)
+			vm.print(vals[arg], types[arg]);
+		sp -= n;
+	}
+
+	static int checkAddr(int addr) {
+		if (addr < 0)
+			throw new BPLVMStackUnderflowError();
+		return addr;
+	}
+
+	Type lookup(int type) {
+		return vm.universe.lookup(type);
+	}
+
+	IllegalArgumentException typeMismatch(int op, int lhs, int rhs) {
+		//fmt:off
+		String name;
+		switch (op) {
+		case Decoded.IADD: name = "IADD"; break;
+		case Decoded.ISUB: name = "ISUB"; break;
+		case Decoded.IMUL: name = "IMUL"; break;
+		case Decoded.IDIV: name = "IDIV"; break;
+		case Decoded.ILT : name = "ILT";  break;
+		case Decoded.IGT : name = "IGT";  break;
+		case Decoded.ILTE: name = "ILTE"; break;
+		case Decoded.IGTE: name = "IGTE"; break;
+		case Decoded.IEQ : name = "IEQ";  break;
+		default          : name = "INEQ"; break;
+		}
+		//fmt:on
+		return new IllegalArgumentException(String.format("%s:: want [INT,INT], have [%s,%s]",
+			name, vm.universe.lookup(lhs), vm.universe.lookup(rhs)));
+	}
+
+	IllegalArgumentException cmpMismatch(String name, int lhs, int rhs) {
+		return new IllegalArgumentException(String.format("%s:: want [INT,INT], have [%s,%s]",
+			name, vm.universe.lookup(lhs), vm.universe.lookup(rhs)));
+	}
+
+	//endregion
+
+	private void growStack(int minLen) {
+		int newLen = growLen(vals.length, minLen, vm.stackLimit);
+		vals = Arrays.copyOf(vals, newLen);
+		types = Arrays.copyOf(types, newLen);
+	}
+
+}
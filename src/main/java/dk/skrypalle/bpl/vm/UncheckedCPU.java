@@ -0,0 +1,480 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.compiler.type.*;
+import dk.skrypalle.bpl.vm.err.*;
+
+import java.util.*;
+
+import static dk.skrypalle.bpl.vm.CPU.*;
+import static dk.skrypalle.bpl.vm.Decoded.*;
+import static dk.skrypalle.bpl.vm.Verified.*;
+
+// Interpreter for verified code. Stack depth, frame bounds and the types of
+// all ops carrying UNCHECKED have been proven at load time, so only ops on
+// values of statically unknown type still check at runtime. The stack grows
+// at CALL only, by the frame size the verifier computed for the callee.
+class UncheckedCPU implements Core {
+
+	private final VM       vm;
+	private final Verified ver;
+
+	private long[]  vals;
+	private int[]   types;
+	private int[]   frames;
+	private int     fsp;
+	private int     pc;
+	private int     fp;
+	private int     sp;
+	private long    garbage;
+	private boolean halted;
+
+	UncheckedCPU(VM vm, Verified ver) {
+		this.vm = vm;
+		this.ver = ver;
+		this.vals = new long[0];
+		this.types = new int[0];
+		this.frames = new int[0];
+		this.sp = -1;
+		this.garbage = 0x2545f4914f6cdd1dL;
+		growStack(ver.frame[0] + 1);
+	}
+
+	@Override
+	@SuppressWarnings("fallthrough") // checked ops share the tail of their UNCHECKED twin
+	public long run(long budget) {
+		final int[] inst = ver.inst;
+		final int[] frame = ver.frame;
+		final long[] consts = ver.dec.consts;
+
+		long[] vals = this.vals;
+		int[] types = this.types;
+		int sp = this.sp;
+		int fp = this.fp;
+		int pc = this.pc;
+
+		int lhs, rhs, n, addr;
+		long val;
+
+		for (; ; ) {
+			budget--;
+			int op = inst[pc++];
+			switch (op) {
+			case NOP:
+				break;
+			case POP:
+				sp--;
+				break;
+			case IPUSH:
+				sp++;
+				vals[sp] = consts[inst[pc++]];
+				types[sp] = T_INT;
+				break;
+			case IADD:
+				if (types[sp - 1] != types[sp])
+					throw typeMismatch(op, types[sp - 1], types[sp]);
+				// fall through
+			case IADD | UNCHECKED:
+				rhs = sp--;
+				vals[sp] = vals[sp] + vals[rhs];
+				types[sp] = T_INT;
+				break;
+			case ISUB:
+				if (types[sp - 1] != types[sp])
+					throw typeMismatch(op, types[sp - 1], types[sp]);
+				// fall through
+			case ISUB | UNCHECKED:
+				rhs = sp--;
+				vals[sp] = vals[sp] - vals[rhs];
+				types[sp] = T_INT;
+				break;
+			case IMUL:
+				if (types[sp - 1] != types[sp])
+					throw typeMismatch(op, types[sp - 1], types[sp]);
+				// fall through
+			case IMUL | UNCHECKED:
+				rhs = sp--;
+				vals[sp] = vals[sp]*vals[rhs];
+				types[sp] = T_INT;
+				break;
+			case IDIV:
+				if (types[sp - 1] != types[sp])
+					throw typeMismatch(op, types[sp - 1], types[sp]);
+				// fall through
+			case IDIV | UNCHECKED:
+				rhs = sp--;
+				vals[sp] = vals[sp]/vals[rhs];
+				types[sp] = T_INT;
+				break;
+			case ILT:
+				if (types[sp - 1] != types[sp])
+					throw typeMismatch(op, types[sp - 1], types[sp]);
+				// fall through
+			case ILT | UNCHECKED:
+				rhs = sp--;
+				vals[sp] = vals[sp] < vals[rhs] ? 1 : 0;
+				types[sp] = T_INT;
+				break;
+			case IGT:
+				if (types[sp - 1] != types[sp])
+					throw typeMismatch(op, types[sp - 1], types[sp]);
+				// fall through
+			case IGT | UNCHECKED:
+				rhs = sp--;
+				vals[sp] = vals[sp] > vals[rhs] ? 1 : 0;
+				types[sp] = T_INT;
+				break;
+			case ILTE:
+				if (types[sp - 1] != types[sp])
+					throw typeMismatch(op, types[sp - 1], types[sp]);
+				// fall through
+			case ILTE | UNCHECKED:
+				rhs = sp--;
+				vals[sp] = vals[sp] <= vals[rhs] ? 1 : 0;
+				types[sp] = T_INT;
+				break;
+			case IGTE:
+				if (types[sp - 1] != types[sp])
+					throw typeMismatch(op, types[sp - 1], types[sp]);
+				// fall through
+			case IGTE | UNCHECKED:
+				rhs = sp--;
+				vals[sp] = vals[sp] >= vals[rhs] ? 1 : 0;
+				types[sp] = T_INT;
+				break;
+			case IEQ:
+				if (types[sp - 1] != types[sp])
+					throw typeMismatch(op, types[sp - 1], types[sp]);
+				// fall through
+			case IEQ | UNCHECKED:
+				rhs = sp--;
+				vals[sp] = vals[sp] == vals[rhs] ? 1 : 0;
+				types[sp] = T_INT;
+				break;
+			case INEQ:
+				if (types[sp - 1] != types[sp])
+					throw typeMismatch(op, types[sp - 1], types[sp]);
+				// fall through
+			case INEQ | UNCHECKED:
+				rhs = sp--;
+				vals[sp] = vals[sp] != vals[rhs] ? 1 : 0;
+				types[sp] = T_INT;
+				break;
+			case ILOAD:
+			case SLOAD:
+				addr = fp + (int) vals[sp] + 1;
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[sp] = vals[addr];
+				types[sp] = types[addr];
+				break;
+			case IADDI:
+				if (types[sp] != T_INT)
+					throw new IllegalArgumentException(String.format("IADDI:: want [INT], have [%s]", vm.universe.lookup(types[sp])));
+				// fall through
+			case IADDI | UNCHECKED:
+				vals[sp] += consts[inst[pc++]];
+				break;
+			case LLOAD:
+				addr = fp + inst[pc++] + 1;
+				sp++;
+				vals[sp] = vals[addr];
+				types[sp] = types[addr];
+				break;
+			case LSTORE:
+				addr = fp + inst[pc++] + 1;
+				vals[addr] = vals[sp];
+				types[addr] = types[sp];
+				sp--;
+				break;
+			case IINC:
+				addr = fp + inst[pc] + 1;
+				if (types[addr] != T_INT)
+					throw new IllegalArgumentException(String.format("IINC:: want [INT], have [%s]", vm.universe.lookup(types[addr])));
+				// fall through
+			case IINC | UNCHECKED:
+				addr = fp + inst[pc++] + 1;
+				vals[addr] += consts[inst[pc++]];
+				break;
+			case ISTORE:
+				rhs = sp--;
+				lhs = sp--;
+				addr = fp + (int) vals[lhs] + 1;
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[addr] = vals[rhs];
+				types[addr] = types[rhs];
+				break;
+			case ADDR_OF:
+				vals[sp] = fp + (int) vals[sp] + 1;
+				types[sp] = Types.ptr(types[sp]);
+				break;
+			case VAL_OF:
+				addr = (int) vals[sp];
+				if (addr < 0)
+					throw new BPLVMStackUnderflowError();
+				vals[sp] = vals[addr];
+				types[sp] = types[addr];
+				break;
+			case RESOLVE:
+				vals[sp] = vals[sp] - fp - 1;
+				types[sp] = T_INT;
+				break;
+			case SPUSH:
+				sp++;
+				types[sp] = inst[pc++];
+				vals[sp] = inst[pc++];
+				break;
+			case CALL:
+				addr = inst[pc++];
+				n = inst[pc++];
+				if (sp + frame[addr] >= vals.length) {
+					growStack(sp + frame[addr] + 1);
+					vals = this.vals;
+					types = this.types;
+				}
+				pushFrame(pc, fp, n);
+				fp = sp;
+				pc = addr;
+				if (budget <= 0)
+					return suspend(pc, fp, sp, budget);
+				break;
+			case RET:
+				val = vals[sp];
+				int type = types[sp];
+				int f = fsp -= FRAME_LEN;
+				sp = fp - frames[f + 2] + 1;
+				fp = frames[f + 1];
+				pc = frames[f];
+				vals[sp] = val;
+				types[sp] = type;
+				break;
+			case TAILCALL:
+				addr = inst[pc++];
+				n = inst[pc++];
+				// move the args onto our params and hand our return over to the callee
+				lhs = fp - frames[fsp - 1] + 1;
+				System.arraycopy(vals, sp - n + 1, vals, lhs, n);
+				System.arraycopy(types, sp - n + 1, types, lhs, n);
+				frames[fsp - 1] = n;
+				sp = lhs + n - 1;
+				if (sp + frame[addr] >= vals.length) {
+					growStack(sp + frame[addr] + 1);
+					vals = this.vals;
+					types = this.types;
+				}
+				fp = sp;
+				pc = addr;
+				if (budget <= 0)
+					return suspend(pc, fp, sp, budget);
+				break;
+			case LOCALS:
+				n = inst[pc++];
+				// simulate garbage in local storage
+				for (int i = 0; i < n; i++) {
+					garbage ^= garbage << 13;
+					garbage ^= garbage >>> 7;
+					garbage ^= garbage << 17;
+					vals[++sp] = garbage;
+					types[sp] = T_INT;
+				}
+				break;
+			case JMP:
+				if (inst[pc] < pc && budget <= 0)
+					return suspend(inst[pc], fp, sp, budget);
+				pc = inst[pc];
+				break;
+			case BREQ:
+			case BRNE:
+				if (types[sp] != T_INT)
+					throw new IllegalArgumentException(String.format("%s:: want [INT], have [%s]",
+						op == BREQ ? "BREQ" : "BRNE", vm.universe.lookup(types[sp])));
+				// fall through
+			case BREQ | UNCHECKED:
+			case BRNE | UNCHECKED:
+				if ((vals[sp--] == 0) == ((op & ~UNCHECKED) == BREQ))
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRLT:
+				if (types[sp - 1] != T_INT || types[sp] != T_INT)
+					throw cmpMismatch("BRLT", types[sp - 1], types[sp]);
+				// fall through
+			case BRLT | UNCHECKED:
+				rhs = sp--;
+				lhs = sp--;
+				if (vals[lhs] < vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRGT:
+				if (types[sp - 1] != T_INT || types[sp] != T_INT)
+					throw cmpMismatch("BRGT", types[sp - 1], types[sp]);
+				// fall through
+			case BRGT | UNCHECKED:
+				rhs = sp--;
+				lhs = sp--;
+				if (vals[lhs] > vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRLTE:
+				if (types[sp - 1] != T_INT || types[sp] != T_INT)
+					throw cmpMismatch("BRLTE", types[sp - 1], types[sp]);
+				// fall through
+			case BRLTE | UNCHECKED:
+				rhs = sp--;
+				lhs = sp--;
+				if (vals[lhs] <= vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRGTE:
+				if (types[sp - 1] != T_INT || types[sp] != T_INT)
+					throw cmpMismatch("BRGTE", types[sp - 1], types[sp]);
+				// fall through
+			case BRGTE | UNCHECKED:
+				rhs = sp--;
+				lhs = sp--;
+				if (vals[lhs] >= vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRIEQ:
+				if (types[sp - 1] != T_INT || types[sp] != T_INT)
+					throw cmpMismatch("BRIEQ", types[sp - 1], types[sp]);
+				// fall through
+			case BRIEQ | UNCHECKED:
+				rhs = sp--;
+				lhs = sp--;
+				if (vals[lhs] == vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case BRINE:
+				if (types[sp - 1] != T_INT || types[sp] != T_INT)
+					throw cmpMismatch("BRINE", types[sp - 1], types[sp]);
+				// fall through
+			case BRINE | UNCHECKED:
+				rhs = sp--;
+				lhs = sp--;
+				if (vals[lhs] != vals[rhs])
+					pc = inst[pc];
+				else
+					pc++;
+				break;
+			case PRINT:
+				n = inst[pc++];
+				for (int arg = sp - n + 1; arg <= sp; arg++)
+					vm.print(vals[arg], types[arg]);
+				sp -= n;
+				break;
+			case HALT:
+				halted = true;
+				return suspend(pc - 1, fp, sp, budget);
+			default:
+				throw new IllegalStateException(String.format("illegal decoded op 0x%02x at 0x%08x", op, ver.dec.addr[pc - 1]));
+			}
+		}
+	}
+
+	@Override
+	public boolean halted() {
+		return halted;
+	}
+
+	@Override
+	public int exitCode() {
+		return (int) vals[sp];
+	}
+
+	@Override
+	public void reset() {
+		pc = 0;
+		fp = 0;
+		sp = -1;
+		fsp = 0;
+		halted = false;
+		garbage = 0x2545f4914f6cdd1dL;
+	}
+
+	private IllegalArgumentException typeMismatch(int op, int lhs, int rhs) {
+		//fmt:off
+		String name;
+		switch (op) {
+		case IADD: name = "IADD"; break;
+		case ISUB: name = "ISUB"; break;
+		case IMUL: name = "IMUL"; break;
+		case IDIV: name = "IDIV"; break;
+		case ILT : name = "ILT";  break;
+		case IGT : name = "IGT";  break;
+		case ILTE: name = "ILTE"; break;
+		case IGTE: name = "IGTE"; break;
+		case IEQ : name = "IEQ";  break;
+		default  : name = "INEQ"; break;
+		}
+		//fmt:on
+		return new IllegalArgumentException(String.format("%s:: want [INT,INT], have [%s,%s]",
+			name, vm.universe.lookup(lhs), vm.universe.lookup(rhs)));
+	}
+
+	private IllegalArgumentException cmpMismatch(String name, int lhs, int rhs) {
+		return new IllegalArgumentException(String.format("%s:: want [INT,INT], have [%s,%s]",
+			name, vm.universe.lookup(lhs), vm.universe.lookup(rhs)));
+	}
+
+	// Saves the registers of a run interrupted at a preemption point
+	private long suspend(int pc, int fp, int sp, long budget) {
+		this.pc = pc;
+		this.fp = fp;
+		this.sp = sp;
+		return budget;
+	}
+
+	private void pushFrame(int pc, int fp, int nArgs) {
+		int f = fsp;
+		if (f + FRAME_LEN > frames.length)
+			frames = growFrames(frames, vm.stackLimit);
+		frames[f] = pc;
+		frames[f + 1] = fp;
+		frames[f + 2] = nArgs;
+		fsp = f + FRAME_LEN;
+	}
+
+	private void growStack(int minLen) {
+		int newLen = growLen(vals.length, minLen, vm.stackLimit);
+		vals = Arrays.copyOf(vals, newLen);
+		types = Arrays.copyOf(types, newLen);
+	}
+
+}
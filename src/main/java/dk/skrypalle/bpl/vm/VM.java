@@ -25,21 +25,38 @@
 
 package dk.skrypalle.bpl.vm;
 
+import dk.skrypalle.bpl.compiler.type.*;
 import dk.skrypalle.bpl.util.*;
+import dk.skrypalle.bpl.vm.err.*;
+import dk.skrypalle.bpl.vm.sink.*;
 
 import java.io.*;
+import java.util.*;
+
+import static dk.skrypalle.bpl.vm.Bytecode.*;
 
 public class VM {
 
 	public static final int HEADER = 0x04;
 
+	// Stack slots a VM may use unless configured otherwise; call frames are
+	// limited to the same count
+	public static final int DEFAULT_STACK_LIMIT = 0xffff;
+
+	private static final byte[] NEWLINE = System.lineSeparator().getBytes(IO.UTF8);
+
 	private final CPU           cpu;
-	private final StringBuilder outBuf;
+	private final Core          core;
 	private final StringBuilder traceBuf;
 
-	private final PrintStream out;
-	private final PrintStream err;
-	private final PrintStream dbg;
+	private Sink        out;
+	private PrintStream err;
+	private PrintStream dbg;
+	private boolean     printed; // since the last flush
+
+	final Program      program;
+	final TypeUniverse universe;
+	final int          stackLimit;
 
 	boolean trace;
 
@@ -49,25 +66,58 @@ public class VM {
 
 	public VM(byte[] code, boolean trace,
 	          PrintStream out, PrintStream err, PrintStream dbg) {
+		this(code, trace, out, err, dbg, Engine.STACK);
+	}
+
+	public VM(byte[] code, boolean trace,
+	          PrintStream out, PrintStream err, PrintStream dbg,
+	          Engine engine) {
+		this(code, trace, out, err, dbg, engine, new TypeUniverse());
+	}
+
+	public VM(byte[] code, boolean trace,
+	          PrintStream out, PrintStream err, PrintStream dbg,
+	          Engine engine, TypeUniverse universe) {
+		this(code, trace, out, err, dbg, engine, universe, DEFAULT_STACK_LIMIT);
+	}
+
+	public VM(byte[] code, boolean trace,
+	          PrintStream out, PrintStream err, PrintStream dbg,
+	          Engine engine, TypeUniverse universe, int stackLimit) {
+		this(Program.load(code, universe), trace, out, err, dbg, engine, stackLimit);
+	}
+
+	public VM(Program program, boolean trace,
+	          PrintStream out, PrintStream err, PrintStream dbg,
+	          Engine engine, int stackLimit) {
+		this(program, trace, new StreamSink(out), err, dbg, engine, stackLimit);
+	}
+
+	public VM(Program program, boolean trace,
+	          Sink out, PrintStream err, PrintStream dbg,
+	          Engine engine, int stackLimit) {
+		if (stackLimit < 1)
+			throw new IllegalArgumentException("stack limit must be positive, is " + stackLimit);
 		this.out = out;
 		this.err = err;
 		this.dbg = dbg;
-		this.cpu = new CPU(this, code);
-		this.outBuf = new StringBuilder();
+		this.program = program;
+		this.universe = program.universe;
+		this.stackLimit = stackLimit;
+		this.cpu = new CPU(this, program, !trace && engine == Engine.STACK); // traced runs show every op
+		this.core = trace ? cpu : newCore(engine); // tracing is done by the byte-dispatch CPU only
 		this.traceBuf = new StringBuilder();
 		this.trace = trace;
 	}
 
 	public int run() {
-		while (cpu.hasInstructions()) {
-			cpu.step();
+		try {
+			if (trace)
+				runTrace();
+			else
+				runFast();
+		} finally {
 			flush();
-
-			try {
-				Thread.sleep(00);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
 		}
 
 		if (trace) {
@@ -77,9 +127,110 @@ public class VM {
 			dbg.println(disassemble(cpu.code, cpu.ds_len).trim());
 			dbg.printf("\nData segment: %d bytes\n", cpu.code.length - cpu.ds_len);
 			dbg.println(Hex.dump(cpu.code, HEADER, cpu.ds_len));
+			dbg.printf("\nFunction table: %d entries\n", Marshal.s32BE(cpu.code, funcTbl(cpu.code)));
+			dbg.println(disassembleFuncTbl(cpu.code).trim());
+		}
+
+		return core.exitCode();
+	}
+
+	//region budgeted runs
+
+	// Runs until the program halts or about budget instructions have run (see
+	// Core.run). Returns whether the program halted; if it did not, the next
+	// call resumes where this one stopped.
+	public boolean runFor(long budget) {
+		runSlice(budget);
+		return core.halted();
+	}
+
+	// Like run, but aborts with a BPLVMBudgetExceededError once more than
+	// maxInstructions have run. The VM can still be resumed by runFor.
+	public int run(long maxInstructions) {
+		long left = runSlice(maxInstructions);
+		if (!core.halted()) {
+			flush();
+			throw new BPLVMBudgetExceededError("instruction", maxInstructions - left, maxInstructions);
+		}
+		return core.exitCode();
+	}
+
+	public boolean halted() {
+		return core.halted();
+	}
+
+	public int exitCode() {
+		return core.exitCode();
+	}
+
+	// Returns the budget left, <= 0 if the program did not halt
+	long runSlice(long budget) {
+		boolean paused = false;
+		try {
+			long left = core.run(budget);
+			paused = !core.halted();
+			return left;
+		} finally {
+			if (paused)
+				out.pause();
+			else
+				flush();
 		}
+	}
+
+	//endregion
+
+	// Rewinds the VM to the start of its program and redirects its output.
+	// Output of an earlier run that was not flushed yet is dropped. Stacks
+	// grown by earlier runs are kept, so running a reset VM again allocates
+	// next to nothing.
+	public VM reset(PrintStream out, PrintStream err, PrintStream dbg) {
+		return reset(new StreamSink(out), err, dbg);
+	}
+
+	public VM reset(Sink out, PrintStream err, PrintStream dbg) {
+		this.out.discard();
+		this.out = out;
+		this.err = err;
+		this.dbg = dbg;
+		cpu.reset();
+		if (core != cpu)
+			core.reset();
+		printed = false;
+		traceBuf.setLength(0);
+		return this;
+	}
 
-		return cpu.exitCode();
+	public VM reset() {
+		return reset(out, err, dbg);
+	}
+
+	private Core newCore(Engine engine) {
+		switch (engine) {
+		case STACK:
+			return cpu;
+		case DECODED:
+			return new DecodedCPU(this, program.decoded());
+		case REGISTER:
+			return new RegisterCPU(this, program.registers());
+		case VERIFIED:
+			return new UncheckedCPU(this, program.verified());
+		case TREE:
+			return new TreeCPU(this, program.tree());
+		default:
+			throw new IllegalArgumentException("unknown engine " + engine);
+		}
+	}
+
+	private void runFast() {
+		core.run(Long.MAX_VALUE);
+	}
+
+	private void runTrace() {
+		while (cpu.hasInstructions()) {
+			cpu.traceStep();
+			flush();
+		}
 	}
 
 	void trace(String s) {
@@ -87,27 +238,80 @@ public class VM {
 			traceBuf.append(s);
 	}
 
-	void out(String s) {
-		outBuf.append(s);
+	// Strings are copied as UTF-8 straight from the data segment and ints
+	// formatted in place, so printing neither decodes nor allocates.
+	void print(long val, int type) {
+		printed = true;
+		if (type == CPU.T_INT) {
+			out.writeHex(val);
+		} else if (type == CPU.T_STRING) {
+			int addr = (int) val;
+			out.write(program.code, addr + 4, Marshal.s32BE(program.code, addr));
+		} else {
+			byte[] b = String.format("Don't know, how to print [%s] addr=0x%08x", universe.lookup(type), val).getBytes(IO.UTF8);
+			out.write(b, 0, b.length);
+		}
 	}
 
-	private void flush() {
-		if (trace) {
+	void flush() {
+		if (trace && traceBuf.length() > 0) {
 			dbg.println(traceBuf.toString().trim());
 			traceBuf.delete(0, traceBuf.capacity());
 		}
 
-		if (outBuf.length() > 0) {
-			out.print(outBuf.toString());
-			if (trace)
-				out.println();
-			outBuf.delete(0, outBuf.capacity());
+		if (trace && printed)
+			out.write(NEWLINE, 0, NEWLINE.length);
+		printed = false;
+		out.flush();
+	}
+
+	//region image layout
+
+	// Offset of the function table, right after the data segment
+	static int funcTbl(byte[] code) {
+		return HEADER + Marshal.s32BE(code, 0);
+	}
+
+	// Offset of the preamble, right after the function table
+	static int codeStart(byte[] code) {
+		int tbl = funcTbl(code);
+		return tbl + 4 + Marshal.s32BE(code, tbl)*FUNC_ENTRY_LEN;
+	}
+
+	// Returns the frame size (locals + max. operand depth) of the function
+	// entered at every image address, -1 where no function starts.
+	static int[] frameSizes(byte[] code) {
+		int[] res = new int[code.length];
+		Arrays.fill(res, -1);
+		int start = codeStart(code);
+		int tbl = funcTbl(code);
+		int n = Marshal.s32BE(code, tbl);
+		for (int i = 0, at = tbl + 4; i < n; i++, at += FUNC_ENTRY_LEN) {
+			int entry = Marshal.s32BE(code, at);
+			if (entry < start || entry >= code.length)
+				throw new ArrayIndexOutOfBoundsException(String.format("function table entry to invalid addr 0x%08x", entry));
+			res[entry] = Marshal.s32BE(code, at + 4) + Marshal.s32BE(code, at + 8);
 		}
+		return res;
+	}
+
+	//endregion
+
+	private String disassembleFuncTbl(byte[] code) {
+		StringBuilder buf = new StringBuilder();
+		int tbl = funcTbl(code);
+		int n = Marshal.s32BE(code, tbl);
+		for (int i = 0, at = tbl + 4; i < n; i++, at += FUNC_ENTRY_LEN) {
+			buf.append(String.format("%08x  locals=%d max_stack=%d\n",
+				Marshal.s32BE(code, at), Marshal.s32BE(code, at + 4), Marshal.s32BE(code, at + 8)));
+		}
+		return buf.toString();
 	}
 
 	private String disassemble(byte[] code, int ds_len) {
 		StringBuilder buf = new StringBuilder();
-		int ip = HEADER + ds_len;
+		int ip = codeStart(code);
+		int line = -1;
 		while (ip < code.length) {
 			int _ip = ip;
 			byte op = code[ip++];
@@ -125,6 +329,10 @@ public class VM {
 			argBuf.append(']');
 
 			String trace = String.format("%08x  (0x%02x) %-6s %s", _ip, op, inst.name, argBuf.toString());
+			if (program.line(_ip) != line) {
+				line = program.line(_ip);
+				trace += String.format("  ; line %d", line);
+			}
 
 			buf.append(String.format("%-80s\n", trace));
 		}
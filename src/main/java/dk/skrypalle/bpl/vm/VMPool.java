@@ -0,0 +1,75 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.vm.sink.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+// Hands out VMs running one program and takes them back for reuse. Released
+// VMs beyond maxIdle are dropped. Safe for concurrent use; a VM itself is
+// used by one thread between acquire and release.
+public final class VMPool {
+
+	private final Program           program;
+	private final Engine            engine;
+	private final int               stackLimit;
+	private final BlockingQueue<VM> idle;
+
+	public VMPool(Program program, Engine engine, int stackLimit, int maxIdle) {
+		this.program = program;
+		this.engine = engine;
+		this.stackLimit = stackLimit;
+		this.idle = new ArrayBlockingQueue<>(maxIdle);
+	}
+
+	public VMPool(Program program, Engine engine) {
+		this(program, engine, VM.DEFAULT_STACK_LIMIT, Runtime.getRuntime().availableProcessors()*2);
+	}
+
+	public VM acquire(PrintStream out, PrintStream err, PrintStream dbg) {
+		return acquire(new StreamSink(out), err, dbg);
+	}
+
+	public VM acquire(Sink out, PrintStream err, PrintStream dbg) {
+		VM vm = idle.poll();
+		if (vm == null)
+			return new VM(program, false, out, err, dbg, engine, stackLimit);
+		return vm.reset(out, err, dbg);
+	}
+
+	public void release(VM vm) {
+		if (vm.program != program)
+			throw new IllegalArgumentException("VM runs a different program");
+		idle.offer(vm);
+	}
+
+	public int idle() {
+		return idle.size();
+	}
+
+}
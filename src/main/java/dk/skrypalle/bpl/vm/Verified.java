@@ -0,0 +1,582 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.compiler.type.*;
+import dk.skrypalle.bpl.vm.err.*;
+
+import java.util.*;
+
+import static dk.skrypalle.bpl.vm.CPU.*;
+
+// Load-time verification of the decoded form. Every function is walked from
+// its CALL target, tracking the stack depth and the vm_type of every frame
+// slot along all paths. Param types are joined over all call sites and
+// return types over all RETs until nothing changes any more.
+//
+// Structural errors (underflow, different depths at a join, slots outside
+// the frame) and provable type errors reject the program. Ops whose operand
+// types are proven get UNCHECKED set and run without any checks. A value
+// whose type is not known statically, e.g. one loaded through a pointer,
+// keeps the runtime check of its op.
+final class Verified {
+
+	static final int UNCHECKED = 0x40;
+
+	final Decoded dec;
+	final int[]   inst;  // decoded ops, with UNCHECKED set where the types are proven
+	final int[]   frame; // slots used above fp by the function entered at this op
+
+	private Verified(Decoded dec, int[] inst, int[] frame) {
+		this.dec = dec;
+		this.inst = inst;
+		this.frame = frame;
+	}
+
+	static Verified verify(Decoded dec, TypeUniverse universe) {
+		return new Analysis(dec, universe).run();
+	}
+
+	//region Analysis
+
+	private static final class Analysis {
+
+		private static final int  BOT  = -3;             // no value seen yet
+		private static final int  TOP  = -2;             // conflicting or unknown type
+		private static final long NONE = Long.MIN_VALUE; // not a known constant
+
+		private final Decoded      dec;
+		private final int[]        in;
+		private final TypeUniverse universe;
+
+		private final State[]            at;    // state before every reached op
+		private final Func[]             owner; // function whose body holds the op
+		private final Map<Integer, Func> funcs;
+		private final Deque<Func>        stale;
+		private final int[]              out;
+
+		private final int[]     work;
+		private final boolean[] onWork;
+		private final int[]     succ = new int[2];
+
+		private boolean report;
+
+		private Analysis(Decoded dec, TypeUniverse universe) {
+			this.dec = dec;
+			this.in = dec.inst;
+			this.universe = universe;
+			this.at = new State[in.length];
+			this.owner = new Func[in.length];
+			this.funcs = new LinkedHashMap<>();
+			this.stale = new ArrayDeque<>();
+			this.out = in.clone();
+			this.work = new int[in.length];
+			this.onWork = new boolean[in.length];
+		}
+
+		private Verified run() {
+			Func preamble = new Func(0, 0);
+			funcs.put(0, preamble);
+			queue(preamble);
+
+			// re-analyze a function whenever its param types, its escaped
+			// slots or the return type of one of its callees change
+			while (!stale.isEmpty()) {
+				Func f = stale.poll();
+				f.stale = false;
+				analyze(f);
+			}
+
+			// all states are final now, so every op is checked exactly once
+			report = true;
+			int[] frame = new int[in.length];
+			for (Func f : funcs.values()) {
+				for (int i = 0; i < f.nPcs; i++)
+					step(f, f.pcs[i], at[f.pcs[i]]);
+				frame[f.entry] = f.frame;
+			}
+			return new Verified(dec, out, frame);
+		}
+
+		private void analyze(Func f) {
+			for (int i = 0; i < f.nPcs; i++) {
+				at[f.pcs[i]] = null;
+				owner[f.pcs[i]] = null;
+			}
+			f.nPcs = 0;
+			f.frame = 0;
+
+			State s = new State(f.nArgs, f.entry == 0 ? -1 : 0);
+			for (int i = 0; i < f.nArgs; i++)
+				s.set(i - f.nArgs + 1, f.params[i], NONE);
+
+			int nWork = 0;
+			if (owner[f.entry] != null)
+				throw fail(f.entry, String.format("code shared with the function at 0x%08x", dec.addr[owner[f.entry].entry]));
+			at[f.entry] = s;
+			owner[f.entry] = f;
+			f.add(f.entry);
+			work[nWork++] = f.entry;
+			onWork[f.entry] = true;
+			while (nWork > 0) {
+				int pc = work[--nWork];
+				onWork[pc] = false;
+				State nxt = at[pc].copy();
+				int n = step(f, pc, nxt);
+				for (int i = 0; i < n; i++) {
+					int to = succ[i];
+					// function bodies are disjoint, as states are kept per op and
+					// only the ops of the function at hand are reset
+					if (owner[to] != null && owner[to] != f || to != f.entry && funcs.containsKey(to))
+						throw fail(pc, String.format("code shared with the function at 0x%08x",
+							dec.addr[owner[to] != null ? owner[to].entry : to]));
+					if (at[to] == null) {
+						at[to] = i == n - 1 ? nxt : nxt.copy();
+						owner[to] = f;
+						f.add(to);
+					} else if (at[to].d != nxt.d) {
+						throw fail(to, String.format("stack depth %d here, but %d when coming from 0x%08x",
+							at[to].d, nxt.d, dec.addr[pc]));
+					} else if (!at[to].join(nxt)) {
+						continue;
+					}
+					if (!onWork[to]) {
+						work[nWork++] = to;
+						onWork[to] = true;
+					}
+				}
+			}
+		}
+
+		// Applies the op at pc to s and stores its successors in succ.
+		private int step(Func f, int pc, State s) {
+			int op = in[pc];
+			int next = pc + Decoded.length(op);
+			int d = s.d;
+			int r, a, b;
+			switch (op) {
+			case Decoded.NOP:
+				break;
+			case Decoded.POP:
+				need(pc, s, 1);
+				s.d--;
+				break;
+			case Decoded.IPUSH:
+				s.push(T_INT, dec.consts[in[pc + 1]]);
+				break;
+			case Decoded.SPUSH:
+				s.push(in[pc + 1], NONE);
+				break;
+			case Decoded.LLOAD:
+				r = slot(pc, s, in[pc + 1] + 1, d);
+				s.push(s.type(r), s.konst(r));
+				break;
+			case Decoded.LSTORE:
+				need(pc, s, 1);
+				r = slot(pc, s, in[pc + 1] + 1, d - 1);
+				s.set(r, s.type(d), s.konst(d));
+				s.d--;
+				break;
+			case Decoded.IINC:
+				r = slot(pc, s, in[pc + 1] + 1, d);
+				a = s.type(r);
+				typed(pc, a == T_INT, a >= 0, a);
+				s.set(r, a, s.konst(r) == NONE ? NONE : s.konst(r) + dec.consts[in[pc + 2]]);
+				break;
+			case Decoded.IADD:
+			case Decoded.ISUB:
+			case Decoded.IMUL:
+			case Decoded.IDIV:
+			case Decoded.ILT:
+			case Decoded.IGT:
+			case Decoded.ILTE:
+			case Decoded.IGTE:
+			case Decoded.IEQ:
+			case Decoded.INEQ:
+				need(pc, s, 2);
+				a = s.type(d - 1);
+				b = s.type(d);
+				typed(pc, a >= 0 && a == b, a >= 0 && b >= 0, a, b);
+				s.d--;
+				s.set(s.d, T_INT, NONE);
+				break;
+			case Decoded.IADDI:
+				need(pc, s, 1);
+				a = s.type(d);
+				typed(pc, a == T_INT, a >= 0, a);
+				s.set(d, T_INT, NONE);
+				break;
+			case Decoded.ILOAD:
+			case Decoded.SLOAD:
+				need(pc, s, 1);
+				if (s.konst(d) != NONE) {
+					r = slot(pc, s, (int) s.konst(d) + 1, d - 1);
+					s.set(d, s.type(r), s.konst(r));
+				} else {
+					s.set(d, TOP, NONE); // through a pointer, possibly into another frame
+				}
+				break;
+			case Decoded.ISTORE:
+				need(pc, s, 2);
+				if (s.konst(d - 1) != NONE) {
+					r = slot(pc, s, (int) s.konst(d - 1) + 1, d - 2);
+					s.set(r, s.type(d), s.konst(d));
+				} else {
+					clobber(f, s);
+				}
+				s.d -= 2;
+				break;
+			case Decoded.ADDR_OF:
+				need(pc, s, 1);
+				if (s.konst(d) != NONE)
+					escape(f, slot(pc, s, (int) s.konst(d) + 1, d - 1));
+				else
+					escape(f, Func.ALL);
+				a = s.type(d);
+				s.set(d, a >= 0 ? Types.ptr(a) : TOP, NONE);
+				break;
+			case Decoded.VAL_OF:
+				need(pc, s, 1);
+				s.set(d, TOP, NONE);
+				break;
+			case Decoded.RESOLVE:
+				need(pc, s, 1);
+				s.set(d, T_INT, NONE);
+				break;
+			case Decoded.CALL:
+				Func g = call(f, pc, s, in[pc + 1], in[pc + 2]);
+				s.d -= g.nArgs;
+				clobber(f, s); // the callee may write through pointers
+				s.push(g.ret, NONE);
+				break;
+			case Decoded.RET:
+				need(pc, s, 1);
+				ret(f, s.type(d));
+				return 0;
+			case Decoded.TAILCALL:
+				// the frame is reused, so nothing in it may be pointed to
+				if (report && (f.escapeAll || !f.escaped.isEmpty()))
+					throw fail(pc, "tail call from a frame with escaped slots");
+				ret(f, call(f, pc, s, in[pc + 1], in[pc + 2]).ret);
+				return 0;
+			case Decoded.LOCALS:
+				for (int i = 0; i < in[pc + 1]; i++)
+					s.push(T_INT, NONE); // garbage
+				break;
+			case Decoded.JMP:
+				succ[0] = in[pc + 1];
+				return 1;
+			case Decoded.BREQ:
+			case Decoded.BRNE:
+				need(pc, s, 1);
+				a = s.type(d);
+				typed(pc, a == T_INT, a >= 0, a);
+				s.d--;
+				succ[0] = next;
+				succ[1] = in[pc + 1];
+				return 2;
+			case Decoded.BRLT:
+			case Decoded.BRGT:
+			case Decoded.BRLTE:
+			case Decoded.BRGTE:
+			case Decoded.BRIEQ:
+			case Decoded.BRINE:
+				need(pc, s, 2);
+				a = s.type(d - 1);
+				b = s.type(d);
+				typed(pc, a == T_INT && b == T_INT, a >= 0 && b >= 0 && (a != T_INT || b != T_INT), a, b);
+				s.d -= 2;
+				succ[0] = next;
+				succ[1] = in[pc + 1];
+				return 2;
+			case Decoded.PRINT:
+				need(pc, s, in[pc + 1]);
+				s.d -= in[pc + 1];
+				break;
+			case Decoded.HALT:
+				need(pc, s, 1);
+				return 0;
+			default:
+				throw fail(pc, String.format("illegal op 0x%02x", op));
+			}
+			f.frame = Math.max(f.frame, Math.max(d, s.d));
+			succ[0] = next;
+			return 1;
+		}
+
+		//region helpers
+
+		private Func call(Func f, int pc, State s, int target, int nArgs) {
+			need(pc, s, nArgs);
+			Func g = funcs.get(target);
+			if (g == null) {
+				g = new Func(target, nArgs);
+				funcs.put(target, g);
+				queue(g);
+			}
+			if (g.nArgs != nArgs)
+				throw fail(pc, String.format("call with %d args to a function taking %d", nArgs, g.nArgs));
+			if (report)
+				return g;
+
+			if (!g.callers.contains(f))
+				g.callers.add(f);
+			for (int i = 0; i < nArgs; i++) {
+				int t = join(g.params[i], s.type(s.d - nArgs + 1 + i));
+				if (t != g.params[i]) {
+					g.params[i] = t;
+					queue(g);
+				}
+			}
+			return g;
+		}
+
+		private void ret(Func f, int type) {
+			int t = join(f.ret, type);
+			if (!report && t != f.ret) {
+				f.ret = t;
+				for (Func c : f.callers)
+					queue(c);
+			}
+		}
+
+		private void queue(Func f) {
+			if (!f.stale) {
+				f.stale = true;
+				stale.add(f);
+			}
+		}
+
+		private void escape(Func f, int r) {
+			if (report || f.escapes(r))
+				return;
+			if (r == Func.ALL)
+				f.escapeAll = true;
+			else
+				f.escaped.add(r);
+			queue(f);
+		}
+
+		// Forgets the types of all slots that may have been written through a pointer.
+		private void clobber(Func f, State s) {
+			for (int r = s.lo; r <= s.d; r++) {
+				if (f.escapes(r))
+					s.set(r, TOP, NONE);
+			}
+		}
+
+		private void need(int pc, State s, int n) {
+			if (s.d - n < s.floor)
+				throw fail(pc, "stack underflow");
+		}
+
+		// Checks that r is a param, or a local/stack slot at most at depth top.
+		private int slot(int pc, State s, int r, int top) {
+			if (r < s.lo || r > top)
+				throw fail(pc, String.format("slot %d is outside of the frame", r));
+			return r;
+		}
+
+		// Marks the op at pc as unchecked if proven, rejects it if the types
+		// are known and wrong, and leaves the runtime check in place otherwise.
+		private void typed(int pc, boolean proven, boolean wrong, int a) {
+			if (report && proven)
+				out[pc] = in[pc] | UNCHECKED;
+			else if (report && wrong)
+				throw fail(pc, String.format("%s:: want [INT], have [%s]", opName(in[pc]), universe.lookup(a)));
+		}
+
+		private void typed(int pc, boolean proven, boolean wrong, int a, int b) {
+			if (report && proven)
+				out[pc] = in[pc] | UNCHECKED;
+			else if (report && wrong)
+				throw fail(pc, String.format("%s:: want [INT,INT], have [%s,%s]", opName(in[pc]), universe.lookup(a), universe.lookup(b)));
+		}
+
+		private BPLVMVerifyError fail(int pc, String reason) {
+			return new BPLVMVerifyError(dec.addr[pc], reason);
+		}
+
+		private static int join(int a, int b) {
+			if (a == b || b == BOT)
+				return a;
+			if (a == BOT)
+				return b;
+			return TOP;
+		}
+
+		private static String opName(int op) {
+			//fmt:off
+			switch (op) {
+			case Decoded.IADD : return "IADD";
+			case Decoded.ISUB : return "ISUB";
+			case Decoded.IMUL : return "IMUL";
+			case Decoded.IDIV : return "IDIV";
+			case Decoded.ILT  : return "ILT";
+			case Decoded.IGT  : return "IGT";
+			case Decoded.ILTE : return "ILTE";
+			case Decoded.IGTE : return "IGTE";
+			case Decoded.IEQ  : return "IEQ";
+			case Decoded.INEQ : return "INEQ";
+			case Decoded.BREQ : return "BREQ";
+			case Decoded.BRNE : return "BRNE";
+			case Decoded.BRLT : return "BRLT";
+			case Decoded.BRGT : return "BRGT";
+			case Decoded.BRLTE: return "BRLTE";
+			case Decoded.BRGTE: return "BRGTE";
+			case Decoded.BRIEQ: return "BRIEQ";
+			case Decoded.BRINE: return "BRINE";
+			case Decoded.IADDI: return "IADDI";
+			default           : return "IINC";
+			}
+			//fmt:on
+		}
+
+		//endregion
+
+	}
+
+	//endregion
+
+	//region Func, State
+
+	private static final class Func {
+
+		static final int ALL = Integer.MIN_VALUE;
+
+		final int          entry;
+		final int          nArgs;
+		final int[]        params;
+		final Set<Integer> escaped;
+		final List<Func>   callers;
+
+		int[]   pcs; // reached ops
+		int     nPcs;
+		int     ret;
+		int     frame;
+		boolean escapeAll;
+		boolean stale;
+
+		Func(int entry, int nArgs) {
+			this.entry = entry;
+			this.nArgs = nArgs;
+			this.params = new int[nArgs];
+			this.escaped = new HashSet<>();
+			this.callers = new ArrayList<>();
+			this.pcs = new int[16];
+			this.ret = Analysis.BOT;
+			Arrays.fill(params, Analysis.BOT);
+		}
+
+		void add(int pc) {
+			if (nPcs == pcs.length)
+				pcs = Arrays.copyOf(pcs, nPcs*2);
+			pcs[nPcs++] = pc;
+		}
+
+		boolean escapes(int r) {
+			return escapeAll || escaped.contains(r);
+		}
+
+	}
+
+	// Abstract frame: type and known constant value of every slot from the
+	// first param up to the stack top d.
+	private static final class State {
+
+		final int lo; // first param, or the first stack slot of the preamble
+		final int floor;
+		int       d;
+		int[]     t;
+		long[]    k;
+
+		State(int nArgs, int d) {
+			this.lo = Math.min(1 - nArgs, d + 1);
+			this.floor = d;
+			this.d = d;
+			this.t = new int[8 - lo];
+			this.k = new long[8 - lo];
+			Arrays.fill(t, Analysis.BOT);
+			Arrays.fill(k, Analysis.NONE);
+		}
+
+		private State(State o) {
+			this.lo = o.lo;
+			this.floor = o.floor;
+			this.d = o.d;
+			this.t = o.t.clone();
+			this.k = o.k.clone();
+		}
+
+		State copy() {
+			return new State(this);
+		}
+
+		int type(int r) {
+			return t[r - lo];
+		}
+
+		long konst(int r) {
+			return k[r - lo];
+		}
+
+		void set(int r, int type, long konst) {
+			if (r - lo >= t.length) {
+				int n = Math.max(t.length*2, r - lo + 1);
+				int old = t.length;
+				t = Arrays.copyOf(t, n);
+				k = Arrays.copyOf(k, n);
+				Arrays.fill(t, old, n, Analysis.BOT);
+				Arrays.fill(k, old, n, Analysis.NONE);
+			}
+			t[r - lo] = type;
+			k[r - lo] = konst;
+		}
+
+		void push(int type, long konst) {
+			d++;
+			set(d, type, konst);
+		}
+
+		// Joins o into this state, both at the same depth. Returns whether this changed.
+		boolean join(State o) {
+			boolean changed = false;
+			for (int r = lo; r <= d; r++) {
+				int jt = Analysis.join(type(r), o.type(r));
+				long jk = konst(r) == o.konst(r) ? konst(r) : Analysis.NONE;
+				if (jt != type(r) || jk != konst(r)) {
+					set(r, jt, jk);
+					changed = true;
+				}
+			}
+			return changed;
+		}
+
+	}
+
+	//endregion
+
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm.err;
+
+import static java.lang.String.*;
+
+public class BPLVMBudgetExceededError extends Error {
+
+	private static final long serialVersionUID = -2218404170983453526L;
+
+	private final String budget;
+	private final long   used;
+	private final long   max;
+
+	public BPLVMBudgetExceededError(String budget, long used, long max) {
+		this.budget = budget;
+		this.used = used;
+		this.max = max;
+	}
+
+	public String budget() {
+		return budget;
+	}
+
+	public long used() {
+		return used;
+	}
+
+	@Override
+	public String getMessage() {
+		return format("%s budget exceeded: used %d of %d", budget, used, max);
+	}
+
+	@Override
+	public String getLocalizedMessage() {
+		return getMessage();
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm.sink;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+import static java.nio.file.StandardOpenOption.*;
+
+// Writes straight to a channel, typically a FileChannel, without going
+// through a stream. The channel is closed with the sink only if the sink
+// opened it.
+public class ChannelSink extends Sink {
+
+	private final WritableByteChannel ch;
+	private final boolean             owned;
+
+	public ChannelSink(Path file, FlushPolicy policy, int size) throws IOException {
+		this(FileChannel.open(file, CREATE, WRITE, TRUNCATE_EXISTING), true, policy, size);
+	}
+
+	public ChannelSink(WritableByteChannel ch, FlushPolicy policy, int size) {
+		this(ch, false, policy, size);
+	}
+
+	private ChannelSink(WritableByteChannel ch, boolean owned, FlushPolicy policy, int size) {
+		super(policy, size);
+		this.ch = ch;
+		this.owned = owned;
+	}
+
+	@Override
+	protected void drain(byte[] b, int off, int n) {
+		ByteBuffer bb = ByteBuffer.wrap(b, off, n);
+		try {
+			while (bb.hasRemaining())
+				ch.write(bb);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			if (owned)
+				ch.close();
+		}
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm.sink;
+
+import dk.skrypalle.bpl.util.*;
+
+import java.io.*;
+
+// Collects all output in memory
+public class MemorySink extends Sink {
+
+	private final ByteArrayOutputStream out;
+
+	public MemorySink() {
+		this(FlushPolicy.SIZE, DEFAULT_SIZE);
+	}
+
+	public MemorySink(FlushPolicy policy, int size) {
+		super(policy, size);
+		this.out = new ByteArrayOutputStream();
+	}
+
+	@Override
+	protected void drain(byte[] b, int off, int n) {
+		out.write(b, off, n);
+	}
+
+	// Everything flushed so far
+	public byte[] toByteArray() {
+		return out.toByteArray();
+	}
+
+	@Override
+	public String toString() {
+		return new String(out.toByteArray(), IO.UTF8);
+	}
+
+}
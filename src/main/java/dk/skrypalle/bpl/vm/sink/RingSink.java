@@ -0,0 +1,176 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm.sink;
+
+import java.io.*;
+
+// Hands output to a background thread through a ring buffer, so the VM does
+// not wait for slow writes unless the ring runs full. Flushing only wakes the
+// writer; await blocks until everything written so far reached the stream.
+// The stream is flushed whenever the writer catches up, but never closed.
+public class RingSink extends Sink {
+
+	public static final int DEFAULT_RING_SIZE = 0x100000;
+
+	private static int threadCnt = 0;
+
+	private final OutputStream out;
+	private final byte[]       ring;
+	private final Object       lock;
+	private final Thread       writer;
+
+	// guarded by lock
+	private long        head;    // bytes put into the ring
+	private long        tail;    // bytes written to out
+	private long        flushed; // bytes written to out and flushed
+	private boolean     closed;
+	private IOException failure;
+
+	public RingSink(OutputStream out) {
+		this(out, FlushPolicy.SIZE, DEFAULT_SIZE, DEFAULT_RING_SIZE);
+	}
+
+	public RingSink(OutputStream out, FlushPolicy policy, int size, int ringSize) {
+		super(policy, size);
+		if (ringSize < 1)
+			throw new IllegalArgumentException("ring size must be positive, is " + ringSize);
+		this.out = out;
+		this.ring = new byte[ringSize];
+		this.lock = new Object();
+		this.writer = new Thread(this::writeLoop, "bpl-sink-writer-" + nextThreadId());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private static synchronized int nextThreadId() {
+		return threadCnt++;
+	}
+
+	@Override
+	protected void drain(byte[] b, int off, int n) {
+		synchronized (lock) {
+			while (n > 0) {
+				while (head - tail == ring.length && failure == null && !closed)
+					waitLock();
+				check();
+				int at = (int) (head%ring.length);
+				int c = Math.min(n, Math.min(ring.length - (int) (head - tail), ring.length - at));
+				System.arraycopy(b, off, ring, at, c);
+				head += c;
+				off += c;
+				n -= c;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	// Blocks until all output flushed so far has been written and flushed
+	public void await() {
+		flush();
+		synchronized (lock) {
+			while (flushed < head && failure == null)
+				waitLock();
+			check();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		await();
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while closing sink");
+		}
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				long from, to;
+				synchronized (lock) {
+					while (head == tail && !closed)
+						lock.wait();
+					if (head == tail)
+						return;
+					from = tail;
+					to = head;
+				}
+
+				int at = (int) (from%ring.length);
+				int c = (int) Math.min(to - from, ring.length - at);
+				out.write(ring, at, c);
+
+				boolean idle;
+				synchronized (lock) {
+					tail += c;
+					idle = head == tail;
+					lock.notifyAll();
+				}
+				if (idle) {
+					out.flush();
+					synchronized (lock) {
+						flushed = from + c;
+						lock.notifyAll();
+					}
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (InterruptedException e) {
+			fail(new InterruptedIOException("sink writer interrupted"));
+		}
+	}
+
+	private void fail(IOException e) {
+		synchronized (lock) {
+			failure = e;
+			lock.notifyAll();
+		}
+	}
+
+	private void check() {
+		if (failure != null)
+			throw new UncheckedIOException(failure);
+		if (closed)
+			throw new IllegalStateException("sink closed");
+	}
+
+	private void waitLock() {
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new InterruptedIOException("interrupted while waiting for sink writer"));
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm.sink;
+
+import dk.skrypalle.bpl.util.*;
+
+import java.io.*;
+
+// Destination of a VM's program output. Output is collected in a buffer of
+// raw bytes and handed on in chunks by drain; the flush policy decides when
+// that happens besides the buffer running full.
+//
+// The VM flushes its sink when the program halts or fails, and pauses it
+// when a budgeted run stops early. A sink is used by one VM at a time.
+public abstract class Sink implements Closeable {
+
+	public static final int DEFAULT_SIZE = 0x2000;
+
+	private final FlushPolicy policy;
+	private final byte[]      buf;
+
+	private int len;
+
+	protected Sink(FlushPolicy policy, int size) {
+		if (size < Hex.MAX_LEN)
+			throw new IllegalArgumentException("sink buffer must hold at least " + Hex.MAX_LEN + " bytes, is " + size);
+		this.policy = policy;
+		this.buf = new byte[size];
+	}
+
+	public FlushPolicy policy() {
+		return policy;
+	}
+
+	// Appends b[off:off+n]. Chunks larger than the buffer bypass it.
+	public final void write(byte[] b, int off, int n) {
+		if (len + n > buf.length)
+			drainBuf();
+		if (n > buf.length) {
+			drain(b, off, n);
+		} else {
+			System.arraycopy(b, off, buf, len, n);
+			len += n;
+		}
+		if (policy == FlushPolicy.NEWLINE && contains(b, off, n, (byte) '\n'))
+			flush();
+	}
+
+	// Appends val formatted like "%x"
+	public final void writeHex(long val) {
+		if (len + Hex.MAX_LEN > buf.length)
+			drainBuf();
+		len = Hex.put(buf, len, val);
+	}
+
+	// Hands on everything buffered and pushes it towards its destination
+	public void flush() {
+		drainBuf();
+		sync();
+	}
+
+	// Called when a budgeted run stops before the program halted
+	public void pause() {
+		if (policy != FlushPolicy.HALT)
+			flush();
+	}
+
+	// Drops everything buffered but not yet handed on
+	public void discard() {
+		len = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	private void drainBuf() {
+		if (len > 0)
+			drain(buf, 0, len);
+		len = 0;
+	}
+
+	// Writes b[off:off+n] on. b may be reused once this returns.
+	protected abstract void drain(byte[] b, int off, int n);
+
+	// Makes drained output visible, if the destination buffers on its own
+	protected void sync() { /**/ }
+
+	private static boolean contains(byte[] b, int off, int n, byte v) {
+		for (int i = off; i < off + n; i++) {
+			if (b[i] == v)
+				return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl;
+
+import dk.skrypalle.bpl.Batch.*;
+import dk.skrypalle.bpl.util.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class BatchTest {
+
+	private Path tmpDir;
+	private Path srcDir;
+
+	@BeforeClass
+	public void setUp() throws IOException, URISyntaxException {
+		tmpDir = IO.makeTmpDir("_bplc_batch_");
+		srcDir = tmpDir.resolve("src");
+
+		// the compiler test corpus as plain .bpl sources, plus a broken unit
+		Path corpus = Paths.get(BatchTest.class.getResource("/compiler").toURI());
+		try (Stream<Path> files = Files.walk(corpus)) {
+			for (Path p : files.filter(p -> p.toString().endsWith(".test")).collect(Collectors.toList())) {
+				String rel = corpus.relativize(p).toString().replaceAll("\\.test$", ".bpl");
+				Path dst = srcDir.resolve(rel);
+				Files.createDirectories(dst.getParent());
+				IO.writeAll(dst, IO.readAll(p).split("::exp")[0]);
+			}
+		}
+		IO.writeAll(srcDir.resolve("broken.bpl"), "func main() int { return x; }");
+	}
+
+	@AfterClass
+	public void tearDown() throws IOException {
+		IO.delRec(tmpDir);
+	}
+
+	@DataProvider
+	public Object[][] provideTargets() {
+		return new Object[][]{
+			{Target.BC},
+			{Target.C99},
+		};
+	}
+
+	@Test(dataProvider = "provideTargets")
+	public void testDeterministic(Target target) throws Exception {
+		Path out1 = tmpDir.resolve("out1_" + target);
+		Path out4 = tmpDir.resolve("out4_" + target);
+		Report r1 = Batch.compile(Collections.singletonList(srcDir), out1, target, 1);
+		Report r4 = Batch.compile(Collections.singletonList(srcDir), out4, target, 4);
+
+		Assert.assertEquals(r1.units.size(), 46);
+		Assert.assertEquals(r1.nFailed(), 1);
+		Assert.assertEquals(r4.nFailed(), 1);
+		Assert.assertTrue(r4.toString().contains("broken.bpl: BPLCErrSymUndeclared"), r4.toString());
+
+		for (int i = 0; i < r1.units.size(); i++) {
+			Unit u1 = r1.units.get(i);
+			Unit u4 = r4.units.get(i);
+			Assert.assertEquals(u1.src, u4.src);
+			if (!u1.ok())
+				continue;
+			Assert.assertTrue(u1.out.toString().endsWith(target.ext));
+			Assert.assertEquals(Files.readAllBytes(u4.out), Files.readAllBytes(u1.out), u1.src.toString());
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class,
+		expectedExceptionsMessageRegExp = ".* and .* both compile to .*simple\\.bplbc")
+	public void testErrOutputCollision() throws Exception {
+		List<Path> roots = Arrays.asList(srcDir.resolve("var/simple.bpl"), srcDir.resolve("ptr/simple.bpl"));
+		Batch.compile(roots, tmpDir.resolve("out_collision"), Target.BC, 1);
+	}
+
+	@DataProvider
+	public Object[][] provideBadArgs() {
+		return new Object[][]{
+			{new String[]{"-j"}},
+			{new String[]{"-j", "x", "src"}},
+			{new String[]{"-j", "0", "src"}},
+			{new String[]{"src", "-o"}},
+			{new String[]{}},
+		};
+	}
+
+	@Test(dataProvider = "provideBadArgs")
+	public void testUsage(String[] args) throws Exception {
+		PrintStream err = System.err;
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(buf));
+		try {
+			Assert.assertEquals(Batch.run(args), 2);
+		} finally {
+			System.setErr(err);
+		}
+		Assert.assertTrue(buf.toString().contains("usage: --batch"), buf.toString());
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl;
+
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+
+public class MainTest {
+
+	@DataProvider
+	public Object[][] provideBadArgs() {
+		return new Object[][]{
+			{"--emit-bc", new String[]{}},
+			{"--emit-bc", new String[]{"a.bpl", "a.bplbc", "b.bplbc"}},
+			{"--run-bc", new String[]{}},
+			{"--run-bc", new String[]{"a.bplbc", "b.bplbc"}},
+		};
+	}
+
+	@Test(dataProvider = "provideBadArgs")
+	public void testUsage(String mode, String[] args) throws Exception {
+		PrintStream err = System.err;
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(buf));
+		try {
+			Assert.assertEquals("--emit-bc".equals(mode) ? Main.emitBC(args) : Main.runBC(args), 2);
+		} finally {
+			System.setErr(err);
+		}
+		Assert.assertTrue(buf.toString().contains("usage: " + mode), buf.toString());
+	}
+
+}
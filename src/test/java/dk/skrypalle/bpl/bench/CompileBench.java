@@ -0,0 +1,78 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.bench;
+
+import dk.skrypalle.bpl.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+// Compiles the whole compiler test corpus once per invocation.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompileBench {
+
+	private List<String> corpus;
+
+	@Setup
+	public void setup() throws IOException, URISyntaxException {
+		Path root = Paths.get(CompileBench.class.getResource("/compiler").toURI());
+		try (Stream<Path> files = Files.walk(root)) {
+			List<Path> tests = files
+				.filter(p -> p.toString().endsWith(".test"))
+				.sorted()
+				.collect(Collectors.toList());
+			corpus = new ArrayList<>();
+			for (Path p : tests) {
+				String name = root.relativize(p).toString().replace(File.separatorChar, '/');
+				corpus.add(VMBench.loadTestFile(name.substring(0, name.length() - ".test".length())));
+			}
+		}
+	}
+
+	@Benchmark
+	public void compileBC(Blackhole bh) {
+		for (String bpl : corpus)
+			bh.consume(Main.compileBC(bpl));
+	}
+
+	@Benchmark
+	public void compileC99(Blackhole bh) {
+		for (String bpl : corpus)
+			bh.consume(Main.compileC99(bpl));
+	}
+
+}
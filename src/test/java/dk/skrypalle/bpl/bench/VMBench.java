@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.bench;
+
+import dk.skrypalle.bpl.*;
+import dk.skrypalle.bpl.util.*;
+import dk.skrypalle.bpl.vm.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VMBench {
+
+	@Param({"loop/fibonacci", "recursion/fibonacci"})
+	public String test;
+
+	@Param({"STACK", "DECODED", "REGISTER", "VERIFIED", "TREE"})
+	public Engine engine;
+
+	private static final long QUANTUM = 0x400;
+
+	private byte[]      bc;
+	private PrintStream sink;
+	private VM          loaded;
+
+	@Setup
+	public void setup() throws IOException {
+		bc = Main.compileBC(loadTestFile(test));
+		sink = new PrintStream(new ByteArrayOutputStream());
+		loaded = new VM(Program.load(bc), false, sink, sink, sink, engine, VM.DEFAULT_STACK_LIMIT);
+	}
+
+	@Benchmark
+	public int run() {
+		return new VM(bc, false, sink, sink, sink, engine).run();
+	}
+
+	@Benchmark
+	public int runLoaded() {
+		return loaded.reset().run();
+	}
+
+	// Cost of preempting and resuming every QUANTUM instructions
+	@Benchmark
+	public int runSliced() {
+		loaded.reset();
+		while (!loaded.runFor(QUANTUM))
+			;
+		return loaded.exitCode();
+	}
+
+	static String loadTestFile(String name) throws IOException {
+		try (InputStream in = VMBench.class.getResourceAsStream("/compiler/" + name + ".test")) {
+			if (in == null)
+				throw new IllegalArgumentException(String.format("test /compiler/%s.test not found", name));
+			return IO.readAll(in).split("::exp")[0];
+		}
+	}
+
+}
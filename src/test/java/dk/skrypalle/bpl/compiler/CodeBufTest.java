@@ -0,0 +1,109 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.compiler;
+
+import dk.skrypalle.bpl.compiler.CodeBuf.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import static dk.skrypalle.bpl.vm.Bytecode.*;
+
+public class CodeBufTest {
+
+	@Test
+	public void testDepthComposesOnAppend() {
+		CodeBuf lhs = new CodeBuf().ipush(1).ipush(2).op(IADD);
+		CodeBuf rhs = new CodeBuf().ipush(3).ipush(4).ipush(5).op(IMUL).op(IADD);
+		CodeBuf res = new CodeBuf().locals(2).append(lhs).append(rhs).op(IADD);
+
+		Assert.assertEquals(res.depth(), 3);
+		Assert.assertEquals(res.maxDepth(), 6);
+	}
+
+	@Test
+	public void testDepthAtLabels() {
+		// 'a && b' leaves exactly one value, whichever path is taken
+		Label l1 = new Label();
+		Label lEnd = new Label();
+		CodeBuf res = new CodeBuf()
+			.ipush(1).jump(BREQ, l1)
+			.ipush(1).jump(BREQ, l1)
+			.ipush(1).jump(JMP, lEnd)
+			.bind(l1)
+			.ipush(0)
+			.bind(lEnd);
+
+		Assert.assertEquals(res.depth(), 1);
+		Assert.assertEquals(res.maxDepth(), 1);
+	}
+
+	@Test
+	public void testTruncateRestoresDepth() {
+		CodeBuf res = new CodeBuf().ipush(1).ipush(2).op(ILT);
+		res.truncate(res.length() - 1);
+
+		Assert.assertEquals(res.depth(), 2);
+		Assert.assertEquals(res.jump(BRLT, new Label()).depth(), 0);
+	}
+
+	@DataProvider
+	public Object[][] providePushes() {
+		return new Object[][]{
+			//fmt:off
+			{0L,                        IPUSH_0, 1},
+			{3L,                        IPUSH_3, 1},
+			{4L,                        IPUSH8,  2},
+			{-1L,                       IPUSH8,  2},
+			{-128L,                     IPUSH8,  2},
+			{128L,                      IPUSH16, 3},
+			{-129L,                     IPUSH16, 3},
+			{-32768L,                   IPUSH16, 3},
+			{32768L,                    IPUSH32, 5},
+			{-32769L,                   IPUSH32, 5},
+			{(long) Integer.MIN_VALUE,  IPUSH32, 5},
+			{1L << 31,                  IPUSH,   9},
+			{Integer.MIN_VALUE - 1L,    IPUSH,   9},
+			{Long.MIN_VALUE,            IPUSH,   9},
+			//fmt:on
+		};
+	}
+
+	@Test(dataProvider = "providePushes")
+	public void testShortestPush(long v, byte op, int len) {
+		CodeBuf res = new CodeBuf().ipush(v);
+
+		Assert.assertEquals(res.toArray()[0], op);
+		Assert.assertEquals(res.length(), len);
+		Assert.assertEquals(res.depth(), 1);
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void testInconsistentDepthAtLabel() {
+		Label l = new Label();
+		new CodeBuf().ipush(0).jump(BREQ, l).ipush(1).bind(l);
+	}
+
+}
@@ -26,6 +26,7 @@
 package dk.skrypalle.bpl.compiler;
 
 import dk.skrypalle.bpl.util.*;
+import dk.skrypalle.bpl.vm.*;
 import org.apache.commons.lang3.*;
 import org.testng.*;
 import org.testng.annotations.*;
@@ -47,6 +48,21 @@ public class CompilerTest extends CompilerTestBase {
 			{"print int16",       wrapMain("print(256);"),                              "100"},
 			{"print int32",       wrapMain("print(1234567890);"),                  "499602d2"},
 			{"print int64",       wrapMain("print(9223372036854775807);"), "7fffffffffffffff"},
+			{"ipush_3",           wrapMain("print(3);"),                                  "3"},
+			{"ipush8 4",          wrapMain("print(4);"),                                  "4"},
+			{"ipush8 max",        wrapMain("print(127);"),                               "7f"},
+			{"ipush8 -1",         wrapMain("print(18446744073709551615);"), "ffffffffffffffff"},
+			{"ipush8 min",        wrapMain("print(18446744073709551488);"), "ffffffffffffff80"},
+			{"ipush16 128",       wrapMain("print(128);"),                               "80"},
+			{"ipush16 max",       wrapMain("print(32767);"),                           "7fff"},
+			{"ipush16 -129",      wrapMain("print(18446744073709551487);"), "ffffffffffffff7f"},
+			{"ipush16 min",       wrapMain("print(18446744073709518848);"), "ffffffffffff8000"},
+			{"ipush32 32768",     wrapMain("print(32768);"),                           "8000"},
+			{"ipush32 max",       wrapMain("print(2147483647);"),                  "7fffffff"},
+			{"ipush32 -32769",    wrapMain("print(18446744073709518847);"), "ffffffffffff7fff"},
+			{"ipush32 min",       wrapMain("print(18446744071562067968);"), "ffffffff80000000"},
+			{"ipush 2^31",        wrapMain("print(2147483648);"),                  "80000000"},
+			{"ipush min-1",       wrapMain("print(18446744071562067967);"), "ffffffff7fffffff"},
 			{"int add",           wrapMain("print(1+42+5+6);"),                          "36"},
 			{"int sub",           wrapMain("print(3-2);"),                                "1"},
 			{"int mul",           wrapMain("print(2*3);"),                                "6"},
@@ -115,6 +131,8 @@ public class CompilerTest extends CompilerTestBase {
 			loadTestFile("recursion/factorial_v2"),
 			loadTestFile("recursion/factorial_v3"),
 			loadTestFile("recursion/fibonacci"),
+			loadTestFile("recursion/tail_self"),
+			loadTestFile("recursion/tail_mutual"),
 
 			loadTestFile("operators/and_skip_right"),
 			loadTestFile("operators/or_skip_right"),
@@ -136,6 +154,23 @@ public class CompilerTest extends CompilerTestBase {
 		};
 	}
 
+	// Every case on every engine
+	@DataProvider(parallel = true)
+	public Object[][] provideEngineData() throws IOException {
+		Object[][] data = provideData();
+		Engine[] engines = Engine.values();
+		Object[][] res = new Object[data.length*engines.length][];
+		for (int i = 0; i < engines.length; i++) {
+			for (int j = 0; j < data.length; j++) {
+				Object[] row = new Object[1 + data[j].length];
+				row[0] = engines[i];
+				System.arraycopy(data[j], 0, row, 1, data[j].length);
+				res[i*data.length + j] = row;
+			}
+		}
+		return res;
+	}
+
 	//endregion
 
 	private String[] loadTestFile(String name) throws IOException {
@@ -155,10 +190,11 @@ public class CompilerTest extends CompilerTestBase {
 
 	//region targets
 
-	@Test(dataProvider = "provideData")
-	public void testTargetBC(String desc, String bpl, String exp) {
+	@Test(dataProvider = "provideEngineData")
+	public void testTargetBC(Engine engine, String desc, String bpl, String exp) {
 		byte[] bc = compileBC(bpl, null);
-		VMExecRes res = runBC(bc);
+		VMExecRes res = runBC(bc, engine);
+		desc = desc + ", " + engine;
 
 		Assert.assertEquals(res.exit, 0, "BPLVM exit status (" + desc + ")");
 		Assert.assertEquals(res.out, exp, "BPLVM out stream (" + desc + ")");
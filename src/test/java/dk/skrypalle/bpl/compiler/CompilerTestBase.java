@@ -48,11 +48,15 @@ public class CompilerTestBase {
 	}
 
 	protected VMExecRes runBC(byte[] bc) {
+		return runBC(bc, Engine.STACK);
+	}
+
+	protected VMExecRes runBC(byte[] bc, Engine engine) {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		ByteArrayOutputStream err = new ByteArrayOutputStream();
 		ByteArrayOutputStream dbg = new ByteArrayOutputStream();
 		VM vm = new VM(bc, false,
-			new PrintStream(out), new PrintStream(err), new PrintStream(dbg));
+			new PrintStream(out), new PrintStream(err), new PrintStream(dbg), engine);
 		int exit = vm.run();
 
 		return new VMExecRes(exit, out.toString(), err.toString(), dbg.toString());
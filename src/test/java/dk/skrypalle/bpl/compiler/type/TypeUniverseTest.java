@@ -0,0 +1,94 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.compiler.type;
+
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class TypeUniverseTest {
+
+	@DataProvider
+	public Object[][] provideNames() {
+		return new Object[][]{
+			{"int", 0x00000},
+			{"string", 0x00001},
+			{"^int", 0x10000},
+			{"^^int", 0x20000},
+			{"^string", 0x10001},
+			{"^^^string", 0x30001},
+		};
+	}
+
+	@Test(dataProvider = "provideNames")
+	public void testStableVMType(String name, int exp) {
+		TypeUniverse a = new TypeUniverse();
+		TypeUniverse b = new TypeUniverse();
+		b.lookup("^^^^string"); // creation order must not matter
+
+		Assert.assertEquals(a.lookup(name).vm_type, exp);
+		Assert.assertEquals(b.lookup(name).vm_type, exp);
+		Assert.assertEquals(a.lookup(exp).name, name);
+	}
+
+	@Test
+	public void testInterned() {
+		TypeUniverse u = new TypeUniverse();
+		Type p = u.ref(u.ref(Types.INT));
+		Assert.assertSame(u.lookup("^^int"), p);
+		Assert.assertSame(u.lookup(p.vm_type), p);
+		Assert.assertSame(u.deref((PtrType) p), u.lookup("^int"));
+		Assert.assertEquals(Types.ptr(Types.INT.vm_type), u.lookup("^int").vm_type);
+	}
+
+	@Test
+	public void testUnknown() {
+		TypeUniverse u = new TypeUniverse();
+		Assert.assertNull(u.lookup("float"));
+		Assert.assertNull(u.lookup("^float"));
+		Assert.assertNull(u.lookup(0x7fff));
+		Assert.assertNull(u.lookup(-1));
+	}
+
+	@Test
+	public void testConcurrentRef() throws Exception {
+		TypeUniverse u = new TypeUniverse();
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Type>> res = new ArrayList<>();
+			for (int i = 0; i < 64; i++)
+				res.add(pool.submit(() -> u.lookup("^^^int")));
+			Type exp = u.lookup("^^^int");
+			for (Future<Type> f : res)
+				Assert.assertSame(f.get(), exp);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+}
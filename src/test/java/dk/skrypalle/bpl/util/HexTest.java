@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.util;
+
+import org.testng.*;
+import org.testng.annotations.*;
+
+public class HexTest {
+
+	@DataProvider
+	public Object[][] providePut() {
+		return new Object[][]{
+			{0x0L},
+			{0x1L},
+			{0xfL},
+			{0x10L},
+			{0xffL},
+			{0x100L},
+			{0x499602d2L},
+			{0x7fffffffffffffffL},
+			{0x8000000000000000L},
+			{-1L},
+		};
+	}
+
+	@Test(dataProvider = "providePut")
+	public void testPut(long val) {
+		byte[] b = new byte[2 + Hex.MAX_LEN];
+		int end = Hex.put(b, 2, val);
+		String exp = String.format("%x", val);
+		Assert.assertEquals(end, 2 + exp.length());
+		Assert.assertEquals(new String(b, 2, end - 2, IO.UTF8), exp);
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.*;
+import dk.skrypalle.bpl.util.*;
+import dk.skrypalle.bpl.vm.err.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+import static dk.skrypalle.bpl.vm.BcFile.*;
+
+public class BcFileTest {
+
+	private static final String PROG = String.join("\n",
+		"func main() int {",
+		"	print(1);",
+		"	print(\"two\");",
+		"	return 0;",
+		"}"
+	);
+
+	private static String run(Program p) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+		int exit = new VM(p, false, new PrintStream(out), sink, sink, Engine.STACK, VM.DEFAULT_STACK_LIMIT).run();
+		return out.toString() + " -> " + exit;
+	}
+
+	private static void patch(byte[] file, int at, int v) {
+		System.arraycopy(Marshal.bytesS32BE(v), 0, file, at, 4);
+	}
+
+	private static List<Path> corpus() throws IOException, URISyntaxException {
+		Path root = Paths.get(BcFileTest.class.getResource("/compiler").toURI());
+		List<Path> tests;
+		try (Stream<Path> files = Files.walk(root)) {
+			tests = files.filter(p -> p.toString().endsWith(".test")).sorted().collect(Collectors.toList());
+		}
+		Assert.assertFalse(tests.isEmpty());
+		return tests;
+	}
+
+	@Test
+	public void testRoundTripCorpus() throws IOException, URISyntaxException {
+		for (Path t : corpus()) {
+			String bpl = IO.readAll(t).split("::exp")[0];
+			Program image = Program.load(Main.compileBC(bpl));
+			Program file = BcFile.load(Main.compileBCFile(bpl));
+			Assert.assertEquals(file.code, image.code, t.toString());
+			Assert.assertEquals(run(file), run(image), t.toString());
+		}
+	}
+
+	@Test
+	public void testHeader() {
+		byte[] file = Main.compileBCFile(PROG);
+		Assert.assertEquals(Marshal.s32BE(file, 0), MAGIC);
+		Assert.assertEquals(Marshal.s32BE(file, 4), VERSION);
+		int end = HEADER_LEN;
+		for (int i = 0; i < N_SECTIONS; i++) {
+			Assert.assertEquals(Marshal.s32BE(file, 8 + i*8), end, "section " + i);
+			end += Marshal.s32BE(file, 12 + i*8);
+		}
+		Assert.assertEquals(end, file.length);
+		Assert.assertEquals(Marshal.s32BE(file, 12 + DATA*8), 4 + "two".length()); // length prefixed
+		Assert.assertEquals(Marshal.s32BE(file, 12 + FUNC*8), Bytecode.FUNC_ENTRY_LEN);
+	}
+
+	@Test
+	public void testLines() {
+		Program p = BcFile.load(Main.compileBCFile(PROG));
+		Assert.assertEquals(p.line(p.codeStart), -1, "preamble");
+		Set<Integer> lines = new TreeSet<>();
+		for (int ip = p.codeStart; ip < p.code.length; ip += 1 + Bytecode.opCodes.get(p.code[ip]).nArgs)
+			lines.add(p.line(ip));
+		// main has no LOCALS, so its first statement starts at its entry and wins over line 1
+		Assert.assertEquals(lines, new TreeSet<>(Arrays.asList(-1, 2, 3, 4)));
+		Assert.assertEquals(Program.load(Main.compileBC(PROG)).line(p.codeStart + 10), -1, "image without lines");
+	}
+
+	@Test
+	public void testDenseOpCodes() {
+		for (int op = 0; op < Bytecode.opCodes.size(); op++)
+			Assert.assertNotNull(Bytecode.opCodes.get((byte) op), String.format("op 0x%02x", op));
+	}
+
+	@Test
+	public void testShortPushesCorpus() throws IOException, URISyntaxException {
+		int size = 0;
+		int saved = 0;
+		for (Path t : corpus()) {
+			Program p = Program.load(Main.compileBC(IO.readAll(t).split("::exp")[0]));
+			size += p.code.length - p.codeStart;
+			for (int ip = p.codeStart; ip < p.code.length; ip += 1 + Bytecode.opCodes.get(p.code[ip]).nArgs) {
+				byte op = p.code[ip];
+				if (op >= Bytecode.IPUSH_0 && op <= Bytecode.IPUSH32)
+					saved += 8 - Bytecode.opCodes.get(op).nArgs; // vs. IPUSH with its 8 byte operand
+			}
+		}
+		// the corpus shrinks by about 28%, from 5233 to 3771 bytes
+		Assert.assertTrue(saved*4 > size + saved, String.format("%d of %d bytes saved", saved, size + saved));
+	}
+
+	@Test(expectedExceptions = BPLVMFormatError.class,
+		expectedExceptionsMessageRegExp = "Invalid bytecode file: bad magic 0x00000000")
+	public void testErrBadMagic() {
+		byte[] file = Main.compileBCFile(PROG);
+		file[0] = file[1] = file[2] = file[3] = 0;
+		BcFile.load(file);
+	}
+
+	@Test(expectedExceptions = BPLVMFormatError.class,
+		expectedExceptionsMessageRegExp = "Invalid bytecode file: version 1 is not supported, want 2")
+	public void testErrVersion() {
+		byte[] file = Main.compileBCFile(PROG);
+		file[7] = 1;
+		BcFile.load(file);
+	}
+
+	@Test(expectedExceptions = BPLVMFormatError.class,
+		expectedExceptionsMessageRegExp = "Invalid bytecode file: func 0 enters at 0x7fffff00, outside of the code section")
+	public void testErrFuncEntry() {
+		byte[] file = Main.compileBCFile(PROG);
+		patch(file, Marshal.s32BE(file, 8 + FUNC*8), 0x7fffff00);
+		BcFile.load(file);
+	}
+
+	@Test(expectedExceptions = BPLVMFormatError.class,
+		expectedExceptionsMessageRegExp = "Invalid bytecode file: func 0 has -1 locals and a max. stack of \\d+")
+	public void testErrFuncLocals() {
+		byte[] file = Main.compileBCFile(PROG);
+		patch(file, Marshal.s32BE(file, 8 + FUNC*8) + 4, -1);
+		BcFile.load(file);
+	}
+
+	@Test(expectedExceptions = BPLVMFormatError.class,
+		expectedExceptionsMessageRegExp = "Invalid bytecode file: func 0 has \\d+ locals and a max. stack of -1")
+	public void testErrFuncMaxStack() {
+		byte[] file = Main.compileBCFile(PROG);
+		patch(file, Marshal.s32BE(file, 8 + FUNC*8) + 8, -1);
+		BcFile.load(file);
+	}
+
+	@Test(expectedExceptions = BPLVMFormatError.class,
+		expectedExceptionsMessageRegExp = "Invalid bytecode file: call at 0x.* to 0x.*, which is no function entry")
+	public void testErrNoFuncs() {
+		byte[] file = Main.compileBCFile(PROG);
+		patch(file, 12 + FUNC*8, 0);
+		BcFile.load(file);
+	}
+
+	@Test(expectedExceptions = BPLVMFormatError.class,
+		expectedExceptionsMessageRegExp = "Invalid bytecode file: illegal op 0x7f at 0x.*")
+	public void testErrIllegalOp() {
+		byte[] file = Main.compileBCFile(PROG);
+		file[Marshal.s32BE(file, 8 + CODE*8) + 10] = 0x7f; // first op of main
+		BcFile.load(file);
+	}
+
+	@Test(expectedExceptions = BPLVMFormatError.class,
+		expectedExceptionsMessageRegExp = "Invalid bytecode file: 39 bytes are too short for a header")
+	public void testErrShortHeader() {
+		BcFile.load(Arrays.copyOf(Main.compileBCFile(PROG), HEADER_LEN - 1));
+	}
+
+	@Test(expectedExceptions = BPLVMFormatError.class,
+		expectedExceptionsMessageRegExp = "Invalid bytecode file: line section .* is out of bounds")
+	public void testErrTruncated() {
+		byte[] file = Main.compileBCFile(PROG);
+		BcFile.load(Arrays.copyOf(file, file.length - 1));
+	}
+
+}
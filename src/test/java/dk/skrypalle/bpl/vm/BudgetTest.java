@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.*;
+import dk.skrypalle.bpl.vm.err.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+
+public class BudgetTest {
+
+	private static final Program FIB = Program.load(Main.compileBC(String.join("\n",
+		"func fib(n int) int {",
+		"	if(n <= 1) {",
+		"		return n;",
+		"	} else {",
+		"		return fib(n - 1) + fib(n - 2);",
+		"	}",
+		"}",
+		"",
+		"func main() int {",
+		"	i : int;",
+		"	i = 0;",
+		"	while (i < 4) {",
+		"		print(fib(10 + i), \" \");",
+		"		i = i + 1;",
+		"	}",
+		"	return 5;",
+		"}"
+	)));
+
+	private static final Program ENDLESS = Program.load(Main.compileBC(String.join("\n",
+		"func main() int {",
+		"	i : int;",
+		"	i = 0;",
+		"	while (0 < 1) {",
+		"		i = i + 1;",
+		"	}",
+		"	return i;",
+		"}"
+	)));
+
+	private static final String FIB_EXP = "37 59 90 e9 ";
+
+	private final PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+
+	private VM vm(Program p, Engine engine, ByteArrayOutputStream out) {
+		return new VM(p, false, new PrintStream(out), sink, sink, engine, VM.DEFAULT_STACK_LIMIT);
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testResumeInSlices(Engine engine) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		VM vm = vm(FIB, engine, out);
+		int slices = 1;
+		while (!vm.runFor(50))
+			slices++;
+		Assert.assertTrue(slices > 10, "preempted " + slices);
+		Assert.assertEquals(vm.exitCode(), 5);
+		Assert.assertEquals(out.toString(), FIB_EXP);
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testBudgetLargeEnough(Engine engine) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(vm(FIB, engine, out).run(1000000), 5);
+		Assert.assertEquals(out.toString(), FIB_EXP);
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testErrBudgetExceeded(Engine engine) {
+		VM vm = vm(ENDLESS, engine, new ByteArrayOutputStream());
+		try {
+			vm.run(10000);
+			Assert.fail("endless loop halted");
+		} catch (BPLVMBudgetExceededError e) {
+			Assert.assertEquals(e.budget(), "instruction");
+			Assert.assertTrue(e.used() >= 10000 && e.used() < 10100, "used " + e.used());
+		}
+		Assert.assertFalse(vm.halted());
+		Assert.assertFalse(vm.runFor(10000), "resumed endless loop halted");
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testErrBudgetExceededRecursion(Engine engine) {
+		Program p = Program.load(Main.compileBC(String.join("\n",
+			"func f(n int) int {",
+			"	if(n == 0) {",
+			"		return 0;",
+			"	} else {",
+			"		return f(n - 1) + 1;",
+			"	}",
+			"}",
+			"",
+			"func main() int {",
+			"	return f(1000);",
+			"}"
+		)));
+		try {
+			vm(p, engine, new ByteArrayOutputStream()).run(100);
+			Assert.fail("recursion halted");
+		} catch (BPLVMBudgetExceededError e) {
+			Assert.assertTrue(e.used() >= 100, "used " + e.used());
+		}
+	}
+
+}
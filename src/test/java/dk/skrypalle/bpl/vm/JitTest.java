@@ -0,0 +1,174 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.*;
+import dk.skrypalle.bpl.vm.err.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+
+public class JitTest {
+
+	private static final String FIB = String.join("\n",
+		"func fib(n int) int {",
+		"	if(n <= 1) {",
+		"		return n;",
+		"	} else {",
+		"		return fib(n - 1) + fib(n - 2);",
+		"	}",
+		"}",
+		"",
+		"func main() int {",
+		"	print(fib(%d));",
+		"	return 0;",
+		"}"
+	);
+
+	private static final String DEPTH = String.join("\n",
+		"func f(n int) int {",
+		"	if(n == 0) {",
+		"		return 0;",
+		"	}",
+		"	return f(n - 1) + 1;",
+		"}",
+		"",
+		"func main() int {",
+		"	i : int;",
+		"	i = 0;",
+		"	while (i < 2000) {",
+		"		f(10);",
+		"		i = i + 1;",
+		"	}",
+		"	print(f(%d));",
+		"	return 0;",
+		"}"
+	);
+
+	private final PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+
+	private VM vm(Program p, Engine engine, ByteArrayOutputStream out, int stackLimit) {
+		return new VM(p, false, new PrintStream(out), sink, sink, engine, stackLimit);
+	}
+
+	private static int compiled(Program p) {
+		int n = 0;
+		for (int addr = 0; addr < p.code.length; addr++) {
+			Jit.Entry e = p.jit().entry(addr);
+			if (e != null && e.code != null)
+				n++;
+		}
+		return n;
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testHotFunction(Engine engine) {
+		Program p = Program.load(Main.compileBC(String.format(FIB, 25)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(vm(p, engine, out, VM.DEFAULT_STACK_LIMIT).run(), 0);
+		Assert.assertEquals(out.toString(), "12511");
+		Assert.assertEquals(compiled(p), engine == Engine.STACK ? 1 : 0);
+	}
+
+	@Test
+	public void testBudgetUsedMatchesInterpreter() {
+		Program p = Program.load(Main.compileBC(String.format(FIB, 25)));
+		long used = -1;
+		for (Engine engine : new Engine[]{Engine.DECODED, Engine.STACK, Engine.STACK}) {
+			try {
+				vm(p, engine, new ByteArrayOutputStream(), VM.DEFAULT_STACK_LIMIT).run(500000);
+				Assert.fail("fib halted within budget");
+			} catch (BPLVMBudgetExceededError e) {
+				if (used >= 0)
+					Assert.assertEquals(e.used(), used, engine.toString());
+				used = e.used();
+			}
+		}
+		Assert.assertEquals(compiled(p), 1);
+	}
+
+	@Test
+	public void testResumeInSlices() {
+		Program p = Program.load(Main.compileBC(String.format(FIB, 20)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		VM vm = vm(p, Engine.STACK, out, VM.DEFAULT_STACK_LIMIT);
+		int slices = 1;
+		while (!vm.runFor(1000))
+			slices++;
+		Assert.assertTrue(slices > 100, "preempted " + slices);
+		Assert.assertEquals(out.toString(), "1a6d");
+		Assert.assertEquals(compiled(p), 1);
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testDeepRecursion(Engine engine) {
+		Program p = Program.load(Main.compileBC(String.format(DEPTH, 10000)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(vm(p, engine, out, VM.DEFAULT_STACK_LIMIT).run(), 0);
+		Assert.assertEquals(out.toString(), "2710");
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class, expectedExceptions = BPLVMStackOverflowError.class)
+	public void testErrStackOverflow(Engine engine) {
+		Program p = Program.load(Main.compileBC(String.format(DEPTH, 10000)));
+		vm(p, engine, new ByteArrayOutputStream(), 4096).run();
+	}
+
+	@Test
+	public void testSideEffectsNotCompiled() {
+		Program p = Program.load(Main.compileBC(String.join("\n",
+			"func f(n int) int {",
+			"	print(\".\");",
+			"	return n + 1;",
+			"}",
+			"",
+			"func main() int {",
+			"	i : int;",
+			"	i = 0;",
+			"	while (i < 5000) {",
+			"		i = f(i);",
+			"	}",
+			"	return 0;",
+			"}"
+		)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		vm(p, Engine.STACK, out, VM.DEFAULT_STACK_LIMIT).run();
+		Assert.assertEquals(out.size(), 5000);
+		Assert.assertEquals(compiled(p), 0);
+	}
+
+	@Test
+	public void testTraceNotCompiled() {
+		Program p = Program.load(Main.compileBC(String.format(FIB, 16)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new VM(p, true, new PrintStream(out), sink, sink, Engine.STACK, VM.DEFAULT_STACK_LIMIT).run();
+		Assert.assertTrue(out.toString().contains("3db"));
+		Assert.assertNull(p.jit().entry(p.codeStart));
+		Assert.assertEquals(compiled(p), 0);
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import org.apache.commons.lang3.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import static dk.skrypalle.bpl.vm.VMTestUtil.*;
+
+public class OutputTest {
+
+	private static final String LONG = StringUtils.repeat("0123456789abcdef", 0x300);
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testStringLongerThanBuffer(Engine engine) {
+		String bpl = String.join("\n",
+			"func main() int {",
+			"	print(1, \"" + LONG + "\", 2);",
+			"	return 0;",
+			"}"
+		);
+		Assert.assertEquals(run(bpl, engine), "1" + LONG + "2");
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testManyPrints(Engine engine) {
+		String bpl = String.join("\n",
+			"func main() int {",
+			"	i := 0;",
+			"	while(i < 10000) {",
+			"		print(i, \" \", 0 - i, \"ü\\n\");",
+			"		i = i + 1;",
+			"	}",
+			"	return 0;",
+			"}"
+		);
+		StringBuilder exp = new StringBuilder();
+		for (long i = 0; i < 10000; i++)
+			exp.append(String.format("%x %xü\n", i, -i));
+		Assert.assertEquals(run(bpl, engine), exp.toString());
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ProgramTest {
+
+	private static final String BPL = String.join("\n",
+		"func fib(n int) int {",
+		"	if(n <= 1) {",
+		"		return n;",
+		"	} else {",
+		"		return fib(n - 1) + fib(n - 2);",
+		"	}",
+		"}",
+		"",
+		"func main() int {",
+		"	print(\"fib=\", fib(15), \"!\");",
+		"	return 3;",
+		"}"
+	);
+
+	private static final String EXP = "fib=262!";
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testReset(Engine engine) {
+		Program p = Program.load(Main.compileBC(BPL));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+		VM vm = new VM(p, false, new PrintStream(out), sink, sink, engine, VM.DEFAULT_STACK_LIMIT);
+		for (int i = 0; i < 3; i++) {
+			out.reset();
+			Assert.assertEquals(vm.reset().run(), 3);
+			Assert.assertEquals(out.toString(), EXP);
+		}
+	}
+
+	@Test
+	public void testResetTrace() {
+		Program p = Program.load(Main.compileBC(BPL));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+		VM vm = new VM(p, true, new PrintStream(out), sink, sink, Engine.STACK, VM.DEFAULT_STACK_LIMIT);
+		vm.run();
+		String first = out.toString();
+		out.reset();
+		vm.reset().run();
+		Assert.assertEquals(out.toString(), first);
+	}
+
+	@Test
+	public void testLoadCopiesImage() {
+		byte[] bc = Main.compileBC(BPL);
+		Program p = Program.load(bc);
+		Arrays.fill(bc, (byte) 0);
+		Assert.assertEquals(new VM(p, false, System.out, System.err, System.out, Engine.DECODED, VM.DEFAULT_STACK_LIMIT)
+			.reset(new PrintStream(new ByteArrayOutputStream()), System.err, System.out).run(), 3);
+	}
+
+	@Test
+	public void testPoolReuse() {
+		VMPool pool = new VMPool(Program.load(Main.compileBC(BPL)), Engine.DECODED, VM.DEFAULT_STACK_LIMIT, 1);
+		PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+		VM a = pool.acquire(sink, sink, sink);
+		VM b = pool.acquire(sink, sink, sink);
+		Assert.assertNotSame(a, b);
+		a.run();
+		pool.release(a);
+		pool.release(b);
+		Assert.assertEquals(pool.idle(), 1, "beyond maxIdle dropped");
+		Assert.assertSame(pool.acquire(sink, sink, sink), a);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testErrPoolForeignVM() {
+		VMPool pool = new VMPool(Program.load(Main.compileBC(BPL)), Engine.STACK);
+		pool.release(new VM(Main.compileBC(BPL), false));
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testSharedProgramConcurrent(Engine engine) throws Exception {
+		VMPool pool = new VMPool(Program.load(Main.compileBC(BPL)), engine);
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> res = new ArrayList<>();
+			for (int i = 0; i < 64; i++) {
+				res.add(exec.submit(() -> {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+					VM vm = pool.acquire(new PrintStream(out), sink, sink);
+					try {
+						vm.run();
+					} finally {
+						pool.release(vm);
+					}
+					return out.toString();
+				}));
+			}
+			for (Future<String> f : res)
+				Assert.assertEquals(f.get(), EXP);
+		} finally {
+			exec.shutdown();
+		}
+	}
+
+}
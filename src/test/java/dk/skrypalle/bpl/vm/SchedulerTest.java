@@ -0,0 +1,155 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.*;
+import dk.skrypalle.bpl.vm.err.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SchedulerTest {
+
+	private static final Program FIB = Program.load(Main.compileBC(String.join("\n",
+		"func fib(n int) int {",
+		"	if(n <= 1) {",
+		"		return n;",
+		"	} else {",
+		"		return fib(n - 1) + fib(n - 2);",
+		"	}",
+		"}",
+		"",
+		"func main() int {",
+		"	print(fib(12));",
+		"	return 7;",
+		"}"
+	)));
+
+	private static final Program ENDLESS = Program.load(Main.compileBC(String.join("\n",
+		"func main() int {",
+		"	i : int;",
+		"	i = 0;",
+		"	while (0 < 1) {",
+		"		i = i + 1;",
+		"	}",
+		"	return i;",
+		"}"
+	)));
+
+	private final PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+
+	private Throwable cause(Future<?> f) throws InterruptedException {
+		try {
+			f.get(10, TimeUnit.SECONDS);
+			Assert.fail("program completed");
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		} catch (CancellationException e) {
+			return e;
+		} catch (TimeoutException e) {
+			throw new AssertionError("program still running", e);
+		}
+	}
+
+	@Test
+	public void testManyPrograms() throws Exception {
+		try (Scheduler s = new Scheduler(4, 100)) {
+			List<ByteArrayOutputStream> outs = new ArrayList<>();
+			List<Future<Integer>> res = new ArrayList<>();
+			for (int i = 0; i < 500; i++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				outs.add(out);
+				res.add(s.submit(FIB, new PrintStream(out), sink));
+			}
+			for (int i = 0; i < res.size(); i++) {
+				Assert.assertEquals((int) res.get(i).get(10, TimeUnit.SECONDS), 7);
+				Assert.assertEquals(outs.get(i).toString(), "90");
+			}
+		}
+	}
+
+	@Test
+	public void testRoundRobin() throws Exception {
+		try (Scheduler s = new Scheduler(1, 1000)) {
+			Future<Integer> endless = s.submit(ENDLESS, sink, sink);
+			Assert.assertEquals((int) s.submit(FIB, sink, sink).get(10, TimeUnit.SECONDS), 7);
+			Assert.assertFalse(endless.isDone());
+			endless.cancel(false);
+			Assert.assertEquals((int) s.submit(FIB, sink, sink).get(10, TimeUnit.SECONDS), 7);
+		}
+	}
+
+	@Test
+	public void testInstructionBudget() throws Exception {
+		try (Scheduler s = new Scheduler(2, 1000)) {
+			Throwable t = cause(s.submit(ENDLESS, sink, sink, 12345, Scheduler.UNLIMITED));
+			Assert.assertTrue(t instanceof BPLVMBudgetExceededError, String.valueOf(t));
+			Assert.assertEquals(((BPLVMBudgetExceededError) t).budget(), "instruction");
+			Assert.assertTrue(((BPLVMBudgetExceededError) t).used() >= 12345);
+
+			Assert.assertEquals((int) s.submit(FIB, sink, sink, 100000, Scheduler.UNLIMITED).get(), 7);
+		}
+	}
+
+	@Test
+	public void testWallClockBudget() throws Exception {
+		try (Scheduler s = new Scheduler(2)) {
+			Throwable t = cause(s.submit(ENDLESS, sink, sink, Scheduler.UNLIMITED, TimeUnit.MILLISECONDS.toNanos(50)));
+			Assert.assertTrue(t instanceof BPLVMBudgetExceededError, String.valueOf(t));
+			Assert.assertEquals(((BPLVMBudgetExceededError) t).budget(), "wall-clock");
+		}
+	}
+
+	@Test
+	public void testRuntimeError() throws Exception {
+		Program overflow = Program.load(Main.compileBC(String.join("\n",
+			"func f(n int) int {",
+			"	return 1 + f(n + 1);", // not a tail call
+			"}",
+			"",
+			"func main() int {",
+			"	return f(0);",
+			"}"
+		)));
+		try (Scheduler s = new Scheduler(2)) {
+			Throwable t = cause(s.submit(overflow, sink, sink));
+			Assert.assertTrue(t instanceof BPLVMStackOverflowError, String.valueOf(t));
+		}
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		Scheduler s = new Scheduler(1, 100);
+		Future<Integer> endless = s.submit(ENDLESS, sink, sink);
+		s.close();
+		Assert.assertTrue(cause(endless) instanceof CancellationException);
+	}
+
+}
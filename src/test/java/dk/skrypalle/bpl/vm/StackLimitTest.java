@@ -0,0 +1,103 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.*;
+import dk.skrypalle.bpl.compiler.type.*;
+import dk.skrypalle.bpl.vm.err.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import static dk.skrypalle.bpl.vm.SegmentedStack.*;
+
+public class StackLimitTest {
+
+	private static final String DOWN = String.join("\n",
+		"func down(n int) int {",
+		"	if(n == 0) {",
+		"		return 0;",
+		"	} else {",
+		"		return down(n - 1) + 1;",
+		"	}",
+		"}",
+		"",
+		"func main() int {",
+		"	print(down(%d));",
+		"	return 0;",
+		"}"
+	);
+
+	private String run(int depth, Engine engine, int stackLimit) {
+		return VMTestUtil.run(String.format(DOWN, depth), engine, stackLimit);
+	}
+
+	@Test
+	public void testSegmentsKeepSlots() {
+		SegmentedStack s = new SegmentedStack(3*SEG_LEN);
+		s.reserve(0);
+		s.put(0, 42, 7);
+		s.put(SEG_LEN - 1, -1, 8);
+		Assert.assertEquals(s.capacity(), SEG_LEN);
+
+		s.reserve(2*SEG_LEN + 5);
+		Assert.assertEquals(s.capacity(), 3*SEG_LEN);
+		s.put(SEG_LEN, 43, 9);
+		s.putVal(3*SEG_LEN - 1, 44);
+		Assert.assertEquals(s.val(0), 42);
+		Assert.assertEquals(s.type(0), 7);
+		Assert.assertEquals(s.val(SEG_LEN - 1), -1);
+		Assert.assertEquals(s.type(SEG_LEN - 1), 8);
+		Assert.assertEquals(s.val(SEG_LEN), 43);
+		Assert.assertEquals(s.val(3*SEG_LEN - 1), 44);
+	}
+
+	@Test(expectedExceptions = BPLVMStackOverflowError.class)
+	public void testSegmentsLimit() {
+		new SegmentedStack(SEG_LEN + 1).reserve(SEG_LEN + 1);
+	}
+
+	@Test
+	public void testMillionDeepRecursion() {
+		Assert.assertEquals(run(1000000, Engine.STACK, 1 << 23), "f4240");
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testRaisedLimit(Engine engine) {
+		Assert.assertEquals(run(100000, engine, 1 << 20), "186a0");
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class, expectedExceptions = BPLVMStackOverflowError.class)
+	public void testErrDefaultLimit(Engine engine) {
+		run(100000, engine, VM.DEFAULT_STACK_LIMIT);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testErrNonPositiveLimit() {
+		new VM(Main.compileBC(String.format(DOWN, 1)), false, System.out, System.err, System.out,
+			Engine.STACK, new TypeUniverse(), 0);
+	}
+
+}
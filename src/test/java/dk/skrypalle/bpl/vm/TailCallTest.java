@@ -0,0 +1,98 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.*;
+import dk.skrypalle.bpl.vm.err.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+
+import static dk.skrypalle.bpl.vm.VMTestUtil.*;
+
+public class TailCallTest {
+
+	private static final String LOOP = String.join("\n",
+		"func loop(n int, acc int) int {",
+		"	%s",
+		"	if(n == 0) {",
+		"		return acc;",
+		"	}",
+		"	return loop(n - 1, acc + 1);",
+		"}",
+		"",
+		"func main() int {",
+		"	print(loop(%d, 0));",
+		"	return 0;",
+		"}"
+	);
+
+	private static boolean emitsTailCall(String bpl) {
+		byte[] code = Main.compileBC(bpl);
+		for (int ip = VM.codeStart(code); ip < code.length; ip += 1 + Bytecode.opCodes.get(code[ip]).nArgs) {
+			if (code[ip] == Bytecode.TAILCALL)
+				return true;
+		}
+		return false;
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testDeepTailRecursion(Engine engine) {
+		Assert.assertEquals(run(String.format(LOOP, "", 1000000), engine), "f4240");
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class)
+	public void testBudgetedTailRecursion(Engine engine) {
+		PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+		VM vm = new VM(Main.compileBC(String.format(LOOP, "", 100000)), false, sink, sink, sink, engine);
+		int slices = 0;
+		while (!vm.runFor(1000))
+			slices++;
+		Assert.assertTrue(slices > 100, "tail calls must be preemption points, got " + slices + " slices");
+	}
+
+	@Test
+	public void testTailCallEmitted() {
+		Assert.assertTrue(emitsTailCall(String.format(LOOP, "", 1)));
+	}
+
+	@Test
+	public void testNoTailCallWithPendingDefer() {
+		Assert.assertFalse(emitsTailCall(String.format(LOOP, "defer print(\"\");", 1)));
+	}
+
+	@Test
+	public void testNoTailCallWhenAddressTaken() {
+		Assert.assertFalse(emitsTailCall(String.format(LOOP, "p := &n;", 1)));
+	}
+
+	@Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class, expectedExceptions = BPLVMStackOverflowError.class)
+	public void testErrDeepRecursionWithDefer(Engine engine) {
+		run(String.format(LOOP, "defer print(\"\");", 100000), engine);
+	}
+
+}
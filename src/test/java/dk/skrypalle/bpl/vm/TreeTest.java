@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.*;
+import dk.skrypalle.bpl.compiler.*;
+import dk.skrypalle.bpl.compiler.type.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+
+import static dk.skrypalle.bpl.vm.Bytecode.*;
+
+public class TreeTest {
+
+	private static final int MAIN    = VM.HEADER + 4 + FUNC_ENTRY_LEN + 10; // empty data segment, main only, CALL, HALT
+	private static final int MAIN_PC = 3 + 1;                               // decoded CALL, HALT
+
+	private CodeBuf image() {
+		return new CodeBuf()
+			.s32(0)                           // data segment
+			.s32(1).s32(MAIN).s32(0).s32(8)   // function table
+			.bytes(new byte[]{CALL}).s32(MAIN).s32(0)
+			.op(HALT);
+	}
+
+	private Tree build(CodeBuf buf) {
+		return Tree.build(Verified.verify(Decoded.decode(buf.toArray()), new TypeUniverse()));
+	}
+
+	private int run(CodeBuf buf, Engine engine) {
+		PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+		return new VM(buf.toArray(), false, sink, sink, sink, engine).run();
+	}
+
+	private String run(String bpl, Engine engine) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+		new VM(Main.compileBC(bpl), false, new PrintStream(out), sink, sink, engine).run();
+		return out.toString();
+	}
+
+	@Test
+	public void testOperandsFolded() {
+		// return (1 + 2)*3, a single Ret of Mul(Add(Const, Const), Const)
+		CodeBuf buf = image().ipush(1).ipush(2).op(IADD).ipush(3).op(IMUL).op(RET);
+		Tree.Block main = build(buf).blocks[MAIN_PC];
+		Assert.assertEquals(main.body.length, 0);
+		Assert.assertTrue(main.term instanceof Tree.Ret, main.term.getClass().getSimpleName());
+		Assert.assertEquals(main.cost, 6);
+		Assert.assertEquals(run(buf, Engine.TREE), 9);
+	}
+
+	@Test
+	public void testUnknownTypeChecked() {
+		// l0 = 41; l1 = &l0; return *l1 + 1
+		CodeBuf buf = image()
+			.locals(2)
+			.ipush(41).op(LSTORE).s32(0)
+			.ipush(0).op(ADDR_OF).op(LSTORE).s32(1)
+			.op(LLOAD).s32(1).op(VAL_OF).ipush(1).op(IADD).op(RET);
+		boolean checked = false;
+		for (Tree.Stmt s : build(buf).blocks[MAIN_PC].body)
+			checked |= s instanceof Tree.CheckSame;
+		Assert.assertTrue(checked, "checked IADD");
+		Assert.assertEquals(run(buf, Engine.TREE), 42);
+	}
+
+	@Test
+	public void testOperandsAcrossBlocks() {
+		// call results stay on the stack across blocks and are popped in order
+		String bpl = String.join("\n",
+			"func f(x int) int {",
+			"	return x;",
+			"}",
+			"",
+			"func main() int {",
+			"	a : int;",
+			"	a = 5;",
+			"	print(f(7) - f(2)*f(3), \" \", 100/f(a)/f(2), \" \", f(1) < f(2), \" \", a - f(a - f(1)));",
+			"	return 0;",
+			"}"
+		);
+		Assert.assertEquals(run(bpl, Engine.TREE), run(bpl, Engine.DECODED));
+		Assert.assertEquals(run(bpl, Engine.TREE), "1 a 1 1");
+	}
+
+}
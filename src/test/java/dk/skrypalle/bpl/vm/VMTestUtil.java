@@ -0,0 +1,60 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+
+// Fixtures shared by the VM tests. A test runs on every engine with
+// @Test(dataProvider = "engines", dataProviderClass = VMTestUtil.class).
+public final class VMTestUtil {
+
+	@DataProvider
+	public static Object[][] engines() {
+		Engine[] engines = Engine.values();
+		Object[][] res = new Object[engines.length][];
+		for (int i = 0; i < engines.length; i++)
+			res[i] = new Object[]{engines[i]};
+		return res;
+	}
+
+	// Runs bpl on engine and returns what it printed
+	static String run(String bpl, Engine engine) {
+		return run(bpl, engine, VM.DEFAULT_STACK_LIMIT);
+	}
+
+	static String run(String bpl, Engine engine, int stackLimit) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+		new VM(Program.load(Main.compileBC(bpl)), false, new PrintStream(out), sink, sink, engine, stackLimit).run();
+		return out.toString();
+	}
+
+	private VMTestUtil() { /**/ }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm;
+
+import dk.skrypalle.bpl.compiler.*;
+import dk.skrypalle.bpl.compiler.type.*;
+import dk.skrypalle.bpl.vm.err.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import static dk.skrypalle.bpl.vm.Bytecode.*;
+
+public class VerifiedTest {
+
+	private static final int MAIN = VM.HEADER + 4 + FUNC_ENTRY_LEN + 10; // empty data segment, main only, CALL, HALT
+
+	private CodeBuf image() {
+		return new CodeBuf()
+			.s32(0)                           // data segment
+			.s32(1).s32(MAIN).s32(0).s32(8)   // function table
+			.bytes(new byte[]{CALL}).s32(MAIN).s32(0)
+			.op(HALT);
+	}
+
+	private Verified verify(CodeBuf buf) {
+		return Verified.verify(Decoded.decode(buf.toArray()), new TypeUniverse());
+	}
+
+	@Test
+	public void testProvenOpsUnchecked() {
+		Verified v = verify(image().ipush(1).ipush(2).op(IADD).op(RET));
+		int iadd = 4 + 2 + 2; // CALL, HALT, IPUSH, IPUSH
+		Assert.assertEquals(v.inst[iadd], Decoded.IADD | Verified.UNCHECKED);
+		Assert.assertEquals(v.frame[0], 0); // result of main above the initial sp of -1
+		Assert.assertEquals(v.frame[4], 2);
+	}
+
+	@Test
+	public void testUnknownTypeStaysChecked() {
+		// *p + 1, p pointing to a local
+		Verified v = verify(image()
+			.locals(2)
+			.ipush(0).op(ADDR_OF).op(LSTORE).s32(1)
+			.op(LLOAD).s32(1).op(VAL_OF).ipush(1).op(IADD).op(RET));
+		boolean found = false;
+		for (int pc = 0; pc < v.inst.length; pc += Decoded.length(v.inst[pc] & ~Verified.UNCHECKED))
+			found |= v.inst[pc] == Decoded.IADD;
+		Assert.assertTrue(found, "checked IADD");
+	}
+
+	@Test
+	public void testErrUnderflow() {
+		try {
+			verify(image().ipush(1).op(IADD).op(RET));
+			Assert.fail("verification passed");
+		} catch (BPLVMVerifyError e) {
+			Assert.assertEquals(e.addr(), MAIN + 1);
+			Assert.assertEquals(e.reason(), "stack underflow");
+		}
+	}
+
+	@Test
+	public void testErrTypeConflict() {
+		try {
+			verify(image().ipush(1).op(SPUSH).s32(Types.STRING.vm_type).s32(4).op(IADD).op(RET));
+			Assert.fail("verification passed");
+		} catch (BPLVMVerifyError e) {
+			Assert.assertEquals(e.addr(), MAIN + 10);
+			Assert.assertEquals(e.reason(), "IADD:: want [INT,INT], have [int,string]");
+		}
+	}
+
+	@Test
+	public void testErrInconsistentDepth() {
+		CodeBuf.Label l = new CodeBuf.Label();
+		try {
+			verify(image().ipush(0).jump(BREQ, l).ipush(1).bind(l).ipush(2).op(RET));
+			Assert.fail("verification passed");
+		} catch (BPLVMVerifyError e) {
+			Assert.assertEquals(e.addr(), MAIN + 7);
+			Assert.assertTrue(e.reason().startsWith("stack depth"), e.reason());
+		}
+	}
+
+	@Test(expectedExceptions = BPLVMVerifyError.class,
+		expectedExceptionsMessageRegExp = "Verification failed at 0x0000001e: slot 0 is outside of the frame")
+	public void testErrSlotOutsideFrame() {
+		verify(image().op(LLOAD).s32(-1).op(RET)); // main has no params
+	}
+
+	@Test
+	public void testErrJumpIntoOtherFunction() {
+		// main calls g, then jumps past g's entry into its RET
+		int main = VM.HEADER + 4 + 2*FUNC_ENTRY_LEN + 10;
+		int g = main + 9 + 5;
+		CodeBuf buf = new CodeBuf()
+			.s32(0)
+			.s32(2).s32(main).s32(0).s32(8).s32(g).s32(0).s32(8)
+			.bytes(new byte[]{CALL}).s32(main).s32(0)
+			.op(HALT)
+			.bytes(new byte[]{CALL}).s32(g).s32(0)
+			.bytes(new byte[]{JMP}).s32(1)
+			.ipush(1).op(RET);
+		try {
+			verify(buf);
+			Assert.fail("verification passed");
+		} catch (BPLVMVerifyError e) {
+			Assert.assertEquals(e.addr(), g);
+			Assert.assertEquals(e.reason(), String.format("code shared with the function at 0x%08x", main));
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Peter Skrypalle
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package dk.skrypalle.bpl.vm.sink;
+
+import dk.skrypalle.bpl.*;
+import dk.skrypalle.bpl.util.*;
+import dk.skrypalle.bpl.vm.*;
+import org.testng.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+import java.nio.file.*;
+
+public class SinkTest {
+
+	private static final PrintStream NULL = new PrintStream(new ByteArrayOutputStream());
+
+	private static final String LINES = String.join("\n",
+		"func main() int {",
+		"	i := 0;",
+		"	while(i < %d) {",
+		"		print(i, \"\\n\");",
+		"		i = i + 1;",
+		"	}",
+		"	return 0;",
+		"}"
+	);
+
+	private static String lines(int n) {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			buf.append(Integer.toHexString(i)).append('\n');
+		return buf.toString();
+	}
+
+	private static VM vm(int n, Sink out) {
+		return new VM(Program.load(Main.compileBC(String.format(LINES, n))), false, out, NULL, NULL,
+			Engine.STACK, VM.DEFAULT_STACK_LIMIT);
+	}
+
+	// Counts the writes reaching it
+	private static final class CountingStream extends ByteArrayOutputStream {
+		int writes;
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			writes++;
+			super.write(b, off, len);
+		}
+	}
+
+	@Test
+	public void testMemory() {
+		MemorySink out = new MemorySink();
+		Assert.assertEquals(vm(300, out).run(), 0);
+		Assert.assertEquals(out.toString(), lines(300));
+	}
+
+	@Test
+	public void testNewlinePolicy() {
+		CountingStream s = new CountingStream();
+		vm(10, new StreamSink(s, FlushPolicy.NEWLINE, Sink.DEFAULT_SIZE)).run();
+		Assert.assertEquals(s.toString(), lines(10));
+		Assert.assertEquals(s.writes, 10);
+	}
+
+	@Test
+	public void testSizePolicy() {
+		CountingStream s = new CountingStream();
+		vm(1000, new StreamSink(s, FlushPolicy.SIZE, 64)).run();
+		Assert.assertEquals(s.toString(), lines(1000));
+		Assert.assertTrue(s.writes > 1000*3/64, "writes: " + s.writes);
+	}
+
+	@Test
+	public void testHaltPolicyHoldsOutputWhilePaused() {
+		CountingStream s = new CountingStream();
+		VM vm = vm(10, new StreamSink(s, FlushPolicy.HALT, Sink.DEFAULT_SIZE));
+		Assert.assertFalse(vm.runFor(20));
+		Assert.assertEquals(s.writes, 0);
+		while (!vm.runFor(20)) {
+			// resume until halted
+		}
+		Assert.assertEquals(s.toString(), lines(10));
+		Assert.assertEquals(s.writes, 1);
+	}
+
+	@Test
+	public void testSizePolicyWritesWhenPaused() {
+		CountingStream s = new CountingStream();
+		VM vm = vm(10, new StreamSink(s, FlushPolicy.SIZE, Sink.DEFAULT_SIZE));
+		Assert.assertFalse(vm.runFor(20));
+		Assert.assertTrue(s.size() > 0);
+	}
+
+	@Test
+	public void testLargeChunkBypassesBuffer() {
+		MemorySink out = new MemorySink(FlushPolicy.HALT, Hex.MAX_LEN);
+		byte[] b = "0123456789abcdef0123456789abcdef".getBytes(IO.UTF8);
+		out.writeHex(0xabc);
+		out.write(b, 0, b.length);
+		Assert.assertEquals(out.toString(), "abc0123456789abcdef0123456789abcdef");
+	}
+
+	@Test
+	public void testDiscard() {
+		MemorySink out = new MemorySink();
+		out.writeHex(1);
+		out.discard();
+		out.writeHex(2);
+		out.flush();
+		Assert.assertEquals(out.toString(), "2");
+	}
+
+	@Test
+	public void testChannel() throws IOException {
+		Path tmpDir = IO.makeTmpDir("_bpl_sink_");
+		try {
+			Path file = tmpDir.resolve("out.txt");
+			try (ChannelSink out = new ChannelSink(file, FlushPolicy.SIZE, 128)) {
+				vm(1000, out).run();
+			}
+			Assert.assertEquals(IO.readAll(file), lines(1000));
+		} finally {
+			IO.delRec(tmpDir);
+		}
+	}
+
+	@Test
+	public void testRing() throws IOException {
+		CountingStream s = new CountingStream();
+		try (RingSink out = new RingSink(s)) {
+			vm(10000, out).run();
+			out.await();
+			Assert.assertEquals(s.toString(), lines(10000));
+		}
+	}
+
+	@Test
+	public void testRingSmallerThanOutput() throws IOException {
+		CountingStream s = new CountingStream();
+		try (RingSink out = new RingSink(s, FlushPolicy.SIZE, 100, 37)) {
+			vm(10000, out).run();
+		}
+		Assert.assertEquals(s.toString(), lines(10000));
+	}
+
+	@Test(expectedExceptions = UncheckedIOException.class)
+	public void testErrRingWriteFails() throws IOException {
+		OutputStream broken = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("broken");
+			}
+		};
+		try (RingSink out = new RingSink(broken, FlushPolicy.SIZE, 16, 16)) {
+			vm(10000, out).run();
+			out.await();
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testErrTinyBuffer() {
+		new MemorySink(FlushPolicy.SIZE, Hex.MAX_LEN - 1);
+	}
+
+}